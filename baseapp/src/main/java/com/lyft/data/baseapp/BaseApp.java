@@ -16,6 +16,8 @@ import io.dropwizard.servlets.tasks.Task;
 import io.dropwizard.setup.Bootstrap;
 import io.dropwizard.setup.Environment;
 
+import java.io.IOException;
+import java.lang.annotation.Annotation;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
@@ -39,10 +41,11 @@ import org.slf4j.LoggerFactory;
  * <p>To use it, create a subclass and provide a list of modules you want to use with the {@link
  * #addModules} method.
  *
- * <p>Packages supplied in the constructor will be scanned for Resources, Tasks, Providers,
- * Healthchecks and Managed classes, and added to the environment. If you need to add anything to
- * the environment, or access the Injector at run time, you can use the {@link #applicationAtRun}
- * method.
+ * <p>Resources, Tasks, Providers and Healthchecks in the packages supplied in the constructor are
+ * added to the environment. They are read from the {@link ComponentIndex} generated at compile
+ * time, and the packages are only scanned when there is no index on the classpath. If you need to
+ * add anything to the environment, or access the Injector at run time, you can use the {@link
+ * #applicationAtRun} method.
  *
  * <p>GuiceApplication also makes {@link com.codahale.metrics.MetricRegistry} available for
  * injection.
@@ -52,18 +55,26 @@ public abstract class BaseApp<T extends AppConfiguration> extends Application<T>
 
   private static final Logger logger = LoggerFactory.getLogger(BaseApp.class);
 
+  private final ComponentIndex componentIndex;
   private final Reflections reflections;
   private final List<Module> appModules = Lists.newArrayList();
   private Injector injector;
 
   protected BaseApp(String... basePackages) {
+    this.componentIndex = loadComponentIndex(basePackages);
+    if (componentIndex != null) {
+      // A partial build rewrites the index with the recompiled classes only, the counts show it
+      logger.info("op=create component_index={} packages={} resources={} providers={} "
+              + "health_checks={} tasks={}", ComponentIndex.RESOURCE, basePackages,
+          componentIndex.count(Path.class), componentIndex.count(Provider.class),
+          componentIndex.count(HealthCheck.class), componentIndex.count(Task.class));
+      this.reflections = null;
+      return;
+    }
+
     final ConfigurationBuilder confBuilder = new ConfigurationBuilder();
     final FilterBuilder filterBuilder = new FilterBuilder();
 
-    if (basePackages.length == 0) {
-      basePackages = new String[] {};
-    }
-
     logger.info("op=create auto_scan_packages={}", basePackages);
 
     for (String basePkg : basePackages) {
@@ -78,6 +89,21 @@ public abstract class BaseApp<T extends AppConfiguration> extends Application<T>
     this.reflections = new Reflections(confBuilder);
   }
 
+  private ComponentIndex loadComponentIndex(String... basePackages) {
+    try {
+      ComponentIndex index = ComponentIndex.load(getClass().getClassLoader(), basePackages);
+      if (index != null && index.isEmpty()) {
+        log.warn("The component index has no component in the packages, scanning the classpath "
+            + "instead. Run a clean build to regenerate it");
+        return null;
+      }
+      return index;
+    } catch (IOException e) {
+      log.warn("Could not read the component index, scanning the classpath instead", e);
+      return null;
+    }
+  }
+
   /**
    * Initializes the application bootstrap.
    *
@@ -196,7 +222,7 @@ public abstract class BaseApp<T extends AppConfiguration> extends Application<T>
   }
 
   private void registerTasks(Environment environment, Injector injector) {
-    final Set<Class<? extends Task>> classes = reflections.getSubTypesOf(Task.class);
+    final Set<Class<? extends Task>> classes = getSubTypesOf(Task.class);
     classes.forEach(
         c -> {
           environment.admin().addTask(injector.getInstance(c));
@@ -205,7 +231,7 @@ public abstract class BaseApp<T extends AppConfiguration> extends Application<T>
   }
 
   private void registerHealthChecks(Environment environment, Injector injector) {
-    final Set<Class<? extends HealthCheck>> classes = reflections.getSubTypesOf(HealthCheck.class);
+    final Set<Class<? extends HealthCheck>> classes = getSubTypesOf(HealthCheck.class);
     classes.forEach(
         c -> {
           environment.healthChecks().register(c.getSimpleName(), injector.getInstance(c));
@@ -214,7 +240,7 @@ public abstract class BaseApp<T extends AppConfiguration> extends Application<T>
   }
 
   private void registerProviders(Environment environment, Injector injector) {
-    final Set<Class<?>> classes = reflections.getTypesAnnotatedWith(Provider.class);
+    final Set<Class<?>> classes = getTypesAnnotatedWith(Provider.class);
     classes.forEach(
         c -> {
           environment.jersey().register(injector.getInstance(c));
@@ -223,11 +249,23 @@ public abstract class BaseApp<T extends AppConfiguration> extends Application<T>
   }
 
   private void registerResources(Environment environment, Injector injector) {
-    final Set<Class<?>> classes = reflections.getTypesAnnotatedWith(Path.class);
+    final Set<Class<?>> classes = getTypesAnnotatedWith(Path.class);
     classes.forEach(
         c -> {
           environment.jersey().register(injector.getInstance(c));
           logger.info("op=register type=resource item={}", c);
         });
   }
+
+  private <C> Set<Class<? extends C>> getSubTypesOf(Class<C> type) {
+    return componentIndex != null
+        ? componentIndex.getSubTypesOf(type)
+        : reflections.getSubTypesOf(type);
+  }
+
+  private Set<Class<?>> getTypesAnnotatedWith(Class<? extends Annotation> annotation) {
+    return componentIndex != null
+        ? componentIndex.getTypesAnnotatedWith(annotation)
+        : reflections.getTypesAnnotatedWith(annotation);
+  }
 }
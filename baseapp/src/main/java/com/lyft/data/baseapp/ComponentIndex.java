@@ -0,0 +1,125 @@
+package com.lyft.data.baseapp;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.annotation.Annotation;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Components of the application found at compile time by {@link ComponentIndexProcessor}, so that
+ * they do not have to be found by scanning the classpath at startup. Each line of an index file
+ * has the name of a component type, either an annotation or a super type, followed by the name of
+ * a concrete class annotated with it or extending it. The index files of all the jars on the
+ * classpath are read.
+ */
+@Slf4j
+public class ComponentIndex {
+  public static final String RESOURCE = "META-INF/baseapp/components";
+
+  private final ClassLoader classLoader;
+  // Component classes by component type
+  private final Map<String, Set<String>> components;
+
+  ComponentIndex(ClassLoader classLoader, Map<String, Set<String>> components) {
+    this.classLoader = classLoader;
+    this.components = components;
+  }
+
+  /**
+   * Reads the index files of the classpath, keeping the components in the given packages.
+   *
+   * @param classLoader class loader to read the index files and load the components with
+   * @param basePackages packages of the components to keep
+   * @return the index, or null if there is no index file on the classpath
+   */
+  public static ComponentIndex load(ClassLoader classLoader, String... basePackages)
+      throws IOException {
+    Enumeration<URL> resources = classLoader.getResources(RESOURCE);
+    if (!resources.hasMoreElements()) {
+      return null;
+    }
+    Map<String, Set<String>> components = new HashMap<>();
+    while (resources.hasMoreElements()) {
+      URL resource = resources.nextElement();
+      try (InputStream in = resource.openStream()) {
+        BufferedReader reader =
+            new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+          String[] entry = line.trim().split("\\s+");
+          if (entry.length != 2 || entry[0].startsWith("#")) {
+            continue;
+          }
+          if (inPackages(entry[1], basePackages)) {
+            components.computeIfAbsent(entry[0], k -> new LinkedHashSet<>()).add(entry[1]);
+          }
+        }
+      }
+    }
+    return new ComponentIndex(classLoader, components);
+  }
+
+  /**
+   * Returns the number of components of a type, without loading them.
+   *
+   * @param componentType annotation or super type of the components
+   */
+  public int count(Class<?> componentType) {
+    return components.getOrDefault(componentType.getName(), Collections.emptySet()).size();
+  }
+
+  public boolean isEmpty() {
+    return components.isEmpty();
+  }
+
+  public <T> Set<Class<? extends T>> getSubTypesOf(Class<T> type) {
+    Set<Class<? extends T>> classes = new LinkedHashSet<>();
+    for (String className : components.getOrDefault(type.getName(), Collections.emptySet())) {
+      Class<?> c = loadClass(className);
+      if (c != null) {
+        classes.add(c.asSubclass(type));
+      }
+    }
+    return classes;
+  }
+
+  public Set<Class<?>> getTypesAnnotatedWith(Class<? extends Annotation> annotation) {
+    Set<Class<?>> classes = new LinkedHashSet<>();
+    for (String className :
+        components.getOrDefault(annotation.getName(), Collections.emptySet())) {
+      Class<?> c = loadClass(className);
+      if (c != null) {
+        classes.add(c);
+      }
+    }
+    return classes;
+  }
+
+  private Class<?> loadClass(String className) {
+    try {
+      return Class.forName(className, true, classLoader);
+    } catch (ClassNotFoundException e) {
+      log.warn("Component [{}] of the index is not on the classpath", className);
+      return null;
+    }
+  }
+
+  private static boolean inPackages(String className, String... basePackages) {
+    for (String basePackage : basePackages) {
+      if (className.startsWith(basePackage)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
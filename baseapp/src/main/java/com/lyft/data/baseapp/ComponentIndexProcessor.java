@@ -0,0 +1,127 @@
+package com.lyft.data.baseapp;
+
+import com.codahale.metrics.health.HealthCheck;
+import io.dropwizard.servlets.tasks.Task;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import javax.ws.rs.Path;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * Writes the {@link ComponentIndex} of the classes being compiled: the concrete classes annotated
+ * with {@link Path} or {@link Provider}, and the ones extending {@link HealthCheck} or
+ * {@link Task}, which {@link BaseApp} registers in the environment. It is discovered by javac
+ * from the baseapp jar, so modules depending on baseapp get their index without any setup. A
+ * module without components gets no index file.
+ */
+@SupportedAnnotationTypes("*")
+public class ComponentIndexProcessor extends AbstractProcessor {
+  private static final List<Class<?>> ANNOTATIONS = Arrays.asList(Path.class, Provider.class);
+  private static final List<Class<?>> SUPER_TYPES = Arrays.asList(HealthCheck.class, Task.class);
+
+  // Component classes by component type, sorted so that the index is reproducible
+  private final Map<String, Set<String>> components = new TreeMap<>();
+
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override
+  public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+    if (roundEnv.processingOver()) {
+      writeIndex();
+    } else {
+      for (Element element : roundEnv.getRootElements()) {
+        collect(element);
+      }
+    }
+    // The annotations are left to the other processors
+    return false;
+  }
+
+  private void collect(Element element) {
+    if (!(element instanceof TypeElement)) {
+      return;
+    }
+    TypeElement type = (TypeElement) element;
+    if (type.getKind() == ElementKind.CLASS && !type.getModifiers().contains(Modifier.ABSTRACT)) {
+      String className = processingEnv.getElementUtils().getBinaryName(type).toString();
+      for (Class<?> annotation : ANNOTATIONS) {
+        if (isAnnotatedWith(type, annotation)) {
+          add(annotation, className);
+        }
+      }
+      for (Class<?> superType : SUPER_TYPES) {
+        if (isSubtypeOf(type, superType)) {
+          add(superType, className);
+        }
+      }
+    }
+    for (Element enclosed : type.getEnclosedElements()) {
+      collect(enclosed);
+    }
+  }
+
+  private boolean isAnnotatedWith(TypeElement type, Class<?> annotation) {
+    return type.getAnnotationMirrors().stream().anyMatch(mirror ->
+        ((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName()
+            .contentEquals(annotation.getCanonicalName()));
+  }
+
+  private boolean isSubtypeOf(TypeElement type, Class<?> superType) {
+    TypeElement superElement =
+        processingEnv.getElementUtils().getTypeElement(superType.getCanonicalName());
+    if (superElement == null) {
+      // Not on the classpath of the module being compiled
+      return false;
+    }
+    Types types = processingEnv.getTypeUtils();
+    TypeMirror erasure = types.erasure(superElement.asType());
+    return types.isSubtype(types.erasure(type.asType()), erasure);
+  }
+
+  private void add(Class<?> componentType, String className) {
+    components.computeIfAbsent(componentType.getName(), k -> new TreeSet<>()).add(className);
+  }
+
+  private void writeIndex() {
+    if (components.isEmpty()) {
+      return;
+    }
+    try {
+      FileObject index = processingEnv.getFiler()
+          .createResource(StandardLocation.CLASS_OUTPUT, "", ComponentIndex.RESOURCE);
+      try (Writer writer = index.openWriter()) {
+        writer.write("# Generated by " + getClass().getName() + "\n");
+        for (Map.Entry<String, Set<String>> entry : components.entrySet()) {
+          for (String className : entry.getValue()) {
+            writer.write(entry.getKey() + " " + className + "\n");
+          }
+        }
+      }
+    } catch (IOException e) {
+      processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+          "Could not write " + ComponentIndex.RESOURCE + ": " + e.getMessage());
+    }
+  }
+}
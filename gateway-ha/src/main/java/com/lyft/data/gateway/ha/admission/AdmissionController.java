@@ -0,0 +1,193 @@
+package com.lyft.data.gateway.ha.admission;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.lyft.data.gateway.ha.config.AdmissionControlConfiguration;
+import com.lyft.data.gateway.ha.router.OutstandingQueryTracker;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Limits the queries of a routing group running on its backends at the same time. Submissions
+ * beyond the limit wait in a fair queue until a slot is released, and are rejected if the queue
+ * is full or the wait times out. Waiting submissions are futures, so they do not hold a thread.
+ * The slot of a submitted query is held until the {@link OutstandingQueryTracker} sees the query
+ * complete or go idle, or only for the submission when the query is not tracked.
+ */
+@Slf4j
+public class AdmissionController {
+  private static final Permit UNLIMITED = () -> { };
+  // How often the tracker is asked to drop the idle queries, which releases their slots
+  private static final long IDLE_CHECK_INTERVAL_SECONDS = 5;
+
+  private final Map<String, GroupLimiter> limiters = new HashMap<>();
+  // Slots of the submitted queries, by query id
+  private final Map<String, Permit> queryPermits = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService timer;
+
+  public AdmissionController(AdmissionControlConfiguration configuration, MetricRegistry metrics) {
+    this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "admission-control");
+      thread.setDaemon(true);
+      return thread;
+    });
+    configuration.getRoutingGroups().forEach((routingGroup, limits) ->
+        limiters.put(routingGroup, new GroupLimiter(routingGroup, limits, timer, metrics)));
+  }
+
+  /**
+   * Admits a query submission, waiting for a slot if the routing group is at its limit.
+   *
+   * @param routingGroup
+   * @return the permit to release once the submission is done, or null if it is rejected
+   */
+  public Permit admit(String routingGroup) {
+    return admitAsync(routingGroup).join();
+  }
+
+  /**
+   * Admits a query submission without waiting for a slot.
+   *
+   * @param routingGroup
+   * @return a future completed with the permit to release once the submission is done, or with
+   *     null if it is rejected. It is already completed if the submission did not have to wait.
+   */
+  public CompletableFuture<Permit> admitAsync(String routingGroup) {
+    GroupLimiter limiter = limiters.get(routingGroup);
+    return limiter == null ? CompletableFuture.completedFuture(UNLIMITED) : limiter.admit();
+  }
+
+  /**
+   * Holds the slots of the submitted queries until the tracker sees them complete. The tracker
+   * drops the queries polled for no longer than its idle timeout, so no slot is held forever.
+   *
+   * @param tracker the tracker of the queries given to {@link #queryStarted}
+   */
+  public void trackQueries(OutstandingQueryTracker tracker) {
+    tracker.addCompletionListener(this::queryCompleted);
+    timer.scheduleWithFixedDelay(tracker::expireIdleQueries, IDLE_CHECK_INTERVAL_SECONDS,
+        IDLE_CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Keeps the permit of a submission until its query completes.
+   *
+   * @param queryId
+   * @param permit
+   */
+  public void queryStarted(String queryId, Permit permit) {
+    Permit previous = queryPermits.put(queryId, permit);
+    if (previous != null) {
+      previous.release();
+    }
+  }
+
+  /**
+   * Releases the permit of a query that completed, was cancelled or went idle.
+   *
+   * @param queryId
+   */
+  public void queryCompleted(String queryId) {
+    Permit permit = queryPermits.remove(queryId);
+    if (permit != null) {
+      permit.release();
+    }
+  }
+
+  /** Slot held by an admitted submission. Releasing it more than once has no effect. */
+  public interface Permit {
+    void release();
+  }
+
+  private static class GroupLimiter {
+    private final String routingGroup;
+    private final AdmissionControlConfiguration.Limits limits;
+    private final ScheduledExecutorService timer;
+    private final Meter rejectedMeter;
+    // Guarded by this
+    private final Deque<CompletableFuture<Permit>> waiters = new ArrayDeque<>();
+    private int available;
+
+    GroupLimiter(String routingGroup, AdmissionControlConfiguration.Limits limits,
+        ScheduledExecutorService timer, MetricRegistry metrics) {
+      this.routingGroup = routingGroup;
+      this.limits = limits;
+      this.timer = timer;
+      this.available = limits.getMaxInFlight();
+      this.rejectedMeter =
+          metrics.meter(MetricRegistry.name(AdmissionController.class, routingGroup, "rejected"));
+      metrics.gauge(MetricRegistry.name(AdmissionController.class, routingGroup, "queued"),
+          () -> (Gauge<Integer>) this::getQueued);
+    }
+
+    CompletableFuture<Permit> admit() {
+      CompletableFuture<Permit> waiter = new CompletableFuture<>();
+      synchronized (this) {
+        // Waiting submissions go first
+        if (available > 0 && waiters.isEmpty()) {
+          available--;
+          return CompletableFuture.completedFuture(newPermit());
+        }
+        if (waiters.size() >= limits.getMaxQueued()) {
+          return CompletableFuture.completedFuture(reject("queue is full"));
+        }
+        waiters.add(waiter);
+      }
+      timer.schedule(() -> timeOut(waiter), limits.getMaxWaitMillis(), TimeUnit.MILLISECONDS);
+      return waiter;
+    }
+
+    private synchronized int getQueued() {
+      return waiters.size();
+    }
+
+    private void timeOut(CompletableFuture<Permit> waiter) {
+      synchronized (this) {
+        if (!waiters.remove(waiter)) {
+          // Admitted meanwhile
+          return;
+        }
+      }
+      waiter.complete(reject("timed out waiting"));
+    }
+
+    private void release() {
+      CompletableFuture<Permit> waiter;
+      synchronized (this) {
+        waiter = waiters.poll();
+        if (waiter == null) {
+          available++;
+          return;
+        }
+      }
+      // Completed outside the lock, as it resumes the waiting submission
+      waiter.complete(newPermit());
+    }
+
+    private Permit newPermit() {
+      AtomicBoolean released = new AtomicBoolean();
+      return () -> {
+        if (released.compareAndSet(false, true)) {
+          release();
+        }
+      };
+    }
+
+    private Permit reject(String reason) {
+      log.warn("Rejecting query submission for routing group [{}], {}", routingGroup, reason);
+      rejectedMeter.mark();
+      return null;
+    }
+  }
+}
@@ -0,0 +1,26 @@
+package com.lyft.data.gateway.ha.admission;
+
+import java.util.HashMap;
+import java.util.Map;
+import lombok.Data;
+
+/**
+ * Content of the rate limit rules file. Query submissions are limited by user, source and routing
+ * group, a submission is throttled if any of the limits that apply to it is exceeded.
+ */
+@Data
+public class RateLimitRules {
+  private Map<String, Limit> users = new HashMap<>();
+  private Map<String, Limit> sources = new HashMap<>();
+  private Map<String, Limit> routingGroups = new HashMap<>();
+  // Applies to each user that is not listed in users
+  private Limit defaultUserLimit;
+
+  @Data
+  public static class Limit {
+    // Sustained rate of query submissions
+    private double requestsPerSecond;
+    // Submissions allowed at once after a quiet period
+    private int burst = 1;
+  }
+}
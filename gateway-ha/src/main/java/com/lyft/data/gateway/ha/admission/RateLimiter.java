@@ -0,0 +1,278 @@
+package com.lyft.data.gateway.ha.admission;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import com.google.common.base.Strings;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Rate limits query submissions by user, source and routing group with token buckets. The limits
+ * are read from a YAML file, which is checked for changes at most once per reload interval and
+ * reloaded without a restart. The bucket of a key, and its throttle meter, are dropped once the
+ * key has been idle long enough for the bucket to be full again, so that the buckets of all the
+ * users ever seen are not kept. The throttle meter of a key is shared by its buckets of every
+ * version of the rules, and is removed once none of them is left.
+ */
+@Slf4j
+public class RateLimiter {
+  private static final ObjectMapper YAML_MAPPER = new ObjectMapper(new YAMLFactory());
+  // Shortest time a bucket is kept without being used
+  private static final long MIN_IDLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+  private final File rulesFile;
+  private final long reloadIntervalNanos;
+  private final MetricRegistry metrics;
+  private final Ticker ticker;
+  // Throttle meters by name, with the number of buckets using them
+  private final Map<String, ThrottleMeter> throttleMeters = new ConcurrentHashMap<>();
+  private volatile long nextReloadCheck;
+  private volatile long rulesLastModified;
+  private volatile Buckets buckets;
+
+  public RateLimiter(String rulesConfigPath, int reloadIntervalSeconds, MetricRegistry metrics) {
+    this(rulesConfigPath, reloadIntervalSeconds, metrics, Ticker.systemTicker());
+  }
+
+  RateLimiter(
+      String rulesConfigPath, int reloadIntervalSeconds, MetricRegistry metrics, Ticker ticker) {
+    this.rulesFile = new File(rulesConfigPath);
+    this.reloadIntervalNanos = TimeUnit.SECONDS.toNanos(reloadIntervalSeconds);
+    this.metrics = metrics;
+    this.ticker = ticker;
+    this.buckets = new Buckets(new RateLimitRules());
+    this.nextReloadCheck = ticker.read();
+    reloadIfModified(ticker.read());
+  }
+
+  /**
+   * Takes a token from each of the buckets a query submission is limited by. If one of them is
+   * empty, the tokens already taken from the others are given back, so that a throttled
+   * submission does not count against any limit.
+   *
+   * @param user user submitting the query, or null
+   * @param source source of the query, or null
+   * @param routingGroup routing group the query is routed to, or null
+   * @return false if the submission is throttled
+   */
+  public boolean tryAcquire(String user, String source, String routingGroup) {
+    long now = ticker.read();
+    if (now - nextReloadCheck >= 0) {
+      reloadIfModified(now);
+    }
+    Buckets current = buckets;
+    KeyBucket userBucket = current.find("user", user, current.userBuckets);
+    KeyBucket sourceBucket = current.find("source", source, current.sourceBuckets);
+    KeyBucket routingGroupBucket =
+        current.find("routingGroup", routingGroup, current.routingGroupBuckets);
+    if (!tryAcquire(userBucket, now)) {
+      return false;
+    }
+    if (!tryAcquire(sourceBucket, now)) {
+      release(userBucket);
+      return false;
+    }
+    if (!tryAcquire(routingGroupBucket, now)) {
+      release(sourceBucket);
+      release(userBucket);
+      return false;
+    }
+    return true;
+  }
+
+  private static boolean tryAcquire(KeyBucket bucket, long now) {
+    if (bucket == null || bucket.tokenBucket.tryAcquire(now)) {
+      return true;
+    }
+    bucket.throttledMeter.mark();
+    log.debug("Throttling query submission for {} [{}]", bucket.type, bucket.key);
+    return false;
+  }
+
+  private static void release(KeyBucket bucket) {
+    if (bucket != null) {
+      bucket.tokenBucket.release();
+    }
+  }
+
+  private synchronized void reloadIfModified(long now) {
+    if (now - nextReloadCheck < 0) {
+      // Another thread just checked
+      return;
+    }
+    nextReloadCheck = now + reloadIntervalNanos;
+    // Idle buckets are otherwise only dropped when their cache segment is written
+    buckets.cleanUp();
+    long lastModified = rulesFile.lastModified();
+    if (lastModified == 0 || lastModified == rulesLastModified) {
+      return;
+    }
+    try {
+      RateLimitRules rules = YAML_MAPPER.readValue(rulesFile, RateLimitRules.class);
+      Buckets previous = buckets;
+      buckets = new Buckets(rules);
+      // Dropped once replaced, so that threads still using them do not add buckets afterwards
+      previous.retire();
+      rulesLastModified = lastModified;
+      log.info("Loaded rate limits from [{}]", rulesFile);
+    } catch (Exception e) {
+      log.error("Error reading rate limits from [{}], keeping the previous limits", rulesFile, e);
+    }
+  }
+
+  private Meter acquireMeter(String meterName) {
+    return throttleMeters.compute(meterName, (name, throttleMeter) -> {
+      ThrottleMeter acquired =
+          throttleMeter == null ? new ThrottleMeter(metrics.meter(name)) : throttleMeter;
+      acquired.buckets++;
+      return acquired;
+    }).meter;
+  }
+
+  private void releaseMeter(String meterName) {
+    throttleMeters.computeIfPresent(meterName, (name, throttleMeter) -> {
+      if (--throttleMeter.buckets > 0) {
+        return throttleMeter;
+      }
+      // The registry may hold another meter of the same name, registered by someone else
+      if (metrics.getMetrics().get(name) == throttleMeter.meter) {
+        metrics.remove(name);
+      }
+      return null;
+    });
+  }
+
+  /** Buckets of a version of the rules, created as keys are seen. */
+  private class Buckets {
+    private final RateLimitRules rules;
+    private final Cache<String, KeyBucket> userBuckets;
+    private final Cache<String, KeyBucket> sourceBuckets;
+    private final Cache<String, KeyBucket> routingGroupBuckets;
+    private volatile boolean retired;
+
+    Buckets(RateLimitRules rules) {
+      this.rules = rules;
+      long idleNanos = findIdleNanos(rules);
+      this.userBuckets = newCache(idleNanos);
+      this.sourceBuckets = newCache(idleNanos);
+      this.routingGroupBuckets = newCache(idleNanos);
+    }
+
+    /**
+     * Returns the bucket limiting a key, or null if the key is not limited.
+     */
+    KeyBucket find(String type, String key, Cache<String, KeyBucket> keyBuckets) {
+      if (Strings.isNullOrEmpty(key)) {
+        return null;
+      }
+      KeyBucket bucket = keyBuckets.getIfPresent(key);
+      if (bucket == null) {
+        RateLimitRules.Limit limit = findLimit(type, key);
+        if (limit == null) {
+          return null;
+        }
+        bucket = keyBuckets.asMap().computeIfAbsent(key, k -> new KeyBucket(type, k, limit));
+        if (retired) {
+          // Added after the buckets were dropped, still used for this submission only
+          keyBuckets.invalidate(key);
+        }
+      }
+      return bucket;
+    }
+
+    void cleanUp() {
+      userBuckets.cleanUp();
+      sourceBuckets.cleanUp();
+      routingGroupBuckets.cleanUp();
+    }
+
+    void retire() {
+      retired = true;
+      userBuckets.invalidateAll();
+      sourceBuckets.invalidateAll();
+      routingGroupBuckets.invalidateAll();
+    }
+
+    private RateLimitRules.Limit findLimit(String type, String key) {
+      switch (type) {
+        case "user":
+          return rules.getUsers().getOrDefault(key, rules.getDefaultUserLimit());
+        case "source":
+          return rules.getSources().get(key);
+        default:
+          return rules.getRoutingGroups().get(key);
+      }
+    }
+
+    private Cache<String, KeyBucket> newCache(long idleNanos) {
+      return CacheBuilder.newBuilder()
+          .expireAfterAccess(idleNanos, TimeUnit.NANOSECONDS)
+          .ticker(ticker)
+          .removalListener((RemovalNotification<String, KeyBucket> notification) ->
+              releaseMeter(notification.getValue().meterName))
+          .build();
+    }
+  }
+
+  /**
+   * Returns how long a bucket is kept without being used. An empty bucket that has not been used
+   * for the time it takes to refill is full again, so dropping it then does not change the limits.
+   * Blocked buckets never refill, but a new one is just as blocked.
+   */
+  private static long findIdleNanos(RateLimitRules rules) {
+    List<RateLimitRules.Limit> limits = new ArrayList<>();
+    limits.addAll(rules.getUsers().values());
+    limits.addAll(rules.getSources().values());
+    limits.addAll(rules.getRoutingGroups().values());
+    if (rules.getDefaultUserLimit() != null) {
+      limits.add(rules.getDefaultUserLimit());
+    }
+    long idleNanos = MIN_IDLE_NANOS;
+    for (RateLimitRules.Limit limit : limits) {
+      if (limit.getRequestsPerSecond() > 0) {
+        long refillNanos = (long) (TimeUnit.SECONDS.toNanos(Math.max(limit.getBurst(), 1))
+            / limit.getRequestsPerSecond());
+        idleNanos = Math.max(idleNanos, refillNanos);
+      }
+    }
+    return idleNanos;
+  }
+
+  private class KeyBucket {
+    private final String type;
+    private final String key;
+    private final TokenBucket tokenBucket;
+    private final String meterName;
+    private final Meter throttledMeter;
+
+    KeyBucket(String type, String key, RateLimitRules.Limit limit) {
+      this.type = type;
+      this.key = key;
+      this.tokenBucket = new TokenBucket(limit.getRequestsPerSecond(), limit.getBurst());
+      this.meterName = MetricRegistry.name(RateLimiter.class, type, key, "throttled");
+      this.throttledMeter = acquireMeter(meterName);
+    }
+  }
+
+  private static class ThrottleMeter {
+    private final Meter meter;
+    // Guarded by the compute calls on throttleMeters
+    private int buckets;
+
+    ThrottleMeter(Meter meter) {
+      this.meter = meter;
+    }
+  }
+}
@@ -0,0 +1,57 @@
+package com.lyft.data.gateway.ha.admission;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock free token bucket. Instead of a token count refilled over time, the bucket keeps the time
+ * at which it would be full again, which is a single value updated with compare and set. A request
+ * is allowed if taking its token does not push that time more than burst tokens ahead of now.
+ */
+public class TokenBucket {
+  private final boolean blocked;
+  private final long nanosPerToken;
+  private final long burstNanos;
+  private final AtomicLong fullAt = new AtomicLong(Long.MIN_VALUE);
+
+  public TokenBucket(double tokensPerSecond, int burst) {
+    // A rate of zero blocks every request
+    this.blocked = tokensPerSecond <= 0;
+    this.nanosPerToken = blocked ? 0 : (long) (TimeUnit.SECONDS.toNanos(1) / tokensPerSecond);
+    this.burstNanos = nanosPerToken * Math.max(burst, 1);
+  }
+
+  /**
+   * Takes a token if one is available.
+   *
+   * @param nowNanos current time, as returned by System.nanoTime()
+   * @return true if a token was taken
+   */
+  public boolean tryAcquire(long nowNanos) {
+    if (blocked) {
+      return false;
+    }
+    while (true) {
+      long current = fullAt.get();
+      long next = (current == Long.MIN_VALUE || current - nowNanos < 0 ? nowNanos : current)
+          + nanosPerToken;
+      if (next - nowNanos > burstNanos) {
+        return false;
+      }
+      if (fullAt.compareAndSet(current, next)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Gives back a token taken by {@link #tryAcquire(long)}, for a request that ends up not being
+   * allowed.
+   */
+  public void release() {
+    if (!blocked) {
+      // Past times are treated as full, so this never holds more than the burst
+      fullAt.addAndGet(-nanosPerToken);
+    }
+  }
+}
@@ -3,7 +3,8 @@ package com.lyft.data.gateway.ha.clustermonitor;
 import static com.lyft.data.gateway.ha.handler.QueryIdCachingProxyHandler.UI_API_QUEUED_LIST_PATH;
 import static com.lyft.data.gateway.ha.handler.QueryIdCachingProxyHandler.UI_API_STATS_PATH;
 
-import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Strings;
 import com.google.inject.Inject;
@@ -11,22 +12,14 @@ import com.lyft.data.gateway.ha.config.MonitorConfiguration;
 import com.lyft.data.gateway.ha.config.ProxyBackendConfiguration;
 import com.lyft.data.gateway.ha.router.GatewayBackendManager;
 import io.dropwizard.lifecycle.Managed;
-import io.trino.jdbc.TrinoDriver;
-import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
 import java.net.URL;
-import java.sql.Connection;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Properties;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -52,13 +45,11 @@ public class ActiveClusterMonitor implements Managed {
   private volatile boolean monitorActive = true;
   private final String jwt;
   private final boolean isUseJwt;
-  private int jdbcPort;
-  private boolean jdbcUseSsl;
 
   private ExecutorService executorService = Executors.newFixedThreadPool(DEFAULT_THREAD_POOL_SIZE);
   private ExecutorService singleTaskExecutor = Executors.newSingleThreadExecutor();
 
-  TrinoDriver driver;
+  private final JdbcClusterStatsCollector jdbcStatsCollector;
 
   @Inject
   public ActiveClusterMonitor(
@@ -79,9 +70,8 @@ public class ActiveClusterMonitor implements Managed {
       this.isUseJwt = false;
       this.jwt = "";
     }
-    this.jdbcPort = monitorConfiguration.getJdbcPort();
-    this.jdbcUseSsl = monitorConfiguration.isJdbcUseSsl();
-    driver = new TrinoDriver();
+    this.jdbcStatsCollector = new JdbcClusterStatsCollector(monitorConfiguration.getJdbcPort(),
+        monitorConfiguration.isJdbcUseSsl(), jwt, connectionTimeout);
 
     log.info("Running cluster monitor with connection timeout of {} and task delay of {}",
         connectionTimeout, taskDelayMin);
@@ -97,6 +87,9 @@ public class ActiveClusterMonitor implements Managed {
             try {
               List<ProxyBackendConfiguration> activeClusters =
                   gatewayBackendManager.getAllActiveBackends();
+              if (isUseJwt) {
+                jdbcStatsCollector.retainBackends(activeClusters);
+              }
               List<Future<ClusterStats>> futures = new ArrayList<>();
               for (ProxyBackendConfiguration backend : activeClusters) {
                 Future<ClusterStats> call =
@@ -127,7 +120,7 @@ public class ActiveClusterMonitor implements Managed {
         });
   }
 
-  private String queryCluster(String target) {
+  private <T> T queryCluster(String target, ResponseReader<T> responseReader) {
     HttpURLConnection conn = null;
     try {
       URL url = new URL(target);
@@ -138,15 +131,9 @@ public class ActiveClusterMonitor implements Managed {
       conn.connect();
       int responseCode = conn.getResponseCode();
       if (responseCode == HttpStatus.SC_OK) {
-        BufferedReader reader =
-                new BufferedReader(new InputStreamReader((InputStream) conn.getContent()));
-        StringBuilder sb = new StringBuilder();
-        String line;
-        while ((line = reader.readLine()) != null) {
-          sb.append(line + "\n");
+        try (InputStream in = conn.getInputStream()) {
+          return responseReader.read(in);
         }
-
-        return sb.toString();
       } else {
         log.warn("Received non 200 response, response code: {}", responseCode);
       }
@@ -160,59 +147,43 @@ public class ActiveClusterMonitor implements Managed {
     return null;
   }
 
-  private ClusterStats getPrestoClusterStats(ProxyBackendConfiguration backend) {
-    if (isUseJwt) {
-      return getPrestoClusterStatsSql(backend);
+  /**
+   * Counts the queued queries of each user in a query list, as returned by the UI api. The list
+   * is parsed as it is read and only the session user of each query is kept, so large queues do
+   * not have to be held in memory.
+   */
+  static Map<String, Integer> countQueuedQueriesByUser(InputStream in) throws IOException {
+    Map<String, int[]> counts = new HashMap<>();
+    try (JsonParser parser = OBJECT_MAPPER.getFactory().createParser(in)) {
+      if (parser.nextToken() != JsonToken.START_ARRAY) {
+        throw new IOException("Expected a list of queries");
+      }
+      while (parser.nextToken() == JsonToken.START_OBJECT) {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+          String field = parser.getCurrentName();
+          JsonToken value = parser.nextToken();
+          if (SESSION_USER.equals(field) && value == JsonToken.VALUE_STRING) {
+            counts.computeIfAbsent(parser.getText(), k -> new int[1])[0]++;
+          } else {
+            parser.skipChildren();
+          }
+        }
+      }
     }
-    return getPrestoClusterStatsUi(backend);
+    Map<String, Integer> userQueuedCount = new HashMap<>();
+    counts.forEach((user, count) -> userQueuedCount.put(user, count[0]));
+    return userQueuedCount;
   }
 
-  private ClusterStats getPrestoClusterStatsSql(ProxyBackendConfiguration backend) {
-    ClusterStats clusterStats = new ClusterStats();
-    clusterStats.setClusterId(backend.getName());
-    String jdbcUrl;
-    try {
-      jdbcUrl = String.format("jdbc:trino://%s:%s/system/runtime",
-              (new URL(backend.getProxyTo())).getHost(), jdbcPort);
-    } catch (MalformedURLException e) {
-      log.debug("Cannot construct URL from " + backend.getProxyTo());
-      clusterStats.setHealthy(false);
-      return clusterStats;
-    }
-    Properties connectionProperties = new Properties();
-    if (isUseJwt) {
-      connectionProperties.setProperty("accessToken", jwt);
-    }
-    connectionProperties.setProperty("SSL", Boolean.toString(jdbcUseSsl));
-
-    try (Connection conn = driver.connect(jdbcUrl, connectionProperties)) {
-      Statement statement = conn.createStatement();
-      String queryStatsSql = "select\n"
-              + "  count_if(upper(state) = 'RUNNING') as runningQueries,\n"
-              + "  count_if(upper(state) = 'QUEUED') as queuedQueries,\n"
-              + "  count_if(upper(state) = 'BLOCKED') as blockedQueries\n"
-              + "from system.runtime.queries";
-      ResultSet queryStatsResult = statement.executeQuery(queryStatsSql);
-      queryStatsResult.next();
-      clusterStats.setQueuedQueryCount(queryStatsResult.getInt("queuedQueries"));
-      clusterStats.setRunningQueryCount(queryStatsResult.getInt("runningQueries"));
-      clusterStats.setBlockedQueryCount(queryStatsResult.getInt("blockedQueries"));
-
-      String nodeStatsSql = "select\n"
-              + "count_if( not coordinator AND upper(state) = 'ACTIVE') as activeWorkers\n"
-              + "from system.runtime.nodes";
-      ResultSet nodeStatsResult = statement.executeQuery(nodeStatsSql);
-      nodeStatsResult.next();
-      clusterStats.setNumWorkerNodes(nodeStatsResult.getInt("activeWorkers"));
-      clusterStats.setProxyTo(backend.getProxyTo());
-      clusterStats.setExternalUrl(backend.getExternalUrl());
-      clusterStats.setRoutingGroup(backend.getRoutingGroup());
-      clusterStats.setHealthy(true);
-      return clusterStats;
-    } catch (SQLException e) {
-      log.error("Error querying cluster stats: " + e);
-    }
-    clusterStats.setHealthy(false);
+  private ClusterStats getPrestoClusterStats(ProxyBackendConfiguration backend) {
+    long start = System.nanoTime();
+    ClusterStats clusterStats = isUseJwt
+        ? jdbcStatsCollector.collect(backend)
+        : getPrestoClusterStatsUi(backend);
+    clusterStats.setCollectionLatencyMillis(
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    log.debug("Collected stats of [{}] in {} ms", backend.getName(),
+        clusterStats.getCollectionLatencyMillis());
     return clusterStats;
   }
 
@@ -222,16 +193,14 @@ public class ActiveClusterMonitor implements Managed {
 
     // Fetch Cluster level Stats.
     String target = backend.getProxyTo() + UI_API_STATS_PATH;
-    String response = queryCluster(target);
-    if (Strings.isNullOrEmpty(response)) {
-      log.error("Received null/empty response for {}", target);
+    HashMap<String, Object> result =
+        queryCluster(target, in -> OBJECT_MAPPER.readValue(in, HashMap.class));
+    if (result == null) {
+      log.error("Received no cluster stats from {}", target);
       return  clusterStats;
     }
     clusterStats.setHealthy(true);
     try {
-      HashMap<String, Object> result = null;
-      result = OBJECT_MAPPER.readValue(response, HashMap.class);
-
       clusterStats.setNumWorkerNodes((int) result.get("activeWorkers"));
       clusterStats.setQueuedQueryCount((int) result.get("queuedQueries"));
       clusterStats.setRunningQueryCount((int) result.get("runningQueries"));
@@ -241,28 +210,17 @@ public class ActiveClusterMonitor implements Managed {
       clusterStats.setRoutingGroup(backend.getRoutingGroup());
 
     } catch (Exception e) {
-      log.error("Error parsing cluster stats from [{}]", response, e);
+      log.error("Error parsing cluster stats from [{}]", result, e);
     }
 
     // Fetch User Level Stats.
-    Map<String, Integer> clusterUserStats = new HashMap<>();
     target = backend.getProxyTo() + UI_API_QUEUED_LIST_PATH;
-    response = queryCluster(target);
-    if (Strings.isNullOrEmpty(response)) {
-      log.error("Received null/empty response for {}", target);
+    Map<String, Integer> clusterUserStats =
+        queryCluster(target, ActiveClusterMonitor::countQueuedQueriesByUser);
+    if (clusterUserStats == null) {
+      log.error("Received no queued queries from {}", target);
       return clusterStats;
     }
-    try {
-      List<Map<String, Object>> queries = OBJECT_MAPPER.readValue(response,
-            new TypeReference<List<Map<String, Object>>>(){});
-
-      for (Map<String, Object> q : queries) {
-        String user = (String) q.get(SESSION_USER);
-        clusterUserStats.put(user, clusterUserStats.getOrDefault(user, 0) + 1);
-      }
-    } catch (Exception e) {
-      log.error("Error parsing cluster user stats: {}", e);
-    }
     clusterStats.setUserQueuedCount(clusterUserStats);
 
     return clusterStats;
@@ -275,6 +233,10 @@ public class ActiveClusterMonitor implements Managed {
     this.monitorActive = false;
     this.executorService.shutdown();
     this.singleTaskExecutor.shutdown();
+    this.jdbcStatsCollector.closeAll();
   }
 
+  private interface ResponseReader<T> {
+    T read(InputStream in) throws IOException;
+  }
 }
@@ -18,4 +18,5 @@ public class ClusterStats {
   private String externalUrl;
   private String routingGroup;
   private Map<String, Integer> userQueuedCount;
+  private long collectionLatencyMillis;
 }
@@ -0,0 +1,141 @@
+package com.lyft.data.gateway.ha.clustermonitor;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+import lombok.Data;
+
+/**
+ * Keeps the latest cluster stats samples of each cluster in memory. Each cluster has a ring buffer
+ * of primitive arrays with a fixed number of samples, so the memory used does not grow with
+ * uptime. Once a buffer is full the oldest sample is overwritten.
+ */
+public class ClusterStatsHistory implements PrestoClusterStatsObserver {
+  private final int capacity;
+  private final LongSupplier clock;
+  private final Map<String, Series> clusters = new ConcurrentHashMap<>();
+
+  public ClusterStatsHistory(int capacity) {
+    this(capacity, System::currentTimeMillis);
+  }
+
+  public ClusterStatsHistory(int capacity, LongSupplier clock) {
+    this.capacity = Math.max(capacity, 1);
+    this.clock = clock;
+  }
+
+  @Override
+  public void observe(List<ClusterStats> stats) {
+    long timestamp = clock.getAsLong();
+    for (ClusterStats clusterStats : stats) {
+      if (clusterStats.getClusterId() != null) {
+        clusters.computeIfAbsent(clusterStats.getClusterId(), k -> new Series(capacity))
+            .add(timestamp, clusterStats);
+      }
+    }
+  }
+
+  /**
+   * Returns the samples of the clusters, oldest first. When a cluster has more than maxPoints
+   * samples, consecutive samples are merged so that at most maxPoints are returned: the counts and
+   * the latency are averaged, and a merged sample is healthy only if all of its samples were.
+   *
+   * @param clusterId a cluster, or null for all clusters
+   * @param maxPoints the maximum number of samples per cluster
+   * @return the samples by cluster
+   */
+  public Map<String, List<Sample>> getHistory(String clusterId, int maxPoints) {
+    Map<String, List<Sample>> history = new LinkedHashMap<>();
+    for (Map.Entry<String, Series> entry : new TreeMap<>(clusters).entrySet()) {
+      if (clusterId == null || clusterId.equals(entry.getKey())) {
+        history.put(entry.getKey(), entry.getValue().samples(Math.max(maxPoints, 1)));
+      }
+    }
+    return history;
+  }
+
+  private static class Series {
+    private final long[] timestamps;
+    private final int[] queued;
+    private final int[] running;
+    private final int[] blocked;
+    private final int[] workers;
+    private final boolean[] healthy;
+    private final int[] latencyMillis;
+    private int next;
+    private int size;
+
+    Series(int capacity) {
+      timestamps = new long[capacity];
+      queued = new int[capacity];
+      running = new int[capacity];
+      blocked = new int[capacity];
+      workers = new int[capacity];
+      healthy = new boolean[capacity];
+      latencyMillis = new int[capacity];
+    }
+
+    synchronized void add(long timestamp, ClusterStats stats) {
+      timestamps[next] = timestamp;
+      queued[next] = stats.getQueuedQueryCount();
+      running[next] = stats.getRunningQueryCount();
+      blocked[next] = stats.getBlockedQueryCount();
+      workers[next] = stats.getNumWorkerNodes();
+      healthy[next] = stats.isHealthy();
+      latencyMillis[next] = (int) Math.min(stats.getCollectionLatencyMillis(), Integer.MAX_VALUE);
+      next = (next + 1) % timestamps.length;
+      size = Math.min(size + 1, timestamps.length);
+    }
+
+    synchronized List<Sample> samples(int maxPoints) {
+      int points = Math.min(size, maxPoints);
+      int oldest = (next - size + timestamps.length) % timestamps.length;
+      List<Sample> samples = new ArrayList<>(points);
+      for (int point = 0; point < points; point++) {
+        // Each point merges the samples in [from, to)
+        int from = (int) ((long) point * size / points);
+        int to = (int) ((long) (point + 1) * size / points);
+        long queuedSum = 0;
+        long runningSum = 0;
+        long blockedSum = 0;
+        long workersSum = 0;
+        long latencySum = 0;
+        boolean allHealthy = true;
+        int index = 0;
+        for (int i = from; i < to; i++) {
+          index = (oldest + i) % timestamps.length;
+          queuedSum += queued[index];
+          runningSum += running[index];
+          blockedSum += blocked[index];
+          workersSum += workers[index];
+          latencySum += latencyMillis[index];
+          allHealthy &= healthy[index];
+        }
+        int count = to - from;
+        samples.add(new Sample(timestamps[index], average(queuedSum, count),
+            average(runningSum, count), average(blockedSum, count), average(workersSum, count),
+            allHealthy, average(latencySum, count)));
+      }
+      return samples;
+    }
+
+    private static int average(long sum, int count) {
+      return (int) Math.round((double) sum / count);
+    }
+  }
+
+  @Data
+  public static class Sample {
+    private final long timestamp;
+    private final int queuedQueryCount;
+    private final int runningQueryCount;
+    private final int blockedQueryCount;
+    private final int numWorkerNodes;
+    private final boolean healthy;
+    private final int collectionLatencyMillis;
+  }
+}
@@ -1,47 +1,36 @@
 package com.lyft.data.gateway.ha.clustermonitor;
 
-import com.lyft.data.gateway.ha.notifier.Notifier;
+import com.lyft.data.gateway.ha.notifier.AlertDispatcher;
 import java.util.List;
 
 public class HealthChecker implements PrestoClusterStatsObserver {
+  static final String CLUSTER_UNHEALTHY = "Cluster unhealthy";
+  static final String TOO_MANY_QUEUED_QUERIES = "Too many queued queries";
+  static final String NO_WORKERS = "Number of workers";
   private static final int MAX_THRESHOLD_QUEUED_QUERY_COUNT = 100;
-  private Notifier notifier;
+  private AlertDispatcher alertDispatcher;
 
-  public HealthChecker(Notifier notifier) {
-    this.notifier = notifier;
+  public HealthChecker(AlertDispatcher alertDispatcher) {
+    this.alertDispatcher = alertDispatcher;
   }
 
+  /**
+   * Hands the state of each condition to the dispatcher, which only alerts on changes and sends
+   * the alerts from its own thread, so a slow mail server does not delay the stats refresh.
+   */
   @Override
   public void observe(List<ClusterStats> clustersStats) {
     for (ClusterStats clusterStats : clustersStats) {
-      if (!clusterStats.isHealthy()) {
-        notifyUnhealthyCluster(clusterStats);
-      } else {
-        if (clusterStats.getQueuedQueryCount() > MAX_THRESHOLD_QUEUED_QUERY_COUNT) {
-          notifyForTooManyQueuedQueries(clusterStats);
-        }
-        if (clusterStats.getNumWorkerNodes() < 1) {
-          notifyForNoWorkers(clusterStats);
-        }
+      String clusterId = clusterStats.getClusterId();
+      String details = clusterStats.toString();
+      alertDispatcher.update(clusterId, CLUSTER_UNHEALTHY, !clusterStats.isHealthy(), details);
+      if (clusterStats.isHealthy()) {
+        // The counts of an unhealthy cluster are unknown, keep the last state until it recovers
+        alertDispatcher.update(clusterId, TOO_MANY_QUEUED_QUERIES,
+            clusterStats.getQueuedQueryCount() > MAX_THRESHOLD_QUEUED_QUERY_COUNT, details);
+        alertDispatcher.update(clusterId, NO_WORKERS,
+            clusterStats.getNumWorkerNodes() < 1, details);
       }
     }
   }
-
-  private void notifyUnhealthyCluster(ClusterStats clusterStats) {
-    notifier.sendNotification(String.format("%s - Cluster unhealthy",
-        clusterStats.getClusterId()),
-        clusterStats.toString());
-  }
-
-  private void notifyForTooManyQueuedQueries(ClusterStats clusterStats) {
-    notifier.sendNotification(String.format("%s - Too many queued queries",
-        clusterStats.getClusterId()), clusterStats.toString());
-  }
-
-  private void notifyForNoWorkers(ClusterStats clusterStats) {
-    notifier.sendNotification(String.format("%s - Number of workers",
-        clusterStats.getClusterId()), clusterStats.toString());
-  }
-
-
 }
@@ -0,0 +1,162 @@
+package com.lyft.data.gateway.ha.clustermonitor;
+
+import com.lyft.data.gateway.ha.config.ProxyBackendConfiguration;
+import io.trino.jdbc.TrinoDriver;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Collects cluster stats from the system.runtime tables over JDBC. A connection is kept per
+ * backend and reused across polls, and the query, worker and per user queued counts are read in a
+ * single query. A connection that fails is closed and opened again on the next poll.
+ */
+@Slf4j
+public class JdbcClusterStatsCollector {
+  static final String CLUSTER_STATS_SQL = "with\n"
+      + "  q as (select \"user\", upper(state) as state from system.runtime.queries),\n"
+      + "  n as (select count_if(not coordinator and upper(state) = 'ACTIVE') as activeWorkers\n"
+      + "        from system.runtime.nodes)\n"
+      + "select\n"
+      + "  q.\"user\" as sessionUser,\n"
+      + "  grouping(q.\"user\") as isTotal,\n"
+      + "  count_if(q.state = 'RUNNING') as runningQueries,\n"
+      + "  count_if(q.state = 'QUEUED') as queuedQueries,\n"
+      + "  count_if(q.state = 'BLOCKED') as blockedQueries,\n"
+      + "  max(n.activeWorkers) as activeWorkers\n"
+      + "from n left join q on true\n"
+      + "group by grouping sets ((), (q.\"user\"))";
+
+  private final TrinoDriver driver = new TrinoDriver();
+  private final Map<String, Connection> connections = new ConcurrentHashMap<>();
+  private final int jdbcPort;
+  private final boolean useSsl;
+  private final String accessToken;
+  private final int queryTimeoutSeconds;
+
+  public JdbcClusterStatsCollector(
+      int jdbcPort, boolean useSsl, String accessToken, int queryTimeoutSeconds) {
+    this.jdbcPort = jdbcPort;
+    this.useSsl = useSsl;
+    this.accessToken = accessToken;
+    this.queryTimeoutSeconds = queryTimeoutSeconds;
+  }
+
+  public ClusterStats collect(ProxyBackendConfiguration backend) {
+    ClusterStats clusterStats = new ClusterStats();
+    clusterStats.setClusterId(backend.getName());
+    String jdbcUrl;
+    try {
+      jdbcUrl = jdbcUrl(backend);
+    } catch (MalformedURLException e) {
+      log.debug("Cannot construct URL from " + backend.getProxyTo());
+      clusterStats.setHealthy(false);
+      return clusterStats;
+    }
+
+    try {
+      Connection conn = connections.get(jdbcUrl);
+      if (conn == null) {
+        conn = driver.connect(jdbcUrl, connectionProperties());
+        connections.put(jdbcUrl, conn);
+      }
+      try (Statement statement = conn.createStatement()) {
+        statement.setQueryTimeout(queryTimeoutSeconds);
+        try (ResultSet resultSet = statement.executeQuery(CLUSTER_STATS_SQL)) {
+          readClusterStats(resultSet, clusterStats);
+        }
+      }
+      clusterStats.setProxyTo(backend.getProxyTo());
+      clusterStats.setExternalUrl(backend.getExternalUrl());
+      clusterStats.setRoutingGroup(backend.getRoutingGroup());
+      clusterStats.setHealthy(true);
+      return clusterStats;
+    } catch (SQLException e) {
+      log.error("Error querying cluster stats: " + e);
+      close(jdbcUrl);
+    }
+    clusterStats.setHealthy(false);
+    return clusterStats;
+  }
+
+  private String jdbcUrl(ProxyBackendConfiguration backend) throws MalformedURLException {
+    return String.format("jdbc:trino://%s:%s/system/runtime",
+        (new URL(backend.getProxyTo())).getHost(), jdbcPort);
+  }
+
+  private Properties connectionProperties() {
+    Properties connectionProperties = new Properties();
+    if (accessToken != null && !accessToken.isEmpty()) {
+      connectionProperties.setProperty("accessToken", accessToken);
+    }
+    connectionProperties.setProperty("SSL", Boolean.toString(useSsl));
+    return connectionProperties;
+  }
+
+  static void readClusterStats(ResultSet resultSet, ClusterStats clusterStats)
+      throws SQLException {
+    Map<String, Integer> userQueuedCount = new HashMap<>();
+    while (resultSet.next()) {
+      if (resultSet.getInt("isTotal") == 1) {
+        clusterStats.setQueuedQueryCount(resultSet.getInt("queuedQueries"));
+        clusterStats.setRunningQueryCount(resultSet.getInt("runningQueries"));
+        clusterStats.setBlockedQueryCount(resultSet.getInt("blockedQueries"));
+        clusterStats.setNumWorkerNodes(resultSet.getInt("activeWorkers"));
+      } else {
+        String user = resultSet.getString("sessionUser");
+        int queued = resultSet.getInt("queuedQueries");
+        if (user != null && queued > 0) {
+          userQueuedCount.put(user, queued);
+        }
+      }
+    }
+    clusterStats.setUserQueuedCount(userQueuedCount);
+  }
+
+  /**
+   * Closes the connections of the backends that are no longer monitored.
+   */
+  public void retainBackends(List<ProxyBackendConfiguration> backends) {
+    Set<String> jdbcUrls = new HashSet<>();
+    for (ProxyBackendConfiguration backend : backends) {
+      try {
+        jdbcUrls.add(jdbcUrl(backend));
+      } catch (MalformedURLException e) {
+        // Never connected
+      }
+    }
+    for (String jdbcUrl : connections.keySet()) {
+      if (!jdbcUrls.contains(jdbcUrl)) {
+        close(jdbcUrl);
+      }
+    }
+  }
+
+  public void closeAll() {
+    for (String jdbcUrl : connections.keySet()) {
+      close(jdbcUrl);
+    }
+  }
+
+  private void close(String jdbcUrl) {
+    Connection conn = connections.remove(jdbcUrl);
+    if (conn != null) {
+      try {
+        conn.close();
+      } catch (SQLException e) {
+        log.debug("Error closing connection to [{}]", jdbcUrl, e);
+      }
+    }
+  }
+}
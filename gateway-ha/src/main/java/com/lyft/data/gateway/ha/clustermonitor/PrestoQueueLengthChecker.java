@@ -1,5 +1,6 @@
 package com.lyft.data.gateway.ha.clustermonitor;
 
+import com.lyft.data.gateway.ha.config.RoutingConfiguration.QueueLengthFormula;
 import com.lyft.data.gateway.ha.router.PrestoQueueLengthRoutingTable;
 import java.util.HashMap;
 import java.util.List;
@@ -7,14 +8,55 @@ import java.util.Map;
 
 /**
  * Updates the QueueLength Based Routing Manager {@link PrestoQueueLengthRoutingTable} with
- * updated queue lengths of active clusters.
+ * updated queue lengths of active clusters. Blocked queries can be counted in the queue, as they
+ * show a cluster is out of memory, and the lengths can be normalized by the active workers so
+ * clusters of different sizes are weighted by their capacity.
  */
 public class PrestoQueueLengthChecker implements PrestoClusterStatsObserver {
+  // Normalized lengths are per this many workers, to stay precise as integers
+  static final int WORKER_SCALE = 100;
 
   PrestoQueueLengthRoutingTable routingManager;
+  private final QueueLengthFormula formula;
+  private final double blockedQueryWeight;
 
   public PrestoQueueLengthChecker(PrestoQueueLengthRoutingTable routingManager) {
+    this(routingManager, QueueLengthFormula.QUEUED, 0);
+  }
+
+  public PrestoQueueLengthChecker(
+      PrestoQueueLengthRoutingTable routingManager,
+      QueueLengthFormula formula,
+      double blockedQueryWeight) {
     this.routingManager = routingManager;
+    this.formula = formula;
+    this.blockedQueryWeight = blockedQueryWeight;
+  }
+
+  int getQueueLength(ClusterStats stat) {
+    return normalize(
+        stat.getQueuedQueryCount() + blockedQueryWeight * stat.getBlockedQueryCount(), stat);
+  }
+
+  int getRunningLength(ClusterStats stat) {
+    return normalize(stat.getRunningQueryCount(), stat);
+  }
+
+  /**
+   * Returns the queue length a single query adds to a cluster, which the routing table counts
+   * for the queries it routes until the next update.
+   */
+  double getRoutedQueryLength(ClusterStats stat) {
+    if (formula == QueueLengthFormula.QUEUED_PER_WORKER) {
+      // A cluster without active workers cannot run anything, it counts as a single worker
+      return (double) WORKER_SCALE / Math.max(stat.getNumWorkerNodes(), 1);
+    }
+    return 1;
+  }
+
+  private int normalize(double length, ClusterStats stat) {
+    // Rounded up so any queue counts
+    return (int) Math.ceil(length * getRoutedQueryLength(stat));
   }
 
   @Override
@@ -24,6 +66,7 @@ public class PrestoQueueLengthChecker implements PrestoClusterStatsObserver {
             = new HashMap<String, Map<String, Integer>>();
     Map<String, Map<String, Integer>> userClusterQueuedCount
             = new HashMap<>();
+    Map<String, Double> routedQueryLengths = new HashMap<>();
 
     for (ClusterStats stat : stats) {
       if (!stat.isHealthy()) {
@@ -33,23 +76,25 @@ public class PrestoQueueLengthChecker implements PrestoClusterStatsObserver {
       if (!clusterQueueMap.containsKey(stat.getRoutingGroup())) {
         clusterQueueMap.put(stat.getRoutingGroup(), new HashMap<String, Integer>() {
               {
-                put(stat.getClusterId(), stat.getQueuedQueryCount());
+                put(stat.getClusterId(), getQueueLength(stat));
               }
             }
         );
         clusterRunningMap.put(stat.getRoutingGroup(), new HashMap<String, Integer>() {
               {
-                put(stat.getClusterId(), stat.getRunningQueryCount());
+                put(stat.getClusterId(), getRunningLength(stat));
               }
             }
         );
       } else {
         clusterQueueMap.get(stat.getRoutingGroup()).put(stat.getClusterId(),
-            stat.getQueuedQueryCount());
+            getQueueLength(stat));
         clusterRunningMap.get(stat.getRoutingGroup()).put(stat.getClusterId(),
-                stat.getRunningQueryCount());
+                getRunningLength(stat));
       }
 
+      routedQueryLengths.put(stat.getClusterId(), getRoutedQueryLength(stat));
+
       // Create inverse map from user -> {cluster-> count}
       if (stat.getUserQueuedCount() != null && !stat.getUserQueuedCount().isEmpty()) {
         for (Map.Entry<String, Integer> queueCount : stat.getUserQueuedCount().entrySet()) {
@@ -61,6 +106,7 @@ public class PrestoQueueLengthChecker implements PrestoClusterStatsObserver {
       }
     }
 
-    routingManager.updateRoutingTable(clusterQueueMap, clusterRunningMap, userClusterQueuedCount);
+    routingManager.updateRoutingTable(
+        clusterQueueMap, clusterRunningMap, userClusterQueuedCount, routedQueryLengths);
   }
 }
@@ -0,0 +1,17 @@
+package com.lyft.data.gateway.ha.config;
+
+import lombok.Data;
+
+@Data
+public class AccessLogConfiguration {
+  private boolean enabled = true;
+  // Fraction of the requests logged for each kind of request
+  private double statementSampleRate = 1.0;
+  private double pollSampleRate = 0.01;
+  private double uiSampleRate = 0.1;
+  private double otherSampleRate = 0.1;
+  // Longest query text kept in a record
+  private int maxPayloadLength = 1000;
+  // Records waiting to be written, records are dropped rather than blocking when it is full
+  private int queueSize = 8192;
+}
@@ -0,0 +1,21 @@
+package com.lyft.data.gateway.ha.config;
+
+import java.util.HashMap;
+import java.util.Map;
+import lombok.Data;
+
+@Data
+public class AdmissionControlConfiguration {
+  // Limits on query submissions, by routing group. Routing groups not listed are not limited.
+  private Map<String, Limits> routingGroups = new HashMap<>();
+
+  @Data
+  public static class Limits {
+    // Queries running on the backends at the same time, a slot is held until the query completes
+    private int maxInFlight = 100;
+    // Submissions waiting for a slot, further ones are rejected right away
+    private int maxQueued = 100;
+    // How long a submission waits for a slot before being rejected
+    private long maxWaitMillis = 10000;
+  }
+}
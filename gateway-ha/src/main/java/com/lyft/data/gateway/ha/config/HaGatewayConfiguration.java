@@ -12,4 +12,10 @@ public class HaGatewayConfiguration extends AppConfiguration {
   private DataStoreConfiguration dataStore;
   private MonitorConfiguration monitor = new MonitorConfiguration();
   private RoutingRulesConfiguration routingRules = new RoutingRulesConfiguration();
+  private AdmissionControlConfiguration admissionControl = new AdmissionControlConfiguration();
+  private RateLimitConfiguration rateLimit = new RateLimitConfiguration();
+  private OutlierDetectionConfiguration outlierDetection = new OutlierDetectionConfiguration();
+  private RoutingConfiguration routing = new RoutingConfiguration();
+  private AccessLogConfiguration accessLog = new AccessLogConfiguration();
+  private PersistenceCacheConfiguration persistenceCache = new PersistenceCacheConfiguration();
 }
@@ -0,0 +1,15 @@
+package com.lyft.data.gateway.ha.config;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class ModelCacheConfiguration {
+  private boolean enabled = true;
+  // Cached queries of the table, the least recently used are evicted first
+  private long maximumSize = 1000;
+  private long ttlSeconds = 10;
+}
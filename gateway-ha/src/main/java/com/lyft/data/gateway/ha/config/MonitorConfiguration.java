@@ -11,4 +11,9 @@ public class MonitorConfiguration {
   private boolean useJwtAuth = false;
   private int jdbcPort = 443;
   private boolean jdbcUseSsl;
+  // Cluster stats samples kept per cluster, a day at the default task delay
+  private int historySize = 1440;
+  // Consecutive failed checks to stop routing to a backend, and successful ones to route again
+  private int unhealthyThreshold = 1;
+  private int healthyThreshold = 2;
 }
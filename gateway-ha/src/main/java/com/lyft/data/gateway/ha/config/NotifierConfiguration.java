@@ -13,4 +13,8 @@ public class NotifierConfiguration {
   private String smtpPassword;
   private String sender;
   private List<String> recipients;
+  // An alert is sent at most once per cooldown for each cluster and condition
+  private int alertCooldownSeconds = 900;
+  // Alerts raised within this window are sent as one notification
+  private int alertBatchWindowSeconds = 10;
 }
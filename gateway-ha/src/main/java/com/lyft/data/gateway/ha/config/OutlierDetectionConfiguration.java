@@ -0,0 +1,16 @@
+package com.lyft.data.gateway.ha.config;
+
+import lombok.Data;
+
+@Data
+public class OutlierDetectionConfiguration {
+  // Eject backends from routing of new queries on connect errors, timeouts and 5xx responses
+  private boolean enabled;
+  // Consecutive failures after which a backend is ejected
+  private int consecutiveFailures = 5;
+  // Duration of the first ejection, doubled on each further ejection
+  private long baseEjectionMillis = 10000;
+  private long maxEjectionMillis = 300000;
+  // How often an ejected backend is probed with a new query once its ejection expired
+  private long probeIntervalMillis = 1000;
+}
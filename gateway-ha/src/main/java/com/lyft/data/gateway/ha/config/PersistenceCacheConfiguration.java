@@ -0,0 +1,28 @@
+package com.lyft.data.gateway.ha.config;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import lombok.Data;
+
+@Data
+public class PersistenceCacheConfiguration {
+  // Policy of the cached tables without their own policy
+  private ModelCacheConfiguration defaults = new ModelCacheConfiguration();
+  // Policies by table name, replacing the ones below when set
+  private Map<String, ModelCacheConfiguration> models = defaultModels();
+  // Base urls of the other gateway instances, told to purge a table when it is written here
+  private List<String> peers = new ArrayList<>();
+  private int invalidationDelayMillis = 200;
+
+  private static Map<String, ModelCacheConfiguration> defaultModels() {
+    Map<String, ModelCacheConfiguration> models = new HashMap<>();
+    // Read on every routed query and rarely written
+    models.put("gateway_backend", new ModelCacheConfiguration(true, 100, 10));
+    // Already cached in memory by the routing manager, and written on every query
+    models.put("queryid", new ModelCacheConfiguration(false, 0, 0));
+    models.put("ui_request", new ModelCacheConfiguration(false, 0, 0));
+    return models;
+  }
+}
@@ -0,0 +1,11 @@
+package com.lyft.data.gateway.ha.config;
+
+import lombok.Data;
+
+@Data
+public class RateLimitConfiguration {
+  // YAML file with the rate limits, rate limiting is disabled if not set
+  private String rulesConfigPath;
+  // How often the rules file is checked for changes
+  private int reloadIntervalSeconds = 10;
+}
@@ -1,5 +1,7 @@
 package com.lyft.data.gateway.ha.config;
 
+import java.util.ArrayList;
+import java.util.List;
 import lombok.Data;
 
 @Data
@@ -20,10 +22,31 @@ public class RequestRouterConfiguration {
   // Use the certificate between gateway and presto?
   private boolean forwardKeystore;
 
+  // Accept h2 (over TLS) or h2c connections from clients in addition to HTTP/1.1
+  private boolean http2Enabled;
+
+  // Use HTTP/2 between the gateway and the backends. Backends must support h2 (or h2c)
+  private boolean backendHttp2Enabled;
+
+  // Write responses to clients without blocking a thread while a slow client drains them
+  private boolean asyncResponseWriteEnabled;
+
+  // Number of times a query submission is retried on another backend if the connection fails
+  private int maxConnectRetries = 2;
+
+  // Routing groups whose clients fetch query results straight from the coordinator external url
+  private List<String> directResultsRoutingGroups = new ArrayList<>();
+
   // By default non-whitelisted requests are rerouted to the application port.
   // Set this to false to if separate networking rules are required  
   private boolean rerouteRequestsToApplication = true;
   // attempt to lookup unknown query Ids if true, otherwise rely
   // on recording them in the DB
   private boolean lookupQueryIds = true;
+  // route queries on the coordinator id suffix of their query id, learnt from recorded queries
+  private boolean coordinatorIdRouting;
+
+  // Pin UI traffic to a backend with a cookie signed with these keys instead of a session stored
+  // in the DB. Cookies are signed with the first key and accepted with any of them.
+  private List<String> uiCookieSigningKeys = new ArrayList<>();
 }
@@ -0,0 +1,51 @@
+package com.lyft.data.gateway.ha.config;
+
+import java.util.HashMap;
+import java.util.Map;
+import lombok.Data;
+
+@Data
+public class RoutingConfiguration {
+  // Strategy of the routing groups without their own strategy
+  private Strategy defaultStrategy = Strategy.RANDOM;
+  // Strategies by routing group
+  private Map<String, Strategy> routingGroupStrategies = new HashMap<>();
+  // Tracks the running queries of each backend, so backends can be drained, which parses the
+  // head of every poll response. They are tracked anyway for the strategies that need them.
+  private boolean backendDraining = true;
+  // Queries no request was seen for during this time are no longer counted as outstanding
+  private int outstandingQueryIdleTimeoutSeconds = 300;
+  // What queries are hashed on by the consistent hash strategy
+  private RoutingKey routingKey = RoutingKey.USER;
+  // Points of each backend on the consistent hash ring, more spread the keys more evenly
+  private int virtualNodes = 100;
+  // A backend gets no more new queries once its outstanding queries exceed this times the average
+  private double loadFactor = 1.25;
+  // How the weighted queue length strategy measures the queue of a cluster
+  private QueueLengthFormula queueLengthFormula = QueueLengthFormula.QUEUED_PER_WORKER;
+  // Blocked queries count as this many queued queries, 0 leaves them out
+  private double blockedQueryWeight = 1.0;
+
+  public enum Strategy {
+    RANDOM,
+    LEAST_OUTSTANDING_QUERIES,
+    POWER_OF_TWO_CHOICES,
+    WEIGHTED_QUEUE_LENGTH,
+    CONSISTENT_HASH
+  }
+
+  public enum QueueLengthFormula {
+    // Queued queries
+    QUEUED,
+    // Queued queries per active worker
+    QUEUED_PER_WORKER
+  }
+
+  public enum RoutingKey {
+    USER,
+    SOURCE,
+    CLIENT_TAGS,
+    // The routingKey result of the routing rules engine
+    RULES_ENGINE
+  }
+}
@@ -0,0 +1,143 @@
+package com.lyft.data.gateway.ha.handler;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.lyft.data.gateway.ha.config.AccessLogConfiguration;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes one JSON record per proxied request to the access logger. Requests are sampled by kind,
+ * and the records are handed to a writer thread through a bounded queue. Proxy threads never wait
+ * on it: when the queue is full the record is dropped and counted instead.
+ */
+@Slf4j
+public class AccessLogger {
+  public static final String ACCESS_LOGGER_NAME = "com.lyft.data.gateway.ha.access";
+  private static final Logger ACCESS_LOG = LoggerFactory.getLogger(ACCESS_LOGGER_NAME);
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+  /** Kinds of requests, sampled at their own rate. */
+  public enum RequestKind {
+    STATEMENT,
+    POLL,
+    UI,
+    OTHER
+  }
+
+  private final AccessLogConfiguration configuration;
+  private final BlockingQueue<Map<String, Object>> queue;
+  private final Consumer<String> sink;
+  private final AtomicLong droppedRecords = new AtomicLong();
+
+  public AccessLogger(AccessLogConfiguration configuration) {
+    this(configuration, ACCESS_LOG::info);
+    Thread writer = new Thread(this::writeRecords, "access-log-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Creates an access logger without its writer thread, records are written by
+   * {@link AccessLogger#drain()}.
+   */
+  AccessLogger(AccessLogConfiguration configuration, Consumer<String> sink) {
+    this.configuration = configuration;
+    this.queue = new ArrayBlockingQueue<>(Math.max(configuration.getQueueSize(), 1));
+    this.sink = sink;
+  }
+
+  /**
+   * Decides whether a request is logged, so that its record is only built when it is.
+   */
+  public boolean isSampled(RequestKind kind) {
+    double rate;
+    switch (kind) {
+      case STATEMENT:
+        rate = configuration.getStatementSampleRate();
+        break;
+      case POLL:
+        rate = configuration.getPollSampleRate();
+        break;
+      case UI:
+        rate = configuration.getUiSampleRate();
+        break;
+      default:
+        rate = configuration.getOtherSampleRate();
+    }
+    return rate >= 1.0 || (rate > 0 && ThreadLocalRandom.current().nextDouble() < rate);
+  }
+
+  /**
+   * Queues a record for writing, or drops it if the queue is full.
+   */
+  public void log(Map<String, Object> record) {
+    if (!queue.offer(record)) {
+      droppedRecords.incrementAndGet();
+    }
+  }
+
+  /**
+   * Reads the truncated payload of a request, reading no more of it than needed to tell that it
+   * is truncated.
+   */
+  public String readPayload(Reader reader) throws IOException {
+    int limit = Math.max(configuration.getMaxPayloadLength(), 0) + 1;
+    char[] buffer = new char[Math.min(limit, 8192)];
+    StringBuilder payload = new StringBuilder();
+    int read;
+    while (payload.length() < limit
+        && (read = reader.read(buffer, 0, Math.min(buffer.length, limit - payload.length())))
+            != -1) {
+      payload.append(buffer, 0, read);
+    }
+    return truncate(payload.toString());
+  }
+
+  public String truncate(String payload) {
+    int maxLength = configuration.getMaxPayloadLength();
+    if (payload == null || payload.length() <= maxLength) {
+      return payload;
+    }
+    return payload.substring(0, Math.max(maxLength, 0)) + "...";
+  }
+
+  public long getDroppedRecords() {
+    return droppedRecords.get();
+  }
+
+  void drain() {
+    Map<String, Object> record;
+    while ((record = queue.poll()) != null) {
+      write(record);
+    }
+  }
+
+  private void writeRecords() {
+    while (true) {
+      try {
+        write(queue.take());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  private void write(Map<String, Object> record) {
+    try {
+      sink.accept(OBJECT_MAPPER.writeValueAsString(record));
+    } catch (JsonProcessingException | RuntimeException e) {
+      log.warn("Error writing access log record", e);
+    }
+  }
+}
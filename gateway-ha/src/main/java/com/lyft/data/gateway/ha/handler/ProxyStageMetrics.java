@@ -0,0 +1,68 @@
+package com.lyft.data.gateway.ha.handler;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SlidingWindowReservoir;
+import com.codahale.metrics.Timer;
+import com.google.common.base.Strings;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Latency timers for the stages of a proxied request, registered in the metric registry as
+ * proxy.[stage], proxy.[stage].routingGroup.[group] and proxy.[stage].backend.[backend]. The timers
+ * keep a fixed number of the latest samples, so the percentiles are exact for them instead of
+ * being biased toward older samples as with the default reservoir, and the memory of a timer does
+ * not grow with the request rate.
+ */
+public class ProxyStageMetrics {
+  public static final String STAGE_ROUTING_GROUP_SELECTION = "routingGroupSelection";
+  public static final String STAGE_BACKEND_SELECTION = "backendSelection";
+  public static final String STAGE_QUERY_ID_LOOKUP = "queryIdLookup";
+  public static final String STAGE_QUERY_ID_LOAD = "queryIdLoad";
+  public static final String STAGE_COOKIE_LOOKUP = "cookieLookup";
+  public static final String STAGE_COOKIE_LOAD = "cookieLoad";
+  public static final String STAGE_HISTORY_PERSISTENCE = "historyPersistence";
+
+  private static final String PREFIX = "proxy";
+  private static final Pattern NON_METRIC_CHARACTERS = Pattern.compile("[^A-Za-z0-9_-]+");
+  private static final int WINDOW_SAMPLES = 1024;
+
+  private final MetricRegistry metrics;
+
+  public ProxyStageMetrics(MetricRegistry metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Records the time a stage took.
+   *
+   * @param stage
+   * @param routingGroup the routing group of the request, or null if unknown
+   * @param backend the backend of the request, or null if unknown
+   * @param nanos
+   */
+  public void record(String stage, String routingGroup, String backend, long nanos) {
+    timer(MetricRegistry.name(PREFIX, stage)).update(nanos, TimeUnit.NANOSECONDS);
+    if (!Strings.isNullOrEmpty(routingGroup)) {
+      timer(MetricRegistry.name(PREFIX, stage, "routingGroup", routingGroup))
+          .update(nanos, TimeUnit.NANOSECONDS);
+    }
+    if (!Strings.isNullOrEmpty(backend)) {
+      timer(MetricRegistry.name(PREFIX, stage, "backend", backendName(backend)))
+          .update(nanos, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  /**
+   * Turns a backend url into a metric name part, http://presto1:8080 becomes presto1_8080.
+   */
+  static String backendName(String backend) {
+    int schemeEnd = backend.indexOf("://");
+    String address = schemeEnd < 0 ? backend : backend.substring(schemeEnd + 3);
+    return NON_METRIC_CHARACTERS.matcher(address).replaceAll("_");
+  }
+
+  private Timer timer(String name) {
+    return metrics.timer(name, () -> new Timer(new SlidingWindowReservoir(WINDOW_SAMPLES)));
+  }
+}
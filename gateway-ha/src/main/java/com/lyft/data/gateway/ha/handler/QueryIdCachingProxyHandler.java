@@ -1,24 +1,39 @@
 package com.lyft.data.gateway.ha.handler;
 
 import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Strings;
 import com.google.common.io.CharStreams;
+import com.lyft.data.gateway.ha.admission.AdmissionController;
+import com.lyft.data.gateway.ha.admission.RateLimiter;
+import com.lyft.data.gateway.ha.router.OutstandingQueryTracker;
 import com.lyft.data.gateway.ha.router.QueryHistoryManager;
 import com.lyft.data.gateway.ha.router.RoutingGroupSelector;
+import com.lyft.data.gateway.ha.router.RoutingKeyExtractor;
 import com.lyft.data.gateway.ha.router.RoutingManager;
 import com.lyft.data.proxyserver.ProxyHandler;
 import com.lyft.data.proxyserver.wrapper.MultiReadHttpServletRequest;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
 
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
@@ -27,6 +42,7 @@ import javax.ws.rs.HttpMethod;
 import lombok.extern.slf4j.Slf4j;
 import org.eclipse.jetty.client.api.Request;
 
+import org.eclipse.jetty.http.HttpHeader;
 import org.eclipse.jetty.http.HttpStatus;
 import org.eclipse.jetty.util.Callback;
 
@@ -46,6 +62,27 @@ public class QueryIdCachingProxyHandler extends ProxyHandler {
   public static final String SOURCE_HEADER = "X-Trino-Source";
   public static final String ALTERNATE_SOURCE_HEADER = "X-Presto-Source";
   public static final String HOST_HEADER = "Host";
+  public static final String DEFAULT_ROUTING_GROUP = "adhoc";
+  private static final String URI_REWRITER_ATTRIBUTE = QueryResultsUriRewriter.class.getName();
+  private static final String PINNED_BACKEND_ATTRIBUTE = SignedBackendCookie.class.getName();
+  private static final String ADMISSION_PERMIT_ATTRIBUTE =
+      AdmissionController.Permit.class.getName();
+  private static final String ADMISSION_REJECTED_ATTRIBUTE =
+      AdmissionController.class.getName() + ".rejected";
+  private static final String ADMISSION_CHECKED_ATTRIBUTE =
+      AdmissionController.class.getName() + ".checked";
+  private static final String RATE_LIMITED_ATTRIBUTE = RateLimiter.class.getName() + ".throttled";
+  private static final String TRIED_BACKENDS_ATTRIBUTE =
+      QueryIdCachingProxyHandler.class.getName() + ".triedBackends";
+  private static final String ROUTING_GROUP_ATTRIBUTE =
+      QueryIdCachingProxyHandler.class.getName() + ".routingGroup";
+  private static final String BACKEND_ATTRIBUTE =
+      QueryIdCachingProxyHandler.class.getName() + ".backend";
+  private static final String POLLED_QUERY_ID_ATTRIBUTE =
+      OutstandingQueryTracker.class.getName() + ".queryId";
+  private static final String LOGOUT_PATH = "/ui/api/insights/logout";
+  // Presto writes the nextUri of query results before the columns, data and stats
+  private static final int QUERY_RESULTS_HEAD_LENGTH = 8192;
   private static final int QUERY_TEXT_LENGTH_FOR_HISTORY = 200;
   private static final Pattern QUERY_ID_PATTERN = Pattern.compile(".*[/=?](\\d+_\\d+_\\d+_\\w+).*");
 
@@ -55,11 +92,24 @@ public class QueryIdCachingProxyHandler extends ProxyHandler {
 
   private final RoutingManager routingManager;
   private final RoutingGroupSelector routingGroupSelector;
+  // Only set when a routing strategy routes on a key of the query
+  private final RoutingKeyExtractor routingKeyExtractor;
   private final QueryHistoryManager queryHistoryManager;
 
   private final Meter requestMeter;
+  private final Meter retryMeter;
   private final int serverApplicationPort;
   private final boolean rerouteRequestsToApplication;
+  private final Set<String> directResultsRoutingGroups;
+  // Only set when UI traffic is pinned with signed cookies instead of sessions
+  private final SignedBackendCookie backendCookie;
+  // Only set when query submissions are limited for some routing groups
+  private final AdmissionController admissionController;
+  // Only set when query submissions are rate limited
+  private final RateLimiter rateLimiter;
+  private final ProxyStageMetrics stageMetrics;
+  // Only set when access logging is enabled
+  private final AccessLogger accessLogger;
 
   private final Map<Integer, String> requestIdBackendMap = new HashMap<>();
 
@@ -70,12 +120,71 @@ public class QueryIdCachingProxyHandler extends ProxyHandler {
       int serverApplicationPort,
       Meter requestMeter,
       boolean rerouteRequestsToApplication) {
+    this(queryHistoryManager, routingManager, routingGroupSelector, null, serverApplicationPort,
+        requestMeter, new Meter(), rerouteRequestsToApplication, Collections.emptySet(), null,
+        null, null, new ProxyStageMetrics(new MetricRegistry()), null);
+  }
+
+  public QueryIdCachingProxyHandler(
+      QueryHistoryManager queryHistoryManager,
+      RoutingManager routingManager,
+      RoutingGroupSelector routingGroupSelector,
+      RoutingKeyExtractor routingKeyExtractor,
+      int serverApplicationPort,
+      Meter requestMeter,
+      Meter retryMeter,
+      boolean rerouteRequestsToApplication,
+      Set<String> directResultsRoutingGroups,
+      SignedBackendCookie backendCookie,
+      AdmissionController admissionController,
+      RateLimiter rateLimiter,
+      ProxyStageMetrics stageMetrics,
+      AccessLogger accessLogger) {
     this.requestMeter = requestMeter;
+    this.retryMeter = retryMeter;
     this.routingManager = routingManager;
     this.routingGroupSelector = routingGroupSelector;
+    this.routingKeyExtractor = routingKeyExtractor;
     this.queryHistoryManager = queryHistoryManager;
     this.serverApplicationPort = serverApplicationPort;
     this.rerouteRequestsToApplication = rerouteRequestsToApplication;
+    this.directResultsRoutingGroups = directResultsRoutingGroups;
+    this.backendCookie = backendCookie;
+    this.admissionController = admissionController;
+    this.rateLimiter = rateLimiter;
+    this.stageMetrics = stageMetrics;
+    this.accessLogger = accessLogger;
+  }
+
+  /**
+   * Selects the routing group of a query submission, then throttles it and waits for admission
+   * without holding a server thread. rewriteTarget picks up the outcome once the submission is
+   * handled again.
+   */
+  @Override
+  public CompletableFuture<?> deferRequest(HttpServletRequest request) {
+    if (admissionController == null
+        || !isPathWhiteListed(request.getRequestURI())
+        || !doRecordQueryId(request)
+        || request.getAttribute(ADMISSION_CHECKED_ATTRIBUTE) != null) {
+      return null;
+    }
+    request.setAttribute(ADMISSION_CHECKED_ATTRIBUTE, Boolean.TRUE);
+    String routingGroup = findRoutingGroup(request);
+    if (routingGroup != null) {
+      request.setAttribute(ROUTING_GROUP_ATTRIBUTE, routingGroup);
+    }
+    if (isRateLimited(request, routingGroup)) {
+      // Rejected by rewriteTarget, without waiting for a slot
+      return null;
+    }
+    CompletableFuture<AdmissionController.Permit> permit = admissionController.admitAsync(
+        Strings.isNullOrEmpty(routingGroup) ? DEFAULT_ROUTING_GROUP : routingGroup);
+    if (permit.isDone()) {
+      setAdmission(request, permit.join());
+      return null;
+    }
+    return permit.thenAccept(admitted -> setAdmission(request, admitted));
   }
 
   @Override
@@ -84,21 +193,29 @@ public class QueryIdCachingProxyHandler extends ProxyHandler {
     if (request.getMethod().equals(HttpMethod.POST)
         && request.getRequestURI().startsWith(V1_STATEMENT_PATH)) {
       requestMeter.mark();
-      try {
-        String requestBody = CharStreams.toString(request.getReader());
-        log.info(
-            "Processing request endpoint: [{}], payload: [{}]",
-            request.getRequestURI(),
-            requestBody);
-        debugLogHeaders(request);
-      } catch (Exception e) {
-        log.warn("Error fetching the request payload", e);
+      if (log.isDebugEnabled()) {
+        // The access log has the payload of the submissions it samples
+        try {
+          String requestBody = CharStreams.toString(request.getReader());
+          log.debug(
+              "Processing request endpoint: [{}], payload: [{}]",
+              request.getRequestURI(),
+              requestBody);
+          debugLogHeaders(request);
+        } catch (Exception e) {
+          log.warn("Error fetching the request payload", e);
+        }
       }
     }
 
     if (isPathWhiteListed(request.getRequestURI())) {
       setForwardedHostHeaderOnProxyRequest(request, proxyRequest);
     }
+
+    if (request.getAttribute(URI_REWRITER_ATTRIBUTE) != null) {
+      // The uris in the response are rewritten, so it has to come back uncompressed
+      proxyRequest.getHeaders().remove(HttpHeader.ACCEPT_ENCODING);
+    }
   }
 
   private boolean isPathWhiteListed(String path) {
@@ -123,6 +240,10 @@ public class QueryIdCachingProxyHandler extends ProxyHandler {
 
   @Override
   public boolean isKnownSessionId(String sessionId) {
+    if (backendCookie != null) {
+      // The gateway does not issue session cookies in this mode, leave the backend's ones alone
+      return true;
+    }
     return !Strings.isNullOrEmpty(routingManager.findBackendForUiCookie(sessionId));
   }
 
@@ -141,15 +262,55 @@ public class QueryIdCachingProxyHandler extends ProxyHandler {
     if (isPathWhiteListed(request.getRequestURI())) {
       String queryId = extractQueryIdIfPresent(request);
       if (!Strings.isNullOrEmpty(queryId)) {
+        long start = System.nanoTime();
         backendAddress = routingManager.findBackendForQueryId(queryId);
+        recordStage(request, ProxyStageMetrics.STAGE_QUERY_ID_LOOKUP, System.nanoTime() - start);
+        trackQueryRequest(request, queryId);
       } else if (doRecordQueryId(request)) {
-        backendAddress = getBackendForRequest(request);
+        String routingGroup;
+        if (request.getAttribute(ADMISSION_CHECKED_ATTRIBUTE) != null) {
+          routingGroup = (String) request.getAttribute(ROUTING_GROUP_ATTRIBUTE);
+          if (request.getAttribute(RATE_LIMITED_ATTRIBUTE) != null
+              || request.getAttribute(ADMISSION_REJECTED_ATTRIBUTE) != null) {
+            return null;
+          }
+        } else {
+          routingGroup = findRoutingGroup(request);
+          if (routingGroup != null) {
+            request.setAttribute(ROUTING_GROUP_ATTRIBUTE, routingGroup);
+          }
+          if (isRateLimited(request, routingGroup) || !admit(request, routingGroup)) {
+            return null;
+          }
+        }
+        try {
+          backendAddress = getBackendForRequest(request, routingGroup);
+        } catch (RuntimeException e) {
+          // Neither onRewriteFailed nor onProxyResponseComplete is called when this throws
+          releaseAdmission(request);
+          throw e;
+        }
         log.debug("mapping " + requestId + " to " + backendAddress);
         requestIdBackendMap.put(requestId, backendAddress);
+        setupDirectResults(request, routingGroup, backendAddress);
+        // Nothing is created on the backend until the submission reaches it, so it can be
+        // retried on another backend if the connection fails
+        request.setAttribute(
+            TRIED_BACKENDS_ATTRIBUTE, new HashSet<>(Arrays.asList(backendAddress)));
+      } else if (backendCookie != null) {
+        long start = System.nanoTime();
+        backendAddress = backendCookie.findBackend(request, routingManager::isBackendActive);
+        recordStage(request, ProxyStageMetrics.STAGE_COOKIE_LOOKUP, System.nanoTime() - start);
+        if (Strings.isNullOrEmpty(backendAddress)) {
+          backendAddress = getBackendForRequest(request);
+          request.setAttribute(PINNED_BACKEND_ATTRIBUTE, backendAddress);
+        }
       } else if (!Strings.isNullOrEmpty(request.getRequestedSessionId())) {
         //pin browser sessions to the same backend based on jsessionid, but load balance queries
+        long start = System.nanoTime();
         backendAddress = routingManager.findBackendForUiCookie(
                 request.getRequestedSessionId().split("\\.")[0]);
+        recordStage(request, ProxyStageMetrics.STAGE_COOKIE_LOOKUP, System.nanoTime() - start);
         if (Strings.isNullOrEmpty(backendAddress)) {
           log.error("Unknown session id: " + request.getRequestedSessionId());
           backendAddress = getBackendForRequest(request);
@@ -171,33 +332,333 @@ public class QueryIdCachingProxyHandler extends ProxyHandler {
     if (Strings.isNullOrEmpty(backendAddress)) {
       return null;
     }
-    String targetLocation =
-            backendAddress
-                    + request.getRequestURI()
-                    + (request.getQueryString() != null ? "?" + request.getQueryString() : "");
-
-    String originalLocation =
-            request.getScheme()
-                    + "://"
-                    + request.getRemoteHost()
-                    + ":"
-                    + request.getServerPort()
-                    + request.getRequestURI()
-                    + (request.getQueryString() != null ? "?" + request.getQueryString() : "");
-    log.info("Rerouting [{}]--> [{}]", originalLocation, targetLocation);
+    request.setAttribute(BACKEND_ATTRIBUTE, backendAddress);
+    String targetLocation = buildTargetLocation(request, backendAddress);
+
+    if (log.isDebugEnabled()) {
+      String originalLocation =
+              request.getScheme()
+                      + "://"
+                      + request.getRemoteHost()
+                      + ":"
+                      + request.getServerPort()
+                      + request.getRequestURI()
+                      + (request.getQueryString() != null ? "?" + request.getQueryString() : "");
+      log.debug("Rerouting [{}]--> [{}]", originalLocation, targetLocation);
+    }
     return targetLocation;
   }
 
+  @Override
+  protected String rewriteTargetForRetry(HttpServletRequest request, int requestId) {
+    @SuppressWarnings("unchecked")
+    Set<String> triedBackends = (Set<String>) request.getAttribute(TRIED_BACKENDS_ATTRIBUTE);
+    if (triedBackends == null) {
+      return null;
+    }
+    String routingGroup = (String) request.getAttribute(ROUTING_GROUP_ATTRIBUTE);
+    String user = Optional.ofNullable(request.getHeader(USER_HEADER))
+        .orElse(request.getHeader(ALTERNATE_USER_HEADER));
+    String backendAddress = routingManager.provideBackendForRetry(
+        routingGroup, user, findRoutingKey(request), triedBackends);
+    if (Strings.isNullOrEmpty(backendAddress)) {
+      log.warn("No other backend to retry the submission on after {}", triedBackends);
+      return null;
+    }
+    retryMeter.mark();
+    triedBackends.add(backendAddress);
+    request.setAttribute(BACKEND_ATTRIBUTE, backendAddress);
+    requestIdBackendMap.put(requestId, backendAddress);
+    setupDirectResults(request, routingGroup, backendAddress);
+    return buildTargetLocation(request, backendAddress);
+  }
+
+  private static String buildTargetLocation(HttpServletRequest request, String backendAddress) {
+    return backendAddress
+        + request.getRequestURI()
+        + (request.getQueryString() != null ? "?" + request.getQueryString() : "");
+  }
+
   String getBackendForRequest(HttpServletRequest request) {
-    String routingGroup = routingGroupSelector.findRoutingGroup(request);
+    return getBackendForRequest(request, findRoutingGroup(request));
+  }
+
+  private String getBackendForRequest(HttpServletRequest request, String routingGroup) {
     String user = Optional.ofNullable(request.getHeader(USER_HEADER))
             .orElse(request.getHeader(ALTERNATE_USER_HEADER));
+    String routingKey = findRoutingKey(request);
+    long start = System.nanoTime();
+    String backendAddress;
     if (!Strings.isNullOrEmpty(routingGroup)) {
       // This falls back on adhoc backend if there are no cluster found for the routing group.
-      return routingManager.provideBackendForRoutingGroup(routingGroup, user);
+      backendAddress =
+          routingManager.provideBackendForRoutingGroup(routingGroup, user, routingKey);
+    } else {
+      backendAddress = routingManager.provideAdhocBackend(user, routingKey);
+    }
+    stageMetrics.record(ProxyStageMetrics.STAGE_BACKEND_SELECTION,
+        Strings.isNullOrEmpty(routingGroup) ? DEFAULT_ROUTING_GROUP : routingGroup,
+        backendAddress, System.nanoTime() - start);
+    return backendAddress;
+  }
+
+  private String findRoutingGroup(HttpServletRequest request) {
+    long start = System.nanoTime();
+    String routingGroup = routingGroupSelector.findRoutingGroup(request);
+    recordStage(
+        request, ProxyStageMetrics.STAGE_ROUTING_GROUP_SELECTION, System.nanoTime() - start);
+    return routingGroup;
+  }
+
+  @Override
+  public void recordStage(HttpServletRequest request, String stage, long nanos) {
+    stageMetrics.record(stage, (String) request.getAttribute(ROUTING_GROUP_ATTRIBUTE),
+        (String) request.getAttribute(BACKEND_ATTRIBUTE), nanos);
+  }
+
+  private String findRoutingKey(HttpServletRequest request) {
+    return routingKeyExtractor == null ? null : routingKeyExtractor.findRoutingKey(request);
+  }
+
+  private boolean isRateLimited(HttpServletRequest request, String routingGroup) {
+    if (rateLimiter == null) {
+      return false;
+    }
+    String user = Optional.ofNullable(request.getHeader(USER_HEADER))
+        .orElse(request.getHeader(ALTERNATE_USER_HEADER));
+    String source = Optional.ofNullable(request.getHeader(SOURCE_HEADER))
+        .orElse(request.getHeader(ALTERNATE_SOURCE_HEADER));
+    if (rateLimiter.tryAcquire(user, source,
+        Strings.isNullOrEmpty(routingGroup) ? DEFAULT_ROUTING_GROUP : routingGroup)) {
+      return false;
+    }
+    request.setAttribute(RATE_LIMITED_ATTRIBUTE, Boolean.TRUE);
+    return true;
+  }
+
+  /**
+   * Admits a submission that did not go through deferRequest, which only happens when the
+   * handler is used without the proxy servlet, waiting for a slot in the calling thread.
+   */
+  private boolean admit(HttpServletRequest request, String routingGroup) {
+    if (admissionController == null) {
+      return true;
+    }
+    return setAdmission(request, admissionController.admit(
+        Strings.isNullOrEmpty(routingGroup) ? DEFAULT_ROUTING_GROUP : routingGroup));
+  }
+
+  private static boolean setAdmission(
+      HttpServletRequest request, AdmissionController.Permit permit) {
+    if (permit == null) {
+      request.setAttribute(ADMISSION_REJECTED_ATTRIBUTE, Boolean.TRUE);
+      return false;
+    }
+    request.setAttribute(ADMISSION_PERMIT_ATTRIBUTE, permit);
+    return true;
+  }
+
+  private void releaseAdmission(HttpServletRequest request) {
+    AdmissionController.Permit permit =
+        (AdmissionController.Permit) request.getAttribute(ADMISSION_PERMIT_ATTRIBUTE);
+    if (permit != null) {
+      request.removeAttribute(ADMISSION_PERMIT_ATTRIBUTE);
+      permit.release();
+    }
+  }
+
+  /**
+   * Moves the admission slot of a submission to its query, so that it is released once the
+   * tracker sees the query complete rather than when the submission response is sent.
+   */
+  private void holdAdmissionUntilCompleted(HttpServletRequest request, String queryId) {
+    AdmissionController.Permit permit =
+        (AdmissionController.Permit) request.getAttribute(ADMISSION_PERMIT_ATTRIBUTE);
+    if (permit != null) {
+      request.removeAttribute(ADMISSION_PERMIT_ATTRIBUTE);
+      admissionController.queryStarted(queryId, permit);
+    }
+  }
+
+  @Override
+  public int onRewriteFailed(HttpServletRequest request, HttpServletResponse response) {
+    releaseAdmission(request);
+    int status = HttpStatus.NOT_FOUND_404;
+    if (request.getAttribute(ADMISSION_REJECTED_ATTRIBUTE) != null) {
+      response.setHeader(HttpHeader.RETRY_AFTER.asString(), "1");
+      status = HttpStatus.SERVICE_UNAVAILABLE_503;
+    } else if (request.getAttribute(RATE_LIMITED_ATTRIBUTE) != null) {
+      response.setHeader(HttpHeader.RETRY_AFTER.asString(), "1");
+      status = HttpStatus.TOO_MANY_REQUESTS_429;
+    }
+    logAccess(request, status, null);
+    return status;
+  }
+
+  @Override
+  public void onProxyResponseComplete(
+      HttpServletRequest request, HttpServletResponse response, Throwable failure) {
+    releaseAdmission(request);
+    logAccess(request, response.getStatus(), failure);
+    String polledQueryId = (String) request.getAttribute(POLLED_QUERY_ID_ATTRIBUTE);
+    if (polledQueryId != null && response.getStatus() != HttpStatus.OK_200) {
+      // The query is gone from the backend, or the response had no body
+      routingManager.getOutstandingQueryTracker().queryCompleted(polledQueryId);
+    }
+  }
+
+  private void logAccess(HttpServletRequest request, int status, Throwable failure) {
+    if (accessLogger == null) {
+      return;
+    }
+    AccessLogger.RequestKind kind = getRequestKind(request);
+    if (!accessLogger.isSampled(kind)) {
+      return;
+    }
+    Map<String, Object> record = new LinkedHashMap<>();
+    record.put("timestamp", System.currentTimeMillis());
+    record.put("kind", kind.name());
+    record.put("method", request.getMethod());
+    record.put("path", request.getRequestURI());
+    record.put("status", status);
+    org.eclipse.jetty.server.Request baseRequest =
+        org.eclipse.jetty.server.Request.getBaseRequest(request);
+    if (baseRequest != null && baseRequest.getTimeStamp() > 0) {
+      record.put("latencyMillis", System.currentTimeMillis() - baseRequest.getTimeStamp());
+    }
+    record.put("user", Optional.ofNullable(request.getHeader(USER_HEADER))
+        .orElse(request.getHeader(ALTERNATE_USER_HEADER)));
+    record.put("source", Optional.ofNullable(request.getHeader(SOURCE_HEADER))
+        .orElse(request.getHeader(ALTERNATE_SOURCE_HEADER)));
+    record.put("remoteAddress", request.getRemoteAddr());
+    record.put("routingGroup", request.getAttribute(ROUTING_GROUP_ATTRIBUTE));
+    record.put("backend", request.getAttribute(BACKEND_ATTRIBUTE));
+    if (kind == AccessLogger.RequestKind.POLL) {
+      record.put("queryId",
+          extractQueryIdIfPresent(request.getRequestURI(), request.getQueryString()));
+    }
+    if (failure != null) {
+      record.put("failure", failure.toString());
+    }
+    if (kind == AccessLogger.RequestKind.STATEMENT) {
+      try {
+        record.put("payload", accessLogger.readPayload(request.getReader()));
+      } catch (Exception e) {
+        log.debug("Error fetching the request payload for the access log", e);
+      }
+    }
+    accessLogger.log(record);
+  }
+
+  static AccessLogger.RequestKind getRequestKind(HttpServletRequest request) {
+    String path = request.getRequestURI();
+    if (path.startsWith(V1_STATEMENT_PATH) || path.startsWith(INSIGHTS_STATEMENT_PATH)) {
+      return request.getMethod().equals(HttpMethod.POST)
+          ? AccessLogger.RequestKind.STATEMENT
+          : AccessLogger.RequestKind.POLL;
+    }
+    if (path.startsWith(V1_QUERY_PATH)) {
+      return AccessLogger.RequestKind.POLL;
+    }
+    if (path.startsWith(PRESTO_UI_PATH) || path.startsWith(OAUTH2_PATH)) {
+      return AccessLogger.RequestKind.UI;
+    }
+    return AccessLogger.RequestKind.OTHER;
+  }
+
+  /**
+   * Keeps the outstanding query count up to date from the requests for a running query. The
+   * results of a poll tell if the query completed, they are checked as the response is written.
+   */
+  private void trackQueryRequest(HttpServletRequest request, String queryId) {
+    OutstandingQueryTracker tracker = routingManager.getOutstandingQueryTracker();
+    if (tracker == null || !request.getRequestURI().startsWith(V1_STATEMENT_PATH)) {
+      return;
+    }
+    if (request.getMethod().equals(HttpMethod.DELETE)) {
+      tracker.queryCompleted(queryId);
     } else {
-      return routingManager.provideAdhocBackend(user);
+      tracker.queryActive(queryId);
+      request.setAttribute(POLLED_QUERY_ID_ATTRIBUTE, queryId);
+    }
+  }
+
+  /**
+   * Checks whether the first chunk of query results has a nextUri, which is missing once the
+   * query completed. Truncated results that tell neither way are taken as a running query.
+   */
+  static boolean hasNextUri(byte[] buffer, int offset, int length, boolean gzipped) {
+    String head;
+    if (gzipped) {
+      ByteArrayOutputStream plain = new ByteArrayOutputStream();
+      try (InputStream in =
+          new GZIPInputStream(new ByteArrayInputStream(buffer, offset, length))) {
+        byte[] chunk = new byte[1024];
+        int read;
+        while (plain.size() < QUERY_RESULTS_HEAD_LENGTH && (read = in.read(chunk)) != -1) {
+          plain.write(chunk, 0, read);
+        }
+      } catch (IOException e) {
+        // The first chunk of a gzip stream ends abruptly, what was inflated is enough
+      }
+      head = new String(plain.toByteArray(), StandardCharsets.UTF_8);
+    } else {
+      head = new String(
+          buffer, offset, Math.min(length, QUERY_RESULTS_HEAD_LENGTH), StandardCharsets.UTF_8);
+    }
+    return head.contains("\"nextUri\"") || !head.contains("\"stats\"");
+  }
+
+  /**
+   * In direct results mode the client is handed uris on the coordinator's external url, so only
+   * the query submission goes through the gateway and results are fetched from the coordinator.
+   */
+  private void setupDirectResults(
+      HttpServletRequest request, String routingGroup, String backendAddress) {
+    if (directResultsRoutingGroups.isEmpty()
+        || Strings.isNullOrEmpty(backendAddress)
+        || !request.getRequestURI().startsWith(V1_STATEMENT_PATH)
+        || !directResultsRoutingGroups.contains(
+            Strings.isNullOrEmpty(routingGroup) ? DEFAULT_ROUTING_GROUP : routingGroup)) {
+      return;
+    }
+    String externalUrl = routingManager.findExternalUrlForBackend(backendAddress);
+    if (Strings.isNullOrEmpty(externalUrl)) {
+      log.warn("No external url found for backend [{}], results go through the gateway",
+          backendAddress);
+      return;
     }
+    request.setAttribute(URI_REWRITER_ATTRIBUTE, new QueryResultsUriRewriter(externalUrl));
+  }
+
+  @Override
+  public void onServerResponseHeaders(HttpServletRequest request, HttpServletResponse response) {
+    if (backendCookie == null) {
+      return;
+    }
+    if (request.getRequestURI().equals(LOGOUT_PATH)) {
+      // Let the next login pick a backend again
+      Cookie cookie = new Cookie(SignedBackendCookie.COOKIE_NAME, "");
+      cookie.setPath("/");
+      cookie.setMaxAge(0);
+      response.addCookie(cookie);
+      return;
+    }
+    String pinnedBackend = (String) request.getAttribute(PINNED_BACKEND_ATTRIBUTE);
+    if (!Strings.isNullOrEmpty(pinnedBackend)) {
+      response.addCookie(backendCookie.newCookie(pinnedBackend, request.isSecure()));
+    }
+  }
+
+  @Override
+  public String filterServerResponseHeader(
+      HttpServletRequest request, String headerName, String headerValue) {
+    if (request.getAttribute(URI_REWRITER_ATTRIBUTE) != null
+        && HttpHeader.CONTENT_LENGTH.is(headerName)) {
+      // Rewriting the uris changes the length of the body
+      return null;
+    }
+    return headerValue;
   }
 
   protected String extractQueryIdIfPresent(HttpServletRequest request) {
@@ -283,7 +744,23 @@ public class QueryIdCachingProxyHandler extends ProxyHandler {
     } catch (Exception e) {
       log.error("Error in proxying falling back to super call", e);
     }
-    super.postConnectionHook(request, response, buffer, offset, length, callback);
+    String polledQueryId = (String) request.getAttribute(POLLED_QUERY_ID_ATTRIBUTE);
+    if (polledQueryId != null) {
+      // Only the first chunk of the results is checked
+      request.removeAttribute(POLLED_QUERY_ID_ATTRIBUTE);
+      if (response.getStatus() != HttpStatus.OK_200
+          || !hasNextUri(buffer, offset, length, isGZipEncoding(response))) {
+        routingManager.getOutstandingQueryTracker().queryCompleted(polledQueryId);
+      }
+    }
+    QueryResultsUriRewriter uriRewriter =
+        (QueryResultsUriRewriter) request.getAttribute(URI_REWRITER_ATTRIBUTE);
+    if (uriRewriter != null) {
+      byte[] rewritten = uriRewriter.rewrite(buffer, offset, length);
+      super.postConnectionHook(request, response, rewritten, 0, rewritten.length, callback);
+    } else {
+      super.postConnectionHook(request, response, buffer, offset, length, callback);
+    }
   }
 
   void recordBackendForQueryId(
@@ -321,6 +798,13 @@ public class QueryIdCachingProxyHandler extends ProxyHandler {
         //TODO: use the DB to back the queryId cache so it is shared across gateway instances
         routingManager.setBackendForQueryId(
                 queryDetail.getQueryId(), backendUrl);
+        OutstandingQueryTracker tracker = routingManager.getOutstandingQueryTracker();
+        // The polls of direct results skip the gateway, which would never see the query end
+        if (tracker != null && backendUrl != null
+            && request.getAttribute(URI_REWRITER_ATTRIBUTE) == null) {
+          holdAdmissionUntilCompleted(request, queryDetail.getQueryId());
+          tracker.querySubmitted(queryDetail.getQueryId(), backendUrl);
+        }
         log.debug(
                 "QueryId [{}] mapped with proxy [{}]",
                 queryDetail.getQueryId(),
@@ -336,7 +820,9 @@ public class QueryIdCachingProxyHandler extends ProxyHandler {
               response.getStatus());
     }
     // Saving history at gateway.
+    long start = System.nanoTime();
     queryHistoryManager.submitQueryDetail(queryDetail);
+    recordStage(request, ProxyStageMetrics.STAGE_HISTORY_PERSISTENCE, System.nanoTime() - start);
   }
 
   static void setForwardedHostHeaderOnProxyRequest(HttpServletRequest request,
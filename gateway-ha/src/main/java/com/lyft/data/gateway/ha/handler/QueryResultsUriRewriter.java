@@ -0,0 +1,135 @@
+package com.lyft.data.gateway.ha.handler;
+
+import com.google.common.collect.ImmutableSet;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+/**
+ * Rewrites the top level nextUri, infoUri and partialCancelUri of a Presto/Trino query results
+ * document so they point to a coordinator's external url. The document is processed chunk by
+ * chunk as it is streamed to the client, only the uri values being rewritten are buffered.
+ * An instance keeps the parser state of a single response and is not thread safe.
+ */
+public class QueryResultsUriRewriter {
+  private static final Set<String> REWRITTEN_KEYS =
+      ImmutableSet.of("nextUri", "infoUri", "partialCancelUri");
+  // Longer keys can not match any of the rewritten keys, there is no need to capture them
+  private static final int MAX_KEY_LENGTH = 32;
+
+  private final String externalUrl;
+
+  private int depth;
+  private boolean inString;
+  private boolean escaped;
+  private boolean expectKey;
+  private boolean capturingKey;
+  private boolean capturingValue;
+  private String lastKey;
+  private final StringBuilder key = new StringBuilder();
+  private final ByteArrayOutputStream value = new ByteArrayOutputStream();
+
+  public QueryResultsUriRewriter(String externalUrl) {
+    this.externalUrl = externalUrl.endsWith("/")
+        ? externalUrl.substring(0, externalUrl.length() - 1)
+        : externalUrl;
+  }
+
+  /**
+   * Rewrites the next chunk of the response.
+   *
+   * @param buffer
+   * @param offset
+   * @param length
+   * @return the bytes to send to the client in place of the chunk
+   */
+  public byte[] rewrite(byte[] buffer, int offset, int length) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(length + 64);
+    for (int i = offset; i < offset + length; i++) {
+      byte b = buffer[i];
+      if (inString) {
+        consumeStringByte(b, out);
+        continue;
+      }
+      switch (b) {
+        case '{':
+          depth++;
+          expectKey = depth == 1;
+          break;
+        case '[':
+          depth++;
+          break;
+        case '}':
+        case ']':
+          depth--;
+          break;
+        case ',':
+          expectKey = depth == 1;
+          break;
+        case ':':
+          if (depth == 1) {
+            expectKey = false;
+          }
+          break;
+        case '"':
+          inString = true;
+          if (depth == 1 && expectKey) {
+            capturingKey = true;
+            key.setLength(0);
+          } else if (depth == 1 && REWRITTEN_KEYS.contains(lastKey)) {
+            capturingValue = true;
+            value.reset();
+          }
+          break;
+        default:
+          break;
+      }
+      out.write(b);
+    }
+    return out.toByteArray();
+  }
+
+  private void consumeStringByte(byte b, ByteArrayOutputStream out) {
+    if (escaped) {
+      escaped = false;
+    } else if (b == '\\') {
+      escaped = true;
+    } else if (b == '"') {
+      inString = false;
+      if (capturingKey) {
+        capturingKey = false;
+        lastKey = key.length() > MAX_KEY_LENGTH ? null : key.toString();
+      } else if (capturingValue) {
+        capturingValue = false;
+        byte[] uri = rewriteUri(new String(value.toByteArray(), StandardCharsets.UTF_8))
+            .getBytes(StandardCharsets.UTF_8);
+        out.write(uri, 0, uri.length);
+      }
+      out.write(b);
+      return;
+    }
+
+    if (capturingValue) {
+      value.write(b);
+      return;
+    }
+    if (capturingKey && key.length() <= MAX_KEY_LENGTH) {
+      key.append((char) b);
+    }
+    out.write(b);
+  }
+
+  /**
+   * The coordinator builds the uris from the host the request was sent to, which may be the
+   * gateway itself, so the whole scheme and authority is replaced.
+   */
+  String rewriteUri(String uri) {
+    int schemeEnd = uri.indexOf("://");
+    if (schemeEnd < 0) {
+      return uri;
+    }
+    int pathStart = uri.indexOf('/', schemeEnd + 3);
+    return pathStart < 0 ? externalUrl : externalUrl + uri.substring(pathStart);
+  }
+}
@@ -0,0 +1,147 @@
+package com.lyft.data.gateway.ha.handler;
+
+import com.google.common.base.Preconditions;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Cookie pinning a browser to a backend. The backend is stored in the cookie itself along with an
+ * HMAC-SHA256 signature, so the cookie is verified in memory without any session or stored
+ * mapping. Cookies are signed with the first key and accepted if signed with any of the keys,
+ * which allows rotating keys by prepending a new one and later dropping the old one.
+ */
+@Slf4j
+public class SignedBackendCookie {
+  public static final String COOKIE_NAME = "presto-gateway-backend";
+  private static final String ALGORITHM = "HmacSHA256";
+  private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+  private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+  private final List<SecretKeySpec> keys;
+
+  public SignedBackendCookie(List<String> signingKeys) {
+    Preconditions.checkArgument(!signingKeys.isEmpty(), "At least one signing key is required");
+    this.keys = signingKeys.stream()
+        .map(key -> new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), ALGORITHM))
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Builds the cookie value for a backend, signed with the current key.
+   *
+   * @param backend
+   * @return
+   */
+  public String sign(String backend) {
+    byte[] payload = backend.getBytes(StandardCharsets.UTF_8);
+    return ENCODER.encodeToString(payload) + "."
+        + ENCODER.encodeToString(mac(keys.get(0), payload));
+  }
+
+  /**
+   * Verifies a cookie value.
+   *
+   * @param value
+   * @return the backend, or null if the value is malformed or not signed with a known key
+   */
+  public String verify(String value) {
+    if (value == null) {
+      return null;
+    }
+    int separator = value.indexOf('.');
+    if (separator < 0) {
+      return null;
+    }
+    byte[] payload;
+    byte[] signature;
+    try {
+      payload = DECODER.decode(value.substring(0, separator));
+      signature = DECODER.decode(value.substring(separator + 1));
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+    for (SecretKeySpec key : keys) {
+      if (MessageDigest.isEqual(mac(key, payload), signature)) {
+        return new String(payload, StandardCharsets.UTF_8);
+      }
+    }
+    log.debug("Ignoring backend cookie with an invalid signature");
+    return null;
+  }
+
+  /**
+   * Finds the backend a request is pinned to.
+   *
+   * @param request
+   * @return the backend, or null if the request has no valid backend cookie
+   */
+  public String findBackend(HttpServletRequest request) {
+    return findBackend(request, backend -> true);
+  }
+
+  /**
+   * Finds the backend a request is pinned to, if it can still be used. A correctly signed cookie
+   * keeps pointing to its backend after that backend is deactivated, drained or removed, so the
+   * caller checks it and pins the request again when it is no longer valid.
+   *
+   * @param request
+   * @param isValid whether a backend can still take the request
+   * @return the backend, or null if the request has no valid backend cookie or its backend is not
+   *     valid anymore
+   */
+  public String findBackend(HttpServletRequest request, Predicate<String> isValid) {
+    Cookie[] cookies = request.getCookies();
+    if (cookies == null) {
+      return null;
+    }
+    for (Cookie cookie : cookies) {
+      if (COOKIE_NAME.equals(cookie.getName())) {
+        String backend = verify(cookie.getValue());
+        if (backend != null) {
+          if (isValid.test(backend)) {
+            return backend;
+          }
+          log.debug("Ignoring backend cookie pinned to unavailable backend [{}]", backend);
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Builds the cookie pinning a browser to a backend.
+   *
+   * @param backend
+   * @param secure
+   * @return
+   */
+  public Cookie newCookie(String backend, boolean secure) {
+    Cookie cookie = new Cookie(COOKIE_NAME, sign(backend));
+    cookie.setPath("/");
+    cookie.setHttpOnly(true);
+    cookie.setSecure(secure);
+    return cookie;
+  }
+
+  private static byte[] mac(SecretKeySpec key, byte[] payload) {
+    try {
+      Mac mac = Mac.getInstance(ALGORITHM);
+      mac.init(key);
+      return mac.doFinal(payload);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -3,12 +3,17 @@ package com.lyft.data.gateway.ha.module;
 import com.google.inject.Provides;
 import com.google.inject.Singleton;
 import com.lyft.data.baseapp.AppModule;
+import com.lyft.data.gateway.ha.clustermonitor.ClusterStatsHistory;
 import com.lyft.data.gateway.ha.clustermonitor.HealthChecker;
 import com.lyft.data.gateway.ha.clustermonitor.PrestoClusterStatsObserver;
 import com.lyft.data.gateway.ha.config.HaGatewayConfiguration;
 import com.lyft.data.gateway.ha.config.MonitorConfiguration;
 import com.lyft.data.gateway.ha.config.NotifierConfiguration;
+import com.lyft.data.gateway.ha.notifier.AlertDispatcher;
 import com.lyft.data.gateway.ha.notifier.EmailNotifier;
+import com.lyft.data.gateway.ha.router.BackendHealthRegistry;
+import com.lyft.data.gateway.ha.router.RoutingManager;
+import com.lyft.data.gateway.ha.router.RoutingStrategy;
 import io.dropwizard.setup.Environment;
 import java.util.ArrayList;
 import java.util.List;
@@ -24,16 +29,29 @@ public class ClusterStateListenerModule extends AppModule<HaGatewayConfiguration
 
   /**
    * Observers to cluster stats updates from
-   * {@link com.lyft.data.gateway.ha.clustermonitor.ActiveClusterMonitor}.
+   * {@link com.lyft.data.gateway.ha.clustermonitor.ActiveClusterMonitor}, including the routing
+   * strategies that route on cluster stats, the backend health registry and the stats history.
    *
    * @return
    */
   @Provides
   @Singleton
-  public List<PrestoClusterStatsObserver> getClusterStatsObservers() {
+  public List<PrestoClusterStatsObserver> getClusterStatsObservers(
+      RoutingManager routingManager,
+      ClusterStatsHistory clusterStatsHistory,
+      BackendHealthRegistry healthRegistry) {
     observers = new ArrayList<>();
+    // First, so that the routing strategies observing the same stats route on the new health
+    observers.add(healthRegistry);
     NotifierConfiguration notifierConfiguration = getConfiguration().getNotifier();
-    observers.add(new HealthChecker(new EmailNotifier(notifierConfiguration)));
+    observers.add(new HealthChecker(
+        new AlertDispatcher(new EmailNotifier(notifierConfiguration), notifierConfiguration)));
+    observers.add(clusterStatsHistory);
+    for (RoutingStrategy strategy : routingManager.getRoutingStrategies()) {
+      if (strategy instanceof PrestoClusterStatsObserver) {
+        observers.add((PrestoClusterStatsObserver) strategy);
+      }
+    }
     return observers;
   }
 
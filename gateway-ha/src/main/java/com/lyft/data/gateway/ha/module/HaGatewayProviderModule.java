@@ -1,29 +1,63 @@
 package com.lyft.data.gateway.ha.module;
 
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Meter;
 import com.google.inject.Provides;
 import com.google.inject.Singleton;
 import com.lyft.data.baseapp.AppModule;
+import com.lyft.data.gateway.ha.admission.AdmissionController;
+import com.lyft.data.gateway.ha.admission.RateLimiter;
+import com.lyft.data.gateway.ha.clustermonitor.ClusterStatsHistory;
+import com.lyft.data.gateway.ha.config.AdmissionControlConfiguration;
 import com.lyft.data.gateway.ha.config.HaGatewayConfiguration;
+import com.lyft.data.gateway.ha.config.OutlierDetectionConfiguration;
+import com.lyft.data.gateway.ha.config.PersistenceCacheConfiguration;
+import com.lyft.data.gateway.ha.config.RateLimitConfiguration;
 import com.lyft.data.gateway.ha.config.RequestRouterConfiguration;
+import com.lyft.data.gateway.ha.config.RoutingConfiguration;
 import com.lyft.data.gateway.ha.config.RoutingRulesConfiguration;
+import com.lyft.data.gateway.ha.handler.AccessLogger;
+import com.lyft.data.gateway.ha.handler.ProxyStageMetrics;
 import com.lyft.data.gateway.ha.handler.QueryIdCachingProxyHandler;
+import com.lyft.data.gateway.ha.handler.SignedBackendCookie;
+import com.lyft.data.gateway.ha.persistence.CacheInvalidationPublisher;
 import com.lyft.data.gateway.ha.persistence.JdbcConnectionManager;
+import com.lyft.data.gateway.ha.persistence.ModelCacheManager;
+import com.lyft.data.gateway.ha.router.BackendDrainer;
+import com.lyft.data.gateway.ha.router.BackendHealthRegistry;
 import com.lyft.data.gateway.ha.router.CacheManager;
+import com.lyft.data.gateway.ha.router.ConsistentHashStrategy;
 import com.lyft.data.gateway.ha.router.GatewayBackendManager;
 import com.lyft.data.gateway.ha.router.HaGatewayManager;
 import com.lyft.data.gateway.ha.router.HaQueryHistoryManager;
 import com.lyft.data.gateway.ha.router.HaResourceGroupsManager;
 import com.lyft.data.gateway.ha.router.HaRoutingManager;
+import com.lyft.data.gateway.ha.router.LeastOutstandingQueriesStrategy;
+import com.lyft.data.gateway.ha.router.OutstandingQueryTracker;
+import com.lyft.data.gateway.ha.router.PowerOfTwoChoicesStrategy;
+import com.lyft.data.gateway.ha.router.PrestoQueueLengthRoutingTable;
 import com.lyft.data.gateway.ha.router.QueryHistoryManager;
+import com.lyft.data.gateway.ha.router.RandomRoutingStrategy;
 import com.lyft.data.gateway.ha.router.ResourceGroupsManager;
 import com.lyft.data.gateway.ha.router.RoutingGroupSelector;
+import com.lyft.data.gateway.ha.router.RoutingKeyExtractor;
 import com.lyft.data.gateway.ha.router.RoutingManager;
+import com.lyft.data.gateway.ha.router.RoutingStrategy;
+import com.lyft.data.gateway.ha.router.WeightedQueueLengthStrategy;
+import com.lyft.data.proxyserver.BackendOutlierDetector;
 import com.lyft.data.proxyserver.ProxyHandler;
 import com.lyft.data.proxyserver.ProxyServer;
 import com.lyft.data.proxyserver.ProxyServerConfiguration;
+import com.lyft.data.proxyserver.ProxyServletImpl;
 import io.dropwizard.setup.Environment;
 
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 public class HaGatewayProviderModule extends AppModule<HaGatewayConfiguration, Environment> {
 
   private final ResourceGroupsManager resourceGroupsManager;
@@ -31,20 +65,148 @@ public class HaGatewayProviderModule extends AppModule<HaGatewayConfiguration, E
   private final QueryHistoryManager queryHistoryManager;
   private final RoutingManager routingManager;
   private final JdbcConnectionManager connectionManager;
+  private final ModelCacheManager modelCacheManager;
   private final CacheManager cacheManager;
+  private final BackendOutlierDetector outlierDetector;
+  private final ClusterStatsHistory clusterStatsHistory;
+  private final BackendHealthRegistry healthRegistry;
+  private final BackendDrainer backendDrainer;
+  private final ProxyStageMetrics stageMetrics;
 
   public HaGatewayProviderModule(HaGatewayConfiguration configuration, Environment environment) {
     super(configuration, environment);
+    PersistenceCacheConfiguration cacheConfig = configuration.getPersistenceCache();
+    modelCacheManager = ModelCacheManager.getInstance();
+    modelCacheManager.configure(cacheConfig);
+    modelCacheManager.registerMetrics(environment.metrics());
+    if (!cacheConfig.getPeers().isEmpty()) {
+      CacheInvalidationPublisher publisher =
+          new CacheInvalidationPublisher(cacheConfig, modelCacheManager);
+      modelCacheManager.addCacheEventListener(publisher);
+      environment.lifecycle().manage(publisher);
+    }
     connectionManager = new JdbcConnectionManager(configuration.getDataStore());
     resourceGroupsManager = new HaResourceGroupsManager(connectionManager);
-    gatewayBackendManager = new HaGatewayManager(connectionManager);
+    HaGatewayManager haGatewayManager = new HaGatewayManager(connectionManager);
+    gatewayBackendManager = haGatewayManager;
     queryHistoryManager = new HaQueryHistoryManager(connectionManager);
     cacheManager = new CacheManager(connectionManager);
     routingManager =
         new HaRoutingManager(gatewayBackendManager,
                 queryHistoryManager,
                 cacheManager,
-                configuration.getRequestRouter().isLookupQueryIds());
+                configuration.getRequestRouter().isLookupQueryIds(),
+                configuration.getRequestRouter().isCoordinatorIdRouting());
+    haGatewayManager.addChangeListener(routingManager::invalidateBackends);
+    OutlierDetectionConfiguration outlierConfig = configuration.getOutlierDetection();
+    if (outlierConfig.isEnabled()) {
+      outlierDetector = new BackendOutlierDetector(
+          outlierConfig.getConsecutiveFailures(),
+          outlierConfig.getBaseEjectionMillis(),
+          outlierConfig.getMaxEjectionMillis(),
+          outlierConfig.getProbeIntervalMillis());
+      routingManager.setOutlierDetector(outlierDetector);
+    } else {
+      outlierDetector = null;
+    }
+    // Used by the drainer, by the strategies routing on outstanding queries and by admission
+    // control, which holds the slots of the queries until they complete
+    if (isOutstandingQueryTracking(configuration.getRouting())
+        || !configuration.getAdmissionControl().getRoutingGroups().isEmpty()) {
+      routingManager.setOutstandingQueryTracker(new OutstandingQueryTracker(
+          configuration.getRouting().getOutstandingQueryIdleTimeoutSeconds()));
+    }
+    backendDrainer = new BackendDrainer(
+        gatewayBackendManager, routingManager.getOutstandingQueryTracker());
+    setupRoutingStrategies(configuration.getRouting());
+    stageMetrics = new ProxyStageMetrics(environment.metrics());
+    routingManager.setStageMetrics(stageMetrics);
+    clusterStatsHistory = new ClusterStatsHistory(configuration.getMonitor().getHistorySize());
+    healthRegistry = new BackendHealthRegistry(
+        configuration.getMonitor().getUnhealthyThreshold(),
+        configuration.getMonitor().getHealthyThreshold());
+    routingManager.setHealthRegistry(healthRegistry);
+  }
+
+  private static boolean isOutstandingQueryTracking(RoutingConfiguration routingConfig) {
+    Set<RoutingConfiguration.Strategy> strategies =
+        new HashSet<>(routingConfig.getRoutingGroupStrategies().values());
+    strategies.add(routingConfig.getDefaultStrategy());
+    return routingConfig.isBackendDraining()
+        || strategies.contains(RoutingConfiguration.Strategy.LEAST_OUTSTANDING_QUERIES)
+        || strategies.contains(RoutingConfiguration.Strategy.CONSISTENT_HASH);
+  }
+
+  /**
+   * Builds one instance of each routing strategy in use, shared by the routing groups using it.
+   */
+  private void setupRoutingStrategies(RoutingConfiguration routingConfig) {
+    Map<RoutingConfiguration.Strategy, RoutingStrategy> strategies =
+        new EnumMap<>(RoutingConfiguration.Strategy.class);
+    RoutingStrategy defaultStrategy =
+        getRoutingStrategy(routingConfig.getDefaultStrategy(), routingConfig, strategies);
+    Map<String, RoutingStrategy> routingGroupStrategies = new HashMap<>();
+    for (Map.Entry<String, RoutingConfiguration.Strategy> entry
+        : routingConfig.getRoutingGroupStrategies().entrySet()) {
+      routingGroupStrategies.put(
+          entry.getKey(), getRoutingStrategy(entry.getValue(), routingConfig, strategies));
+    }
+    routingManager.setRoutingStrategies(defaultStrategy, routingGroupStrategies);
+  }
+
+  private RoutingStrategy getRoutingStrategy(
+      RoutingConfiguration.Strategy strategy,
+      RoutingConfiguration routingConfig,
+      Map<RoutingConfiguration.Strategy, RoutingStrategy> strategies) {
+    return strategies.computeIfAbsent(strategy, k -> {
+      switch (k) {
+        case LEAST_OUTSTANDING_QUERIES:
+          return new LeastOutstandingQueriesStrategy(routingManager.getOutstandingQueryTracker());
+        case CONSISTENT_HASH:
+          return new ConsistentHashStrategy(routingManager.getOutstandingQueryTracker(),
+              routingConfig.getVirtualNodes(), routingConfig.getLoadFactor());
+        case POWER_OF_TWO_CHOICES:
+          return new PowerOfTwoChoicesStrategy();
+        case WEIGHTED_QUEUE_LENGTH:
+          return new WeightedQueueLengthStrategy(
+              new PrestoQueueLengthRoutingTable(
+                  gatewayBackendManager, queryHistoryManager, cacheManager),
+              routingConfig.getQueueLengthFormula(),
+              routingConfig.getBlockedQueryWeight());
+        default:
+          return new RandomRoutingStrategy();
+      }
+    });
+  }
+
+  private RoutingKeyExtractor getRoutingKeyExtractor() {
+    RoutingConfiguration routingConfig = getConfiguration().getRouting();
+    if (routingConfig.getDefaultStrategy() != RoutingConfiguration.Strategy.CONSISTENT_HASH
+        && !routingConfig.getRoutingGroupStrategies()
+            .containsValue(RoutingConfiguration.Strategy.CONSISTENT_HASH)) {
+      return null;
+    }
+    switch (routingConfig.getRoutingKey()) {
+      case SOURCE:
+        return RoutingKeyExtractor.bySource();
+      case CLIENT_TAGS:
+        return RoutingKeyExtractor.byClientTags();
+      case RULES_ENGINE:
+        return RoutingKeyExtractor.byRoutingRulesEngine();
+      default:
+        return RoutingKeyExtractor.byUser();
+    }
+  }
+
+  private AdmissionController newAdmissionController() {
+    AdmissionControlConfiguration admissionConfig = getConfiguration().getAdmissionControl();
+    if (admissionConfig.getRoutingGroups().isEmpty()) {
+      return null;
+    }
+    AdmissionController admissionController =
+        new AdmissionController(admissionConfig, getEnvironment().metrics());
+    admissionController.trackQueries(getRoutingManager().getOutstandingQueryTracker());
+    return admissionController;
   }
 
   protected ProxyHandler getProxyHandler() {
@@ -52,6 +214,10 @@ public class HaGatewayProviderModule extends AppModule<HaGatewayConfiguration, E
         getEnvironment()
             .metrics()
             .meter(getConfiguration().getRequestRouter().getName() + ".requests");
+    Meter retryMeter =
+        getEnvironment()
+            .metrics()
+            .meter(getConfiguration().getRequestRouter().getName() + ".connectRetries");
 
     // By default, use routing group header to route
     RoutingGroupSelector routingGroupSelector = RoutingGroupSelector.byRoutingGroupHeader();
@@ -62,13 +228,34 @@ public class HaGatewayProviderModule extends AppModule<HaGatewayConfiguration, E
       routingGroupSelector = RoutingGroupSelector.byRoutingRulesEngine(rulesConfigPath);
     }
 
+    List<String> uiCookieSigningKeys =
+        getConfiguration().getRequestRouter().getUiCookieSigningKeys();
+    RateLimitConfiguration rateLimitConfig = getConfiguration().getRateLimit();
+    AccessLogger accessLogger = null;
+    if (getConfiguration().getAccessLog().isEnabled()) {
+      accessLogger = new AccessLogger(getConfiguration().getAccessLog());
+      getEnvironment().metrics().register(
+          getConfiguration().getRequestRouter().getName() + ".accessLog.dropped",
+          (Gauge<Long>) accessLogger::getDroppedRecords);
+    }
     return new QueryIdCachingProxyHandler(
         getQueryHistoryManager(),
         getRoutingManager(),
         routingGroupSelector,
+        getRoutingKeyExtractor(),
         getApplicationPort(),
         requestMeter,
-        getConfiguration().getRequestRouter().isRerouteRequestsToApplication());
+        retryMeter,
+        getConfiguration().getRequestRouter().isRerouteRequestsToApplication(),
+        new HashSet<>(getConfiguration().getRequestRouter().getDirectResultsRoutingGroups()),
+        uiCookieSigningKeys.isEmpty() ? null : new SignedBackendCookie(uiCookieSigningKeys),
+        newAdmissionController(),
+        rateLimitConfig.getRulesConfigPath() == null
+            ? null
+            : new RateLimiter(rateLimitConfig.getRulesConfigPath(),
+                rateLimitConfig.getReloadIntervalSeconds(), getEnvironment().metrics()),
+        stageMetrics,
+        accessLogger);
   }
 
   @Provides
@@ -87,9 +274,16 @@ public class HaGatewayProviderModule extends AppModule<HaGatewayConfiguration, E
       routerProxyConfig.setKeystorePath(routerConfiguration.getKeystorePath());
       routerProxyConfig.setKeystorePass(routerConfiguration.getKeystorePass());
       routerProxyConfig.setForwardKeystore(routerConfiguration.isForwardKeystore());
+      routerProxyConfig.setHttp2Enabled(routerConfiguration.isHttp2Enabled());
+      routerProxyConfig.setBackendHttp2Enabled(routerConfiguration.isBackendHttp2Enabled());
+      routerProxyConfig.setAsyncResponseWriteEnabled(
+          routerConfiguration.isAsyncResponseWriteEnabled());
+      routerProxyConfig.setMaxConnectRetries(routerConfiguration.getMaxConnectRetries());
       routerProxyConfig.setPreserveHost("false");
       ProxyHandler proxyHandler = getProxyHandler();
-      gateway = new ProxyServer(routerProxyConfig, proxyHandler);
+      ProxyServletImpl proxyServlet = new ProxyServletImpl();
+      proxyServlet.setOutlierDetector(outlierDetector);
+      gateway = new ProxyServer(routerProxyConfig, proxyHandler, proxyServlet);
     }
     return gateway;
   }
@@ -123,4 +317,28 @@ public class HaGatewayProviderModule extends AppModule<HaGatewayConfiguration, E
   public JdbcConnectionManager getConnectionManager() {
     return this.connectionManager;
   }
+
+  @Provides
+  @Singleton
+  public ModelCacheManager getModelCacheManager() {
+    return this.modelCacheManager;
+  }
+
+  @Provides
+  @Singleton
+  public ClusterStatsHistory getClusterStatsHistory() {
+    return this.clusterStatsHistory;
+  }
+
+  @Provides
+  @Singleton
+  public BackendHealthRegistry getBackendHealthRegistry() {
+    return this.healthRegistry;
+  }
+
+  @Provides
+  @Singleton
+  public BackendDrainer getBackendDrainer() {
+    return this.backendDrainer;
+  }
 }
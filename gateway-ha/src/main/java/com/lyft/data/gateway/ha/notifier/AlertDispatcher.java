@@ -0,0 +1,131 @@
+package com.lyft.data.gateway.ha.notifier;
+
+import com.lyft.data.gateway.ha.config.NotifierConfiguration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Sends alerts about cluster conditions through a {@link Notifier} without blocking the caller.
+ * An alert is only raised when a condition of a cluster starts or stops, at most once per cooldown
+ * for each cluster and condition. Alerts raised within the same batch window are sent together as
+ * a single notification by a background thread.
+ */
+@Slf4j
+public class AlertDispatcher {
+  private final Notifier notifier;
+  private final long cooldownMillis;
+  private final LongSupplier clock;
+  // Keyed by cluster and condition, the value tells whether the start was notified
+  private final Map<String, Boolean> activeConditions = new HashMap<>();
+  private final Map<String, Long> lastNotified = new HashMap<>();
+  private final Map<String, Alert> pendingAlerts = new LinkedHashMap<>();
+  private ScheduledExecutorService scheduler;
+
+  public AlertDispatcher(Notifier notifier, NotifierConfiguration configuration) {
+    this(notifier, TimeUnit.SECONDS.toMillis(configuration.getAlertCooldownSeconds()),
+        System::currentTimeMillis);
+    long batchWindowSeconds = Math.max(configuration.getAlertBatchWindowSeconds(), 1);
+    scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "alert-dispatcher");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleWithFixedDelay(
+        this::flush, batchWindowSeconds, batchWindowSeconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Creates a dispatcher without its background thread, pending alerts are sent by
+   * {@link AlertDispatcher#flush()}.
+   */
+  public AlertDispatcher(Notifier notifier, long cooldownMillis, LongSupplier clock) {
+    this.notifier = notifier;
+    this.cooldownMillis = cooldownMillis;
+    this.clock = clock;
+  }
+
+  /**
+   * Updates the state of a condition of a cluster, raising an alert if it changed.
+   *
+   * @param clusterId
+   * @param condition a short description of the condition, such as "Cluster unhealthy"
+   * @param active whether the condition currently holds
+   * @param details the details sent with an alert
+   */
+  public synchronized void update(
+      String clusterId, String condition, boolean active, String details) {
+    String key = clusterId + " - " + condition;
+    if (active == activeConditions.containsKey(key)) {
+      return;
+    }
+    if (active) {
+      long now = clock.getAsLong();
+      Long last = lastNotified.get(key);
+      boolean notify = last == null || now - last >= cooldownMillis;
+      activeConditions.put(key, notify);
+      if (notify) {
+        lastNotified.put(key, now);
+        pendingAlerts.put(key, new Alert(key, true, details));
+      } else {
+        log.debug("Alert [{}] suppressed during its cooldown", key);
+      }
+    } else if (activeConditions.remove(key)) {
+      // A condition that started and stopped within the same batch is not sent at all
+      if (pendingAlerts.remove(key) == null) {
+        pendingAlerts.put(key, new Alert(key, false, details));
+      }
+    }
+  }
+
+  /**
+   * Sends the pending alerts as one notification.
+   */
+  public void flush() {
+    List<Alert> alerts;
+    synchronized (this) {
+      if (pendingAlerts.isEmpty()) {
+        return;
+      }
+      alerts = new ArrayList<>(pendingAlerts.values());
+      pendingAlerts.clear();
+    }
+    String subject = alerts.size() == 1
+        ? alerts.get(0).getSubject()
+        : String.format("%d cluster alerts", alerts.size());
+    StringBuilder content = new StringBuilder();
+    for (Alert alert : alerts) {
+      content.append(alert.getSubject()).append('\n').append(alert.getDetails()).append("\n\n");
+    }
+    try {
+      notifier.sendNotification(subject, content.toString());
+    } catch (RuntimeException e) {
+      log.error("Error sending alerts [{}]", subject, e);
+    }
+  }
+
+  public void stop() {
+    if (scheduler != null) {
+      scheduler.shutdown();
+    }
+  }
+
+  @Data
+  private static class Alert {
+    private final String key;
+    private final boolean active;
+    private final String details;
+
+    String getSubject() {
+      return active ? key : key + " (resolved)";
+    }
+  }
+}
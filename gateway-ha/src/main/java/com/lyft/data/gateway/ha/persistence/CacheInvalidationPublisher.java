@@ -0,0 +1,158 @@
+package com.lyft.data.gateway.ha.persistence;
+
+import com.lyft.data.gateway.ha.config.PersistenceCacheConfiguration;
+import io.dropwizard.lifecycle.Managed;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+import javax.ws.rs.HttpMethod;
+import lombok.extern.slf4j.Slf4j;
+import org.javalite.activejdbc.cache.CacheEvent;
+import org.javalite.activejdbc.cache.CacheEventListener;
+
+/**
+ * Tells the other gateway instances to purge the query cache of a table when it is written here,
+ * so that they do not serve stale rows until the TTL of their cache. The written tables are
+ * collected and sent to each peer in a single request per delay, from a background thread, so
+ * writes never wait on the peers. Tables that are not cached are not sent. The background thread
+ * runs between {@link #start()} and {@link #stop()}, called by the application lifecycle.
+ */
+@Slf4j
+public class CacheInvalidationPublisher implements CacheEventListener, Managed {
+  public static final String PURGE_PATH = "/gateway/cache/purge";
+  private static final int PEER_TIMEOUT_MILLIS = 5000;
+
+  private final List<String> peers;
+  private final Predicate<String> cached;
+  private final BiConsumer<String, Collection<String>> sender;
+  private final Set<String> pendingTables = new LinkedHashSet<>();
+  private final long delayMillis;
+  private boolean purgeAll;
+  private ScheduledExecutorService scheduler;
+
+  public CacheInvalidationPublisher(
+      PersistenceCacheConfiguration configuration, ModelCacheManager cacheManager) {
+    this(configuration.getPeers(), cacheManager::isCached, CacheInvalidationPublisher::sendPurge,
+        Math.max(configuration.getInvalidationDelayMillis(), 1));
+  }
+
+  /**
+   * Creates a publisher without its background thread, purges are sent by
+   * {@link CacheInvalidationPublisher#publish()}.
+   *
+   * @param peers base urls of the other gateway instances
+   * @param cached whether a table is cached
+   * @param sender sends the tables to purge to a peer, an empty collection meaning all tables
+   */
+  public CacheInvalidationPublisher(List<String> peers, Predicate<String> cached,
+      BiConsumer<String, Collection<String>> sender) {
+    this(peers, cached, sender, 0);
+  }
+
+  CacheInvalidationPublisher(List<String> peers, Predicate<String> cached,
+      BiConsumer<String, Collection<String>> sender, long delayMillis) {
+    this.peers = peers;
+    this.cached = cached;
+    this.sender = sender;
+    this.delayMillis = delayMillis;
+  }
+
+  @Override
+  public synchronized void onFlush(CacheEvent event) {
+    if (event.getType() == CacheEvent.CacheEventType.ALL) {
+      purgeAll = true;
+    } else if (cached.test(event.getGroup())) {
+      pendingTables.add(event.getGroup());
+    }
+  }
+
+  /**
+   * Sends the tables written since the last call to each peer.
+   */
+  public void publish() {
+    List<String> tables;
+    synchronized (this) {
+      if (!purgeAll && pendingTables.isEmpty()) {
+        return;
+      }
+      tables = purgeAll ? new ArrayList<>() : new ArrayList<>(pendingTables);
+      purgeAll = false;
+      pendingTables.clear();
+    }
+    for (String peer : peers) {
+      try {
+        sender.accept(peer, tables);
+      } catch (RuntimeException e) {
+        log.warn("Error purging the query cache of {} on {}", tables, peer, e);
+      }
+    }
+  }
+
+  @Override
+  public synchronized void start() {
+    if (scheduler != null || delayMillis == 0) {
+      return;
+    }
+    scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "cache-invalidation-publisher");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleWithFixedDelay(
+        this::publish, delayMillis, delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stops the background thread, after sending the tables written since its last run.
+   */
+  @Override
+  public void stop() throws InterruptedException {
+    ScheduledExecutorService stopped;
+    synchronized (this) {
+      stopped = scheduler;
+      scheduler = null;
+    }
+    if (stopped != null) {
+      stopped.shutdown();
+      stopped.awaitTermination(PEER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+      publish();
+    }
+  }
+
+  private static void sendPurge(String peer, Collection<String> tables) {
+    HttpURLConnection conn = null;
+    try {
+      StringBuilder target = new StringBuilder(peer.replaceAll("/+$", "")).append(PURGE_PATH);
+      char separator = '?';
+      for (String table : tables) {
+        target.append(separator).append("table=").append(URLEncoder.encode(table, "UTF-8"));
+        separator = '&';
+      }
+      conn = (HttpURLConnection) new URL(target.toString()).openConnection();
+      conn.setConnectTimeout(PEER_TIMEOUT_MILLIS);
+      conn.setReadTimeout(PEER_TIMEOUT_MILLIS);
+      conn.setRequestMethod(HttpMethod.POST);
+      conn.connect();
+      int responseCode = conn.getResponseCode();
+      if (responseCode / 100 != 2) {
+        log.warn("Received response code {} purging the query cache on {}", responseCode, peer);
+      }
+    } catch (Exception e) {
+      log.warn("Error purging the query cache on {}", peer, e);
+    } finally {
+      if (conn != null) {
+        conn.disconnect();
+      }
+    }
+  }
+}
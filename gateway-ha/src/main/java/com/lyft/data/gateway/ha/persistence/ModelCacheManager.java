@@ -0,0 +1,209 @@
+package com.lyft.data.gateway.ha.persistence;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.lyft.data.gateway.ha.config.ModelCacheConfiguration;
+import com.lyft.data.gateway.ha.config.PersistenceCacheConfiguration;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+import org.javalite.activejdbc.cache.CacheEvent;
+import org.javalite.activejdbc.cache.CacheManager;
+import org.javalite.activejdbc.cache.QueryCache;
+
+/**
+ * Query cache of the ActiveJDBC models annotated with {@code @Cached}, installed as the cache
+ * manager in activejdbc.properties. Each table gets its own cache with the size and TTL of its
+ * policy, and the tables whose policy is disabled are not cached at all. ActiveJDBC purges the
+ * cache of a table whenever it is written, so only tables read much more than written should be
+ * cached. Hits and misses are registered in the metric registry as
+ * persistence.cache.[table].[statistic].
+ */
+@Slf4j
+public class ModelCacheManager extends CacheManager {
+  private static final String METRIC_PREFIX = "persistence.cache";
+  private static final CacheStats EMPTY_STATS = new CacheStats(0, 0, 0, 0, 0, 0);
+
+  private final Ticker ticker;
+  // Disabled tables are kept as empty caches so that their policy is only looked up once
+  private final Map<String, Optional<Cache<String, Object>>> caches = new ConcurrentHashMap<>();
+  private volatile PersistenceCacheConfiguration configuration;
+  private volatile MetricRegistry metrics;
+
+  /**
+   * Creates a cache manager with the default policies, ActiveJDBC instantiates it by name and
+   * {@link ModelCacheManager#configure(PersistenceCacheConfiguration)} sets the actual ones.
+   */
+  public ModelCacheManager() {
+    this(new PersistenceCacheConfiguration(), Ticker.systemTicker());
+  }
+
+  ModelCacheManager(PersistenceCacheConfiguration configuration, Ticker ticker) {
+    this.configuration = configuration;
+    this.ticker = ticker;
+  }
+
+  /**
+   * Returns the cache manager used by ActiveJDBC.
+   *
+   * @throws IllegalStateException if ActiveJDBC is configured with another cache manager
+   */
+  public static ModelCacheManager getInstance() {
+    CacheManager manager = QueryCache.instance().getCacheManager();
+    if (!(manager instanceof ModelCacheManager)) {
+      throw new IllegalStateException("ActiveJDBC is not configured with "
+          + ModelCacheManager.class.getName() + " as its cache manager");
+    }
+    return (ModelCacheManager) manager;
+  }
+
+  /**
+   * Replaces the cache policies, dropping everything cached so far.
+   */
+  public void configure(PersistenceCacheConfiguration configuration) {
+    this.configuration = configuration;
+    caches.clear();
+  }
+
+  public void registerMetrics(MetricRegistry metrics) {
+    this.metrics = metrics;
+    caches.keySet().forEach(this::registerTableMetrics);
+  }
+
+  public ModelCacheConfiguration getPolicy(String table) {
+    return configuration.getModels().getOrDefault(table, configuration.getDefaults());
+  }
+
+  public boolean isCached(String table) {
+    return cache(table) != null;
+  }
+
+  public CacheStats getStats(String table) {
+    Optional<Cache<String, Object>> cache = caches.get(table);
+    return cache != null && cache.isPresent() ? cache.get().stats() : EMPTY_STATS;
+  }
+
+  @Override
+  public Object getCache(String group, String key) {
+    Cache<String, Object> cache = cache(group);
+    return cache == null ? null : cache.getIfPresent(key);
+  }
+
+  @Override
+  public void addCache(String group, String key, Object cache) {
+    Cache<String, Object> tableCache = cache(group);
+    if (tableCache != null) {
+      tableCache.put(key, cache);
+    }
+  }
+
+  @Override
+  public void doFlush(CacheEvent event) {
+    if (event.getType() == CacheEvent.CacheEventType.ALL) {
+      caches.values().forEach(cache -> cache.ifPresent(Cache::invalidateAll));
+    } else {
+      Optional<Cache<String, Object>> cache = caches.get(event.getGroup());
+      if (cache != null) {
+        cache.ifPresent(Cache::invalidateAll);
+      }
+    }
+  }
+
+  @Override
+  public Object getImplementation() {
+    return caches;
+  }
+
+  /**
+   * Purges tables written by another gateway instance. Unlike a local write, this does not notify
+   * the cache event listeners, so the purge is not sent back to the other instances.
+   *
+   * @param tables the tables to purge, or an empty collection to purge all of them
+   */
+  public void purge(Collection<String> tables) {
+    String source = getClass().getName();
+    if (tables.isEmpty()) {
+      flush(new CacheEvent(source), false);
+      return;
+    }
+    for (String table : tables) {
+      flush(new CacheEvent(table, source), false);
+    }
+  }
+
+  /**
+   * Tells whether a request comes from one of the peers, the only callers allowed to purge the
+   * cache. Each instance must list the others as its peers.
+   *
+   * @param remoteAddress the IP address the request comes from
+   */
+  public boolean isPeer(String remoteAddress) {
+    InetAddress remote;
+    try {
+      // A literal address is parsed without a lookup
+      remote = InetAddress.getByName(remoteAddress);
+    } catch (UnknownHostException e) {
+      return false;
+    }
+    for (String peer : configuration.getPeers()) {
+      try {
+        String host = URI.create(peer).getHost();
+        if (host != null && Arrays.asList(InetAddress.getAllByName(host)).contains(remote)) {
+          return true;
+        }
+      } catch (IllegalArgumentException | UnknownHostException e) {
+        log.warn("Cannot resolve the address of peer {}", peer, e);
+      }
+    }
+    return false;
+  }
+
+  private Cache<String, Object> cache(String table) {
+    Optional<Cache<String, Object>> cache = caches.get(table);
+    if (cache == null) {
+      cache = caches.computeIfAbsent(table, this::buildCache);
+      registerTableMetrics(table);
+    }
+    return cache.orElse(null);
+  }
+
+  private Optional<Cache<String, Object>> buildCache(String table) {
+    ModelCacheConfiguration policy = getPolicy(table);
+    if (!policy.isEnabled()) {
+      log.debug("Query cache disabled for table {}", table);
+      return Optional.empty();
+    }
+    return Optional.of(CacheBuilder.newBuilder()
+        .maximumSize(policy.getMaximumSize())
+        .expireAfterWrite(policy.getTtlSeconds(), TimeUnit.SECONDS)
+        .ticker(ticker)
+        .recordStats()
+        .build());
+  }
+
+  private void registerTableMetrics(String table) {
+    MetricRegistry registry = metrics;
+    if (registry == null || !getPolicy(table).isEnabled()) {
+      return;
+    }
+    registry.gauge(MetricRegistry.name(METRIC_PREFIX, table, "hits"),
+        () -> (Gauge<Long>) () -> getStats(table).hitCount());
+    registry.gauge(MetricRegistry.name(METRIC_PREFIX, table, "misses"),
+        () -> (Gauge<Long>) () -> getStats(table).missCount());
+    registry.gauge(MetricRegistry.name(METRIC_PREFIX, table, "evictions"),
+        () -> (Gauge<Long>) () -> getStats(table).evictionCount());
+    registry.gauge(MetricRegistry.name(METRIC_PREFIX, table, "hitRatio"),
+        () -> (Gauge<Double>) () -> getStats(table).hitRate());
+  }
+}
@@ -6,13 +6,11 @@ import java.util.ArrayList;
 import java.util.List;
 
 import org.javalite.activejdbc.Model;
-import org.javalite.activejdbc.annotations.Cached;
 import org.javalite.activejdbc.annotations.IdName;
 import org.javalite.activejdbc.annotations.Table;
 
 @IdName("query_id")
 @Table("query_history")
-@Cached
 public class QueryHistory extends Model {
   private static final String queryId = "query_id";
   private static final String queryText = "query_text";
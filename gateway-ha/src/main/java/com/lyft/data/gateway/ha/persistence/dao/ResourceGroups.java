@@ -7,7 +7,6 @@ import java.util.List;
 
 import org.javalite.activejdbc.Model;
 import org.javalite.activejdbc.annotations.BelongsTo;
-import org.javalite.activejdbc.annotations.Cached;
 import org.javalite.activejdbc.annotations.HasMany;
 import org.javalite.activejdbc.annotations.IdName;
 import org.javalite.activejdbc.annotations.Table;
@@ -16,7 +15,6 @@ import org.javalite.activejdbc.annotations.Table;
 @HasMany(child = ResourceGroups.class, foreignKeyName = "parent")
 @IdName("resource_group_id")
 @Table("resource_groups") // located in gateway-ha-persistence.sql
-@Cached
 public class ResourceGroups extends Model {
   private static final String resourceGroupId = "resource_group_id";
   private static final String name = "name";
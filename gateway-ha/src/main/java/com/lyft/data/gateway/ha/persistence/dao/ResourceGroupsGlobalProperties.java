@@ -6,13 +6,11 @@ import java.util.ArrayList;
 import java.util.List;
 
 import org.javalite.activejdbc.Model;
-import org.javalite.activejdbc.annotations.Cached;
 import org.javalite.activejdbc.annotations.IdName;
 import org.javalite.activejdbc.annotations.Table;
 
 @IdName("name")
 @Table("resource_groups_global_properties") // located in gateway-ha-persistence.sql
-@Cached
 public class ResourceGroupsGlobalProperties extends Model {
   private static final String name = "name";
   private static final String value = "value";
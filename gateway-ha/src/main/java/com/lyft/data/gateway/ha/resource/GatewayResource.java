@@ -1,13 +1,20 @@
 package com.lyft.data.gateway.ha.resource;
 
 import com.google.inject.Inject;
+import com.lyft.data.gateway.ha.persistence.ModelCacheManager;
+import com.lyft.data.gateway.ha.router.BackendDrainer;
 import com.lyft.data.gateway.ha.router.GatewayBackendManager;
 
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Request;
@@ -19,7 +26,12 @@ import lombok.extern.slf4j.Slf4j;
 @Produces(MediaType.APPLICATION_JSON)
 public class GatewayResource {
 
+  // Waits hold a server thread, longer drains are followed by polling the status
+  private static final long MAX_DRAIN_WAIT_SECONDS = 10;
+
   @Inject private GatewayBackendManager gatewayBackendManager;
+  @Inject private BackendDrainer backendDrainer;
+  @Inject private ModelCacheManager modelCacheManager;
 
   @GET
   public Response ok(@Context Request request) {
@@ -62,6 +74,70 @@ public class GatewayResource {
     return Response.ok().build();
   }
 
+  /**
+   * Stops routing new queries to a backend, while its running queries keep being routed to it.
+   */
+  @POST
+  @Path("/backend/drain/{name}")
+  public Response drainBackend(@PathParam("name") String name) {
+    try {
+      return Response.ok(backendDrainer.drain(name)).build();
+    } catch (Exception e) {
+      log.error(e.getMessage(), e);
+      return throwError(e);
+    }
+  }
+
+  @GET
+  @Path("/backend/drain/{name}")
+  public Response getDrainStatus(@PathParam("name") String name) {
+    try {
+      return Response.ok(backendDrainer.getStatus(name)).build();
+    } catch (Exception e) {
+      log.error(e.getMessage(), e);
+      return throwError(e);
+    }
+  }
+
+  /**
+   * Waits until a draining backend has no running queries, or until the timeout of at most ten
+   * seconds. The state in the returned status tells whether the backend was drained, clients
+   * wait again while it is draining.
+   */
+  @GET
+  @Path("/backend/drain/{name}/wait")
+  public Response awaitBackendDrained(
+      @PathParam("name") String name,
+      @QueryParam("timeoutSeconds") @DefaultValue("10") long timeoutSeconds) {
+    try {
+      long timeoutMillis =
+          TimeUnit.SECONDS.toMillis(Math.min(timeoutSeconds, MAX_DRAIN_WAIT_SECONDS));
+      return Response.ok(backendDrainer.awaitDrained(name, timeoutMillis)).build();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return Response.status(Response.Status.SERVICE_UNAVAILABLE).build();
+    } catch (Exception e) {
+      log.error(e.getMessage(), e);
+      return throwError(e);
+    }
+  }
+
+  /**
+   * Purges the query cache of tables written by another gateway instance, or of all tables when
+   * none is given. Only the configured peers may purge.
+   */
+  @POST
+  @Path("/cache/purge")
+  public Response purgeCache(@Context HttpServletRequest request,
+                             @QueryParam("table") List<String> tables) {
+    if (!modelCacheManager.isPeer(request.getRemoteAddr())) {
+      log.warn("Rejecting a cache purge from {}, which is not a peer", request.getRemoteAddr());
+      return Response.status(Response.Status.FORBIDDEN).build();
+    }
+    modelCacheManager.purge(tables);
+    return Response.ok().build();
+  }
+
   private Response throwError(Exception e) {
     return Response.status(Response.Status.NOT_FOUND)
         .entity(e.getMessage())
@@ -1,6 +1,7 @@
 package com.lyft.data.gateway.ha.resource;
 
 import com.google.inject.Inject;
+import com.lyft.data.gateway.ha.clustermonitor.ClusterStatsHistory;
 import com.lyft.data.gateway.ha.config.ProxyBackendConfiguration;
 import com.lyft.data.gateway.ha.router.GatewayBackendManager;
 import com.lyft.data.gateway.ha.router.QueryHistoryManager;
@@ -12,9 +13,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
 import lombok.Data;
 
@@ -23,6 +26,7 @@ public class GatewayViewResource {
   private static final long START_TIME = System.currentTimeMillis();
   @Inject private GatewayBackendManager gatewayBackendManager;
   @Inject private QueryHistoryManager queryHistoryManager;
+  @Inject private ClusterStatsHistory clusterStatsHistory;
 
   @GET
   @Produces(MediaType.TEXT_HTML)
@@ -71,6 +75,21 @@ public class GatewayViewResource {
         .collect(Collectors.toList());
   }
 
+  /**
+   * Cluster stats samples collected by the cluster monitor, oldest first.
+   *
+   * @param clusterId a cluster, or all clusters if missing
+   * @param maxPoints the maximum number of samples per cluster, older samples are merged
+   */
+  @GET
+  @Path("api/clusterStats/history")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Map<String, List<ClusterStatsHistory.Sample>> getClusterStatsHistory(
+      @QueryParam("clusterId") String clusterId,
+      @QueryParam("maxPoints") @DefaultValue("120") int maxPoints) {
+    return clusterStatsHistory.getHistory(clusterId, maxPoints);
+  }
+
   @GET
   @Path("api/queryHistoryDistribution")
   @Produces(MediaType.APPLICATION_JSON)
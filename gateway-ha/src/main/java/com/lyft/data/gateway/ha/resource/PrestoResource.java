@@ -7,7 +7,9 @@ import com.google.inject.Inject;
 
 import com.lyft.data.gateway.ha.router.ResourceGroupsManager;
 import com.lyft.data.gateway.ha.router.ResourceGroupsManager.GlobalPropertiesDetail;
+import com.lyft.data.gateway.ha.router.ResourceGroupsManager.ResourceGroupsChange;
 import com.lyft.data.gateway.ha.router.ResourceGroupsManager.ResourceGroupsDetail;
+import com.lyft.data.gateway.ha.router.ResourceGroupsManager.ResourceGroupsTree;
 import com.lyft.data.gateway.ha.router.ResourceGroupsManager.SelectorsDetail;
 
 import java.io.IOException;
@@ -236,6 +238,73 @@ public class PrestoResource {
     return Response.ok().build();
   }
 
+  @GET
+  @Path("/resourcegroup/export")
+  public Response exportResourceGroups(@QueryParam("useSchema") String useSchema) {
+    return Response.ok(this.resourceGroupsManager.exportResourceGroups(useSchema)).build();
+  }
+
+  /**
+   * Replaces all the resource groups, selectors and global properties with the ones of the
+   * payload, in a single transaction.
+   */
+  @Path("/resourcegroup/import")
+  @POST
+  public Response importResourceGroups(String jsonPayload,
+                                       @QueryParam("useSchema") String useSchema) {
+    try {
+      ResourceGroupsTree resourceGroupsTree =
+          OBJECT_MAPPER.readValue(jsonPayload, ResourceGroupsTree.class);
+      this.resourceGroupsManager.importResourceGroups(resourceGroupsTree, useSchema);
+      return Response.ok().build();
+    } catch (IOException e) {
+      log.error(e.getMessage(), e);
+      throw new WebApplicationException(e);
+    } catch (IllegalArgumentException e) {
+      return Response.status(Response.Status.BAD_REQUEST)
+          .entity(e.getMessage())
+          .type("text/plain")
+          .build();
+    }
+  }
+
+  /**
+   * Applies a change to the resource groups of several databases in parallel, given as useSchema
+   * parameters, an empty one for the default database. With allOrNothing, the change is only
+   * committed if it could be applied to every database.
+   */
+  @Path("/resourcegroup/apply")
+  @POST
+  public Response applyResourceGroupsChange(String jsonPayload,
+                                            @QueryParam("useSchema") List<String> useSchemas,
+                                            @QueryParam("allOrNothing") boolean allOrNothing) {
+    try {
+      if (useSchemas == null || useSchemas.isEmpty()) {
+        throw new IllegalArgumentException("At least one useSchema is required");
+      }
+      ResourceGroupsChange change =
+          OBJECT_MAPPER.readValue(jsonPayload, ResourceGroupsChange.class);
+      return Response.ok(this.resourceGroupsManager.applyResourceGroupsChange(
+          change, useSchemas, allOrNothing)).build();
+    } catch (IOException e) {
+      log.error(e.getMessage(), e);
+      throw new WebApplicationException(e);
+    } catch (IllegalArgumentException e) {
+      return Response.status(Response.Status.BAD_REQUEST)
+          .entity(e.getMessage())
+          .type("text/plain")
+          .build();
+    }
+  }
+
+  @GET
+  @Path("/resourcegroup/diff")
+  public Response diffResourceGroups(@QueryParam("first") String first,
+                                     @QueryParam("second") String second) {
+    return Response.ok(this.resourceGroupsManager.diffResourceGroups(
+        Strings.emptyToNull(first), Strings.emptyToNull(second))).build();
+  }
+
   /* Unused API for ExactMatchSourceSelectors, as it is currently not used in Lyft
     @POST
     @Path("/exactmatchsourceselector/create")
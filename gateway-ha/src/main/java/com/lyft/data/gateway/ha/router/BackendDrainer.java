@@ -0,0 +1,126 @@
+package com.lyft.data.gateway.ha.router;
+
+import com.lyft.data.gateway.ha.config.ProxyBackendConfiguration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Drains backends before maintenance. A draining backend is deactivated, so no new queries are
+ * routed to it, while requests for its running queries are still routed to it by query id. The
+ * backend is drained once the gateway has seen all the queries it routed there complete.
+ *
+ * <p>The running queries are counted by the {@link OutstandingQueryTracker} of this gateway
+ * instance, queries routed by other instances or submitted to the backend directly are not. Only
+ * the backends drained through this instance are reported as draining or drained, a backend
+ * deactivated otherwise is just inactive.
+ */
+@Slf4j
+public class BackendDrainer {
+  private static final long POLL_INTERVAL_MILLIS = 1000;
+
+  public enum State {
+    ACTIVE,
+    DRAINING,
+    DRAINED,
+    // Deactivated without being drained
+    INACTIVE
+  }
+
+  private final GatewayBackendManager gatewayBackendManager;
+  private final OutstandingQueryTracker outstandingQueryTracker;
+  private final long pollIntervalMillis;
+  // Backends drained through this instance and not activated since
+  private final Set<String> drainedBackends = ConcurrentHashMap.newKeySet();
+
+  public BackendDrainer(
+      GatewayBackendManager gatewayBackendManager,
+      OutstandingQueryTracker outstandingQueryTracker) {
+    this(gatewayBackendManager, outstandingQueryTracker, POLL_INTERVAL_MILLIS);
+  }
+
+  public BackendDrainer(
+      GatewayBackendManager gatewayBackendManager,
+      OutstandingQueryTracker outstandingQueryTracker,
+      long pollIntervalMillis) {
+    this.gatewayBackendManager = gatewayBackendManager;
+    this.outstandingQueryTracker = outstandingQueryTracker;
+    this.pollIntervalMillis = pollIntervalMillis;
+  }
+
+  /**
+   * Stops routing new queries to a backend.
+   *
+   * @param name name of the backend
+   * @return the drain status of the backend
+   * @throws IllegalStateException if the outstanding queries are not tracked
+   */
+  public DrainStatus drain(String name) {
+    checkTracking();
+    getBackend(name);
+    drainedBackends.add(name);
+    gatewayBackendManager.deactivateBackend(name);
+    DrainStatus status = getStatus(name);
+    log.info("Draining backend [{}] with {} running queries", name, status.getRunningQueries());
+    return status;
+  }
+
+  public DrainStatus getStatus(String name) {
+    checkTracking();
+    ProxyBackendConfiguration backend = getBackend(name);
+    outstandingQueryTracker.expireIdleQueries();
+    int runningQueries = outstandingQueryTracker.getOutstandingQueries(backend.getProxyTo());
+    State state;
+    if (backend.isActive()) {
+      // Activated again since it was drained
+      drainedBackends.remove(name);
+      state = State.ACTIVE;
+    } else if (!drainedBackends.contains(name)) {
+      state = State.INACTIVE;
+    } else {
+      state = runningQueries > 0 ? State.DRAINING : State.DRAINED;
+    }
+    return new DrainStatus(name, state, runningQueries);
+  }
+
+  /**
+   * Waits until a draining backend has no running queries.
+   *
+   * @param name name of the backend
+   * @param timeoutMillis longest time to wait
+   * @return the drain status of the backend when it was drained or at the timeout
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public DrainStatus awaitDrained(String name, long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    DrainStatus status = getStatus(name);
+    while (status.getState() == State.DRAINING && System.currentTimeMillis() < deadline) {
+      Thread.sleep(Math.min(pollIntervalMillis,
+          Math.max(deadline - System.currentTimeMillis(), 1)));
+      status = getStatus(name);
+    }
+    return status;
+  }
+
+  private void checkTracking() {
+    if (outstandingQueryTracker == null) {
+      throw new IllegalStateException(
+          "Backend draining is disabled, enable routing.backendDraining to track running queries");
+    }
+  }
+
+  private ProxyBackendConfiguration getBackend(String name) {
+    return gatewayBackendManager.getAllBackends().stream()
+        .filter(backend -> name.equals(backend.getName()))
+        .findFirst()
+        .orElseThrow(() -> new IllegalArgumentException("Backend [" + name + "] not found"));
+  }
+
+  @Data
+  public static class DrainStatus {
+    private final String name;
+    private final State state;
+    private final int runningQueries;
+  }
+}
@@ -0,0 +1,87 @@
+package com.lyft.data.gateway.ha.router;
+
+import com.lyft.data.gateway.ha.clustermonitor.ClusterStats;
+import com.lyft.data.gateway.ha.clustermonitor.PrestoClusterStatsObserver;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Tracks the health of the backends from the results of the cluster monitor, so that new queries
+ * are only routed to healthy backends. A backend is ejected after a number of consecutive failed
+ * checks and readmitted after a number of consecutive successful ones, so a backend flapping
+ * between the two is not routed to on every other check. Backends the monitor has not checked yet
+ * are healthy.
+ */
+@Slf4j
+public class BackendHealthRegistry implements PrestoClusterStatsObserver {
+  private final int unhealthyThreshold;
+  private final int healthyThreshold;
+  private final Map<String, BackendHealth> backends = new ConcurrentHashMap<>();
+
+  /**
+   * Creates a registry.
+   *
+   * @param unhealthyThreshold consecutive failed checks to eject a backend
+   * @param healthyThreshold consecutive successful checks to readmit an ejected backend
+   */
+  public BackendHealthRegistry(int unhealthyThreshold, int healthyThreshold) {
+    this.unhealthyThreshold = Math.max(unhealthyThreshold, 1);
+    this.healthyThreshold = Math.max(healthyThreshold, 1);
+  }
+
+  @Override
+  public void observe(List<ClusterStats> stats) {
+    Set<String> checked = new HashSet<>();
+    for (ClusterStats clusterStats : stats) {
+      String name = clusterStats.getClusterId();
+      if (name != null) {
+        checked.add(name);
+        backends.computeIfAbsent(name, k -> new BackendHealth())
+            .record(name, clusterStats.isHealthy());
+      }
+    }
+    // Backends no longer monitored were deactivated, they start as healthy if activated again
+    backends.keySet().retainAll(checked);
+  }
+
+  /**
+   * Whether new queries can be routed to a backend.
+   *
+   * @param name the name of the backend
+   * @return
+   */
+  public boolean isHealthy(String name) {
+    BackendHealth health = backends.get(name);
+    return health == null || health.healthy;
+  }
+
+  private class BackendHealth {
+    // Read by the routing threads, the counters are only updated by the monitor thread
+    private volatile boolean healthy = true;
+    private int consecutiveFailures;
+    private int consecutiveSuccesses;
+
+    void record(String name, boolean success) {
+      if (success) {
+        consecutiveFailures = 0;
+        consecutiveSuccesses++;
+        if (!healthy && consecutiveSuccesses >= healthyThreshold) {
+          log.info("Backend [{}] readmitted after {} successful checks", name,
+              consecutiveSuccesses);
+          healthy = true;
+        }
+      } else {
+        consecutiveSuccesses = 0;
+        consecutiveFailures++;
+        if (healthy && consecutiveFailures >= unhealthyThreshold) {
+          log.warn("Backend [{}] ejected after {} failed checks", name, consecutiveFailures);
+          healthy = false;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package com.lyft.data.gateway.ha.router;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.lyft.data.gateway.ha.config.ProxyBackendConfiguration;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Consistent hashing with bounded loads. Backends are placed on a hash ring at a number of virtual
+ * nodes each, and a query goes to the first backend clockwise from the hash of its routing key, so
+ * the queries with the same key hit the same warm caches, and a backend joining or leaving only
+ * moves the keys next to its virtual nodes. To keep a popular key from overloading its backend, a
+ * backend is skipped once its outstanding queries exceed the load factor times the average.
+ * Queries without a routing key are routed at random.
+ */
+public class ConsistentHashStrategy implements RoutingStrategy {
+  private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+  private final OutstandingQueryTracker outstandingQueryTracker;
+  private final int virtualNodes;
+  private final double loadFactor;
+  // Rings by candidate backends, which change as backends are activated, ejected or retried
+  private final Cache<List<String>, HashRing> rings =
+      CacheBuilder.newBuilder().maximumSize(64).build();
+
+  public ConsistentHashStrategy(
+      OutstandingQueryTracker outstandingQueryTracker, int virtualNodes, double loadFactor) {
+    this.outstandingQueryTracker = outstandingQueryTracker;
+    this.virtualNodes = Math.max(virtualNodes, 1);
+    this.loadFactor = Math.max(loadFactor, 1.0);
+  }
+
+  @Override
+  public String pickBackend(
+      String routingGroup,
+      String user,
+      String routingKey,
+      List<ProxyBackendConfiguration> backends) {
+    if (routingKey == null || backends.size() == 1) {
+      return backends.get(ThreadLocalRandom.current().nextInt(backends.size())).getProxyTo();
+    }
+    List<String> candidates = backends.stream()
+        .map(ProxyBackendConfiguration::getProxyTo)
+        .sorted()
+        .collect(Collectors.toList());
+    HashRing ring;
+    try {
+      ring = rings.get(candidates, () -> new HashRing(candidates, virtualNodes));
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+
+    long totalLoad = 0;
+    for (String candidate : candidates) {
+      totalLoad += outstandingQueryTracker.getOutstandingQueries(candidate);
+    }
+    // Counting the new query, at least one backend is always below the bound
+    long maxLoad = (long) Math.ceil(loadFactor * (totalLoad + 1) / candidates.size());
+    return ring.find(hash(routingKey), backend ->
+        outstandingQueryTracker.getOutstandingQueries(backend) < maxLoad);
+  }
+
+  static long hash(String value) {
+    return HASH_FUNCTION.hashString(value, StandardCharsets.UTF_8).asLong();
+  }
+
+  static class HashRing {
+    private final long[] points;
+    private final String[] owners;
+    private final int backendCount;
+
+    HashRing(List<String> backends, int virtualNodes) {
+      backendCount = backends.size();
+      long[][] nodes = new long[backends.size() * virtualNodes][];
+      int index = 0;
+      for (int backend = 0; backend < backends.size(); backend++) {
+        for (int node = 0; node < virtualNodes; node++) {
+          nodes[index++] = new long[] {hash(backends.get(backend) + "#" + node), backend};
+        }
+      }
+      Arrays.sort(nodes, (a, b) -> Long.compare(a[0], b[0]));
+      points = new long[nodes.length];
+      owners = new String[nodes.length];
+      for (int i = 0; i < nodes.length; i++) {
+        points[i] = nodes[i][0];
+        owners[i] = backends.get((int) nodes[i][1]);
+      }
+    }
+
+    /**
+     * Walks the ring clockwise from a hash to the first backend accepted by the filter, or the
+     * first backend if none is.
+     */
+    String find(long hash, Predicate<String> accept) {
+      int start = Arrays.binarySearch(points, hash);
+      if (start < 0) {
+        start = -start - 1;
+      }
+      Set<String> visited = new HashSet<>();
+      for (int i = 0; i < points.length && visited.size() < backendCount; i++) {
+        String owner = owners[(start + i) % points.length];
+        if (visited.add(owner) && accept.test(owner)) {
+          return owner;
+        }
+      }
+      return owners[start % points.length];
+    }
+  }
+}
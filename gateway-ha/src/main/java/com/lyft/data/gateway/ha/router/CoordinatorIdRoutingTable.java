@@ -0,0 +1,78 @@
+package com.lyft.data.gateway.ha.router;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Maps the coordinator id suffix of query ids to backends. A Presto/Trino query id looks like
+ * YYYYMMDD_HHMMSS_NNNNN_xxxxx, where the last segment stays the same for the lifetime of a
+ * coordinator. Once the suffix of a backend is learnt from one of its queries, the backend of any
+ * other query it runs is known without any per query state.
+ */
+@Slf4j
+public class CoordinatorIdRoutingTable {
+  private static final Pattern QUERY_ID_PATTERN = Pattern.compile("\\d{8}_\\d{6}_\\d{5}_(\\w+)");
+
+  private final Map<String, String> suffixBackendMap = new ConcurrentHashMap<>();
+  private final Map<String, String> backendSuffixMap = new ConcurrentHashMap<>();
+  // Suffixes seen on more than one backend, these are never used for routing
+  private final Set<String> ambiguousSuffixes = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Learns the coordinator id suffix of a backend from one of its query ids.
+   *
+   * @param queryId
+   * @param backend
+   */
+  public void learn(String queryId, String backend) {
+    String suffix = extractSuffix(queryId);
+    if (suffix == null || backend == null || backend.equals(suffixBackendMap.get(suffix))) {
+      return;
+    }
+    synchronized (this) {
+      if (ambiguousSuffixes.contains(suffix)) {
+        return;
+      }
+      String knownBackend = suffixBackendMap.get(suffix);
+      if (knownBackend != null && !knownBackend.equals(backend)) {
+        log.warn("Coordinator id [{}] seen on backends [{}] and [{}], not routing on it",
+            suffix, knownBackend, backend);
+        ambiguousSuffixes.add(suffix);
+        suffixBackendMap.remove(suffix);
+        backendSuffixMap.remove(knownBackend, suffix);
+        return;
+      }
+      String previousSuffix = backendSuffixMap.put(backend, suffix);
+      if (previousSuffix != null && !previousSuffix.equals(suffix)) {
+        // The coordinator was restarted, queries of the previous instance are gone
+        log.info("Coordinator id of backend [{}] changed from [{}] to [{}]",
+            backend, previousSuffix, suffix);
+        suffixBackendMap.remove(previousSuffix, backend);
+      }
+      suffixBackendMap.put(suffix, backend);
+    }
+  }
+
+  /**
+   * Finds the backend running a query from its coordinator id suffix.
+   *
+   * @param queryId
+   * @return the backend, or null if the suffix is unknown or ambiguous
+   */
+  public String findBackend(String queryId) {
+    String suffix = extractSuffix(queryId);
+    return suffix == null ? null : suffixBackendMap.get(suffix);
+  }
+
+  static String extractSuffix(String queryId) {
+    if (queryId == null) {
+      return null;
+    }
+    Matcher matcher = QUERY_ID_PATTERN.matcher(queryId);
+    return matcher.matches() ? matcher.group(1) : null;
+  }
+}
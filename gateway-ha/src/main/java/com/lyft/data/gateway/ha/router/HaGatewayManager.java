@@ -6,16 +6,29 @@ import com.lyft.data.gateway.ha.persistence.JdbcConnectionManager;
 import com.lyft.data.gateway.ha.persistence.dao.GatewayBackend;
 
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
 public class HaGatewayManager implements GatewayBackendManager {
   private JdbcConnectionManager connectionManager;
+  private final List<Runnable> changeListeners = new CopyOnWriteArrayList<>();
 
   public HaGatewayManager(JdbcConnectionManager connectionManager) {
     this.connectionManager = connectionManager;
   }
 
+  /**
+   * Adds a listener run after each change of the backends made through this manager.
+   */
+  public void addChangeListener(Runnable listener) {
+    changeListeners.add(listener);
+  }
+
+  private void notifyChange() {
+    changeListeners.forEach(Runnable::run);
+  }
+
   @Override
   public List<ProxyBackendConfiguration> getAllBackends() {
     try {
@@ -73,6 +86,7 @@ public class HaGatewayManager implements GatewayBackendManager {
     } finally {
       connectionManager.close();
     }
+    notifyChange();
   }
 
   @Override
@@ -83,6 +97,7 @@ public class HaGatewayManager implements GatewayBackendManager {
     } finally {
       connectionManager.close();
     }
+    notifyChange();
   }
 
   public ProxyBackendConfiguration addBackend(ProxyBackendConfiguration backend) {
@@ -92,6 +107,7 @@ public class HaGatewayManager implements GatewayBackendManager {
     } finally {
       connectionManager.close();
     }
+    notifyChange();
     return backend;
   }
 
@@ -107,6 +123,7 @@ public class HaGatewayManager implements GatewayBackendManager {
     } finally {
       connectionManager.close();
     }
+    notifyChange();
     return backend;
   }
 
@@ -117,5 +134,6 @@ public class HaGatewayManager implements GatewayBackendManager {
     } finally {
       connectionManager.close();
     }
+    notifyChange();
   }
 }
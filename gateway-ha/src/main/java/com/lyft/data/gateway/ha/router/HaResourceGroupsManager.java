@@ -1,5 +1,6 @@
 package com.lyft.data.gateway.ha.router;
 
+import com.google.common.base.Strings;
 import com.lyft.data.gateway.ha.persistence.JdbcConnectionManager;
 import com.lyft.data.gateway.ha.persistence.dao.ExactMatchSourceSelectors;
 import com.lyft.data.gateway.ha.persistence.dao.ResourceGroups;
@@ -7,17 +8,60 @@ import com.lyft.data.gateway.ha.persistence.dao.ResourceGroupsGlobalProperties;
 import com.lyft.data.gateway.ha.persistence.dao.Selectors;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 import javax.annotation.Nullable;
 
+import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
+import org.javalite.activejdbc.Base;
 
 @Slf4j
 public class HaResourceGroupsManager implements ResourceGroupsManager {
+  private static final long DEFAULT_CACHE_TTL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+  private static final long FAN_OUT_TIMEOUT_SECONDS = 60;
+  // Each database of a change holds a thread and a connection until the change is decided
+  static final int MAX_FAN_OUT_DATABASES = 16;
+
   private JdbcConnectionManager connectionManager;
+  private final long cacheTtlMillis;
+  // Keyed by routing group database, the empty string for the default one
+  private final Map<String, AtomicLong> versions = new ConcurrentHashMap<>();
+  private final Map<String, Snapshot> snapshots = new ConcurrentHashMap<>();
 
   public HaResourceGroupsManager(JdbcConnectionManager connectionManager) {
+    this(connectionManager, DEFAULT_CACHE_TTL_MILLIS);
+  }
+
+  /**
+   * Creates a manager caching the resource groups, selectors and global properties of each
+   * database. The cache of a database is invalidated by every write through this manager, and
+   * expires after cacheTtlMillis to pick up the writes of other gateway instances.
+   *
+   * @param connectionManager
+   * @param cacheTtlMillis
+   */
+  public HaResourceGroupsManager(JdbcConnectionManager connectionManager, long cacheTtlMillis) {
     this.connectionManager = connectionManager;
+    this.cacheTtlMillis = cacheTtlMillis;
   }
 
   /**
@@ -35,6 +79,7 @@ public class HaResourceGroupsManager implements ResourceGroupsManager {
       ResourceGroups.create(new ResourceGroups(), resourceGroup);
     } finally {
       connectionManager.close();
+      invalidate(routingGroupDatabase);
     }
     return resourceGroup;
   }
@@ -46,13 +91,7 @@ public class HaResourceGroupsManager implements ResourceGroupsManager {
    */
   @Override
   public List<ResourceGroupsDetail> readAllResourceGroups(@Nullable String routingGroupDatabase) {
-    try {
-      connectionManager.open(routingGroupDatabase);
-      List<ResourceGroups> resourceGroupList = ResourceGroups.findAll();
-      return ResourceGroups.upcast(resourceGroupList);
-    } finally {
-      connectionManager.close();
-    }
+    return getSnapshot(routingGroupDatabase).getResourceGroups();
   }
 
   /**
@@ -64,14 +103,9 @@ public class HaResourceGroupsManager implements ResourceGroupsManager {
   @Override
   public List<ResourceGroupsDetail> readResourceGroup(long resourceGroupId,
                                                       @Nullable String routingGroupDatabase) {
-    try {
-      connectionManager.open(routingGroupDatabase);
-      List<ResourceGroups> resourceGroup =
-              ResourceGroups.where("resource_group_id = ?", resourceGroupId);
-      return ResourceGroups.upcast(resourceGroup);
-    } finally {
-      connectionManager.close();
-    }
+    return getSnapshot(routingGroupDatabase).getResourceGroups().stream()
+        .filter(resourceGroup -> resourceGroup.getResourceGroupId() == resourceGroupId)
+        .collect(Collectors.toList());
   }
 
 
@@ -87,17 +121,10 @@ public class HaResourceGroupsManager implements ResourceGroupsManager {
                                                   @Nullable String routingGroupDatabase) {
     try {
       connectionManager.open(routingGroupDatabase);
-      ResourceGroups model =
-          ResourceGroups.findFirst("resource_group_id = ?",
-                  resourceGroup.getResourceGroupId());
-
-      if (model == null) {
-        ResourceGroups.create(new ResourceGroups(), resourceGroup);
-      } else {
-        ResourceGroups.update(model, resourceGroup);
-      }
+      upsertResourceGroup(resourceGroup);
     } finally {
       connectionManager.close();
+      invalidate(routingGroupDatabase);
     }
     return resourceGroup;
   }
@@ -115,6 +142,7 @@ public class HaResourceGroupsManager implements ResourceGroupsManager {
       ResourceGroups.delete("resource_group_id = ?", resourceGroupId);
     } finally {
       connectionManager.close();
+      invalidate(routingGroupDatabase);
     }
   }
 
@@ -133,6 +161,7 @@ public class HaResourceGroupsManager implements ResourceGroupsManager {
       Selectors.create(new Selectors(), selector);
     } finally {
       connectionManager.close();
+      invalidate(routingGroupDatabase);
     }
     return selector;
   }
@@ -144,13 +173,7 @@ public class HaResourceGroupsManager implements ResourceGroupsManager {
    */
   @Override
   public List<SelectorsDetail> readAllSelectors(@Nullable String routingGroupDatabase) {
-    try {
-      connectionManager.open(routingGroupDatabase);
-      List<Selectors> selectorList = Selectors.findAll();
-      return Selectors.upcast(selectorList);
-    } finally {
-      connectionManager.close();
-    }
+    return getSnapshot(routingGroupDatabase).getSelectors();
   }
 
   /**
@@ -162,14 +185,9 @@ public class HaResourceGroupsManager implements ResourceGroupsManager {
   @Override
   public List<SelectorsDetail> readSelector(long resourceGroupId,
                                             @Nullable String routingGroupDatabase) {
-    try {
-      connectionManager.open(routingGroupDatabase);
-      List<Selectors> selectorList = Selectors.where("resource_group_id = ?",
-              resourceGroupId);
-      return Selectors.upcast(selectorList);
-    } finally {
-      connectionManager.close();
-    }
+    return getSnapshot(routingGroupDatabase).getSelectors().stream()
+        .filter(selector -> selector.getResourceGroupId() == resourceGroupId)
+        .collect(Collectors.toList());
   }
 
   /**
@@ -207,6 +225,7 @@ public class HaResourceGroupsManager implements ResourceGroupsManager {
       }
     } finally {
       connectionManager.close();
+      invalidate(routingGroupDatabase);
     }
     return updatedSelector;
   }
@@ -237,6 +256,7 @@ public class HaResourceGroupsManager implements ResourceGroupsManager {
 
     } finally {
       connectionManager.close();
+      invalidate(routingGroupDatabase);
     }
   }
 
@@ -256,6 +276,7 @@ public class HaResourceGroupsManager implements ResourceGroupsManager {
           new ResourceGroupsGlobalProperties(), globalPropertyDetail);
     } finally {
       connectionManager.close();
+      invalidate(routingGroupDatabase);
     }
     return globalPropertyDetail;
   }
@@ -268,14 +289,7 @@ public class HaResourceGroupsManager implements ResourceGroupsManager {
   @Override
   public List<GlobalPropertiesDetail> readAllGlobalProperties(
           @Nullable String routingGroupDatabase) {
-    try {
-      connectionManager.open(routingGroupDatabase);
-      List<ResourceGroupsGlobalProperties> globalPropertyList =
-          ResourceGroupsGlobalProperties.findAll();
-      return ResourceGroupsGlobalProperties.upcast(globalPropertyList);
-    } finally {
-      connectionManager.close();
-    }
+    return getSnapshot(routingGroupDatabase).getGlobalProperties();
   }
 
   /**
@@ -288,14 +302,9 @@ public class HaResourceGroupsManager implements ResourceGroupsManager {
   @Override
   public List<GlobalPropertiesDetail> readGlobalProperty(String name,
                                                          @Nullable String routingGroupDatabase) {
-    try {
-      connectionManager.open(routingGroupDatabase);
-      List<ResourceGroupsGlobalProperties> globalPropertyList =
-          ResourceGroupsGlobalProperties.where("name = ?", name);
-      return ResourceGroupsGlobalProperties.upcast(globalPropertyList);
-    } finally {
-      connectionManager.close();
-    }
+    return getSnapshot(routingGroupDatabase).getGlobalProperties().stream()
+        .filter(globalProperty -> name.equals(globalProperty.getName()))
+        .collect(Collectors.toList());
   }
 
   /**
@@ -310,16 +319,10 @@ public class HaResourceGroupsManager implements ResourceGroupsManager {
                                                      @Nullable String routingGroupDatabase) {
     try {
       connectionManager.open(routingGroupDatabase);
-      ResourceGroupsGlobalProperties model =
-          ResourceGroupsGlobalProperties.findFirst("name = ?", globalProperty.getName());
-
-      if (model == null) {
-        ResourceGroupsGlobalProperties.create(new ResourceGroupsGlobalProperties(), globalProperty);
-      } else {
-        ResourceGroupsGlobalProperties.update(model, globalProperty);
-      }
+      upsertGlobalProperty(globalProperty);
     } finally {
       connectionManager.close();
+      invalidate(routingGroupDatabase);
     }
     return globalProperty;
   }
@@ -336,6 +339,7 @@ public class HaResourceGroupsManager implements ResourceGroupsManager {
       ResourceGroupsGlobalProperties.delete("name = ?", name);
     } finally {
       connectionManager.close();
+      invalidate(routingGroupDatabase);
     }
   }
 
@@ -406,6 +410,367 @@ public class HaResourceGroupsManager implements ResourceGroupsManager {
     return exactSelectorDetail;
   }
 
+  /**
+   * Exports the resource groups, selectors and global properties of a database, read together
+   * from the database.
+   *
+   * @param routingGroupDatabase
+   * @return
+   */
+  @Override
+  public ResourceGroupsTree exportResourceGroups(@Nullable String routingGroupDatabase) {
+    Snapshot snapshot = loadSnapshot(routingGroupDatabase);
+    ResourceGroupsTree resourceGroupsTree = new ResourceGroupsTree();
+    resourceGroupsTree.setResourceGroups(new ArrayList<>(snapshot.getResourceGroups()));
+    resourceGroupsTree.setSelectors(new ArrayList<>(snapshot.getSelectors()));
+    resourceGroupsTree.setGlobalProperties(new ArrayList<>(snapshot.getGlobalProperties()));
+    return resourceGroupsTree;
+  }
+
+  /**
+   * Replaces the resource groups, selectors and global properties of a database in a single
+   * transaction, so that the database never has part of the new tree. Exact match source
+   * selectors are left as is.
+   *
+   * @param resourceGroupsTree
+   * @param routingGroupDatabase
+   * @throws IllegalArgumentException if a parent or a selector resource group is not in the tree
+   */
+  @Override
+  public void importResourceGroups(ResourceGroupsTree resourceGroupsTree,
+                                   @Nullable String routingGroupDatabase) {
+    List<ResourceGroupsDetail> resourceGroups =
+        parentsFirst(resourceGroupsTree.getResourceGroups(), false);
+    Set<Long> resourceGroupIds = resourceGroups.stream()
+        .map(ResourceGroupsDetail::getResourceGroupId)
+        .collect(Collectors.toSet());
+    for (SelectorsDetail selector : resourceGroupsTree.getSelectors()) {
+      if (!resourceGroupIds.contains(selector.getResourceGroupId())) {
+        throw new IllegalArgumentException(
+            "Selector resource group " + selector.getResourceGroupId() + " not found");
+      }
+    }
+    try {
+      connectionManager.open(routingGroupDatabase);
+      Base.openTransaction();
+      try {
+        Selectors.deleteAll();
+        // The resource groups reference their parents
+        ResourceGroups.updateAll("parent = ?", (Object) null);
+        ResourceGroups.deleteAll();
+        ResourceGroupsGlobalProperties.deleteAll();
+        for (ResourceGroupsDetail resourceGroup : resourceGroups) {
+          ResourceGroups.create(new ResourceGroups(), resourceGroup);
+        }
+        for (SelectorsDetail selector : resourceGroupsTree.getSelectors()) {
+          Selectors.create(new Selectors(), selector);
+        }
+        for (GlobalPropertiesDetail globalProperty : resourceGroupsTree.getGlobalProperties()) {
+          ResourceGroupsGlobalProperties.create(
+              new ResourceGroupsGlobalProperties(), globalProperty);
+        }
+        Base.commitTransaction();
+      } catch (RuntimeException e) {
+        Base.rollbackTransaction();
+        throw e;
+      }
+      log.info("Imported {} resource groups and {} selectors", resourceGroups.size(),
+          resourceGroupsTree.getSelectors().size());
+    } finally {
+      connectionManager.close();
+      invalidate(routingGroupDatabase);
+    }
+  }
+
+  /**
+   * Applies a change to several databases in parallel, each in its own transaction. With
+   * allOrNothing, the transactions are only committed once the change was applied to every
+   * database, and all rolled back otherwise. The commits are not coordinated further, so a
+   * database failing to commit after the others did is reported but not undone.
+   *
+   * @param change the change to apply
+   * @param routingGroupDatabases the databases, an empty name for the default one, at most
+   *     {@link #MAX_FAN_OUT_DATABASES}
+   * @param allOrNothing whether to commit only if the change applied to every database
+   * @return the result for each database, in the order of the databases
+   * @throws IllegalArgumentException if there are too many databases
+   */
+  @Override
+  public List<DatabaseResult> applyResourceGroupsChange(ResourceGroupsChange change,
+                                                        List<String> routingGroupDatabases,
+                                                        boolean allOrNothing) {
+    int targets = routingGroupDatabases.size();
+    if (targets > MAX_FAN_OUT_DATABASES) {
+      throw new IllegalArgumentException("A change can be applied to at most "
+          + MAX_FAN_OUT_DATABASES + " databases at once, got " + targets);
+    }
+    List<ResourceGroupsDetail> resourceGroups = parentsFirst(change.getResourceGroups(), true);
+    // Applying waits for the decision, which waits for all the databases to apply
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(FAN_OUT_TIMEOUT_SECONDS * 3);
+    CountDownLatch applied = new CountDownLatch(targets);
+    Set<String> failedDatabases = ConcurrentHashMap.newKeySet();
+    CompletableFuture<Boolean> commit = new CompletableFuture<>();
+    if (!allOrNothing) {
+      commit.complete(true);
+    }
+    // All the transactions stay open until the decision, so each database has its own thread
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(targets, 1));
+    try {
+      List<Future<DatabaseResult>> results = new ArrayList<>();
+      for (String database : routingGroupDatabases) {
+        results.add(executor.submit(() -> applyChange(change, resourceGroups,
+            Strings.emptyToNull(database), applied, failedDatabases, commit)));
+      }
+      if (allOrNothing) {
+        boolean allApplied = applied.await(FAN_OUT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        commit.complete(allApplied && failedDatabases.isEmpty());
+      }
+      List<DatabaseResult> databaseResults = new ArrayList<>();
+      for (int i = 0; i < targets; i++) {
+        databaseResults.add(getResult(routingGroupDatabases.get(i), results.get(i), deadline));
+      }
+      return databaseResults;
+    } catch (InterruptedException e) {
+      commit.complete(false);
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted applying a resource groups change", e);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private DatabaseResult applyChange(ResourceGroupsChange change,
+                                     List<ResourceGroupsDetail> resourceGroups,
+                                     @Nullable String routingGroupDatabase,
+                                     CountDownLatch applied,
+                                     Set<String> failedDatabases,
+                                     CompletableFuture<Boolean> commit) throws Exception {
+    String database = Strings.nullToEmpty(routingGroupDatabase);
+    boolean applying = true;
+    try {
+      connectionManager.open(routingGroupDatabase);
+      Base.openTransaction();
+      applyChange(change, resourceGroups);
+      applying = false;
+      applied.countDown();
+      if (commit.get(FAN_OUT_TIMEOUT_SECONDS * 2, TimeUnit.SECONDS)) {
+        Base.commitTransaction();
+        return new DatabaseResult(database, true, null);
+      }
+      Base.rollbackTransaction();
+      return new DatabaseResult(database, false,
+          "Rolled back, the change failed for " + failedDatabases);
+    } catch (Exception e) {
+      if (applying) {
+        failedDatabases.add(database);
+        applied.countDown();
+      }
+      if (Base.hasConnection()) {
+        try {
+          Base.rollbackTransaction();
+        } catch (RuntimeException rollbackException) {
+          log.warn("Error rolling back the change for [{}]", database, rollbackException);
+        }
+      }
+      throw e;
+    } finally {
+      if (Base.hasConnection()) {
+        connectionManager.close();
+      }
+      invalidate(routingGroupDatabase);
+    }
+  }
+
+  private static void applyChange(ResourceGroupsChange change,
+                                  List<ResourceGroupsDetail> resourceGroups) {
+    for (Long resourceGroupId : change.getDeletedResourceGroupIds()) {
+      Selectors.delete("resource_group_id = ?", resourceGroupId);
+      ResourceGroups.delete("resource_group_id = ?", resourceGroupId);
+    }
+    for (ResourceGroupsDetail resourceGroup : resourceGroups) {
+      upsertResourceGroup(resourceGroup);
+    }
+    Set<Long> selectorGroups = change.getSelectors().stream()
+        .map(SelectorsDetail::getResourceGroupId)
+        .collect(Collectors.toSet());
+    for (Long resourceGroupId : selectorGroups) {
+      Selectors.delete("resource_group_id = ?", resourceGroupId);
+    }
+    for (SelectorsDetail selector : change.getSelectors()) {
+      Selectors.create(new Selectors(), selector);
+    }
+    for (GlobalPropertiesDetail globalProperty : change.getGlobalProperties()) {
+      upsertGlobalProperty(globalProperty);
+    }
+  }
+
+  private static DatabaseResult getResult(
+      String database, Future<DatabaseResult> result, long deadline) throws InterruptedException {
+    try {
+      return result.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+    } catch (ExecutionException e) {
+      log.error("Error applying a resource groups change to [{}]", database, e.getCause());
+      return new DatabaseResult(database, false, String.valueOf(e.getCause().getMessage()));
+    } catch (TimeoutException e) {
+      // Interrupting the change rolls its transaction back
+      result.cancel(true);
+      log.error("Timed out applying a resource groups change to [{}]", database);
+      return new DatabaseResult(database, false, "Timed out");
+    }
+  }
+
+  /**
+   * Compares the resource groups, selectors and global properties of two databases.
+   *
+   * @param firstRoutingGroupDatabase
+   * @param secondRoutingGroupDatabase
+   * @return
+   */
+  @Override
+  public ResourceGroupsDiff diffResourceGroups(@Nullable String firstRoutingGroupDatabase,
+                                               @Nullable String secondRoutingGroupDatabase) {
+    ResourceGroupsTree first = exportResourceGroups(firstRoutingGroupDatabase);
+    ResourceGroupsTree second = exportResourceGroups(secondRoutingGroupDatabase);
+    ResourceGroupsDiff diff = new ResourceGroupsDiff();
+    diff.setResourceGroups(diffTable(first.getResourceGroups(), second.getResourceGroups(),
+        ResourceGroupsDetail::getResourceGroupId));
+    diff.setSelectors(diffTable(first.getSelectors(), second.getSelectors(), selector -> selector));
+    diff.setGlobalProperties(diffTable(first.getGlobalProperties(),
+        second.getGlobalProperties(), GlobalPropertiesDetail::getName));
+    return diff;
+  }
+
+  private static <T> TableDiff<T> diffTable(List<T> first, List<T> second,
+                                            Function<T, Object> key) {
+    Map<Object, T> secondByKey = new LinkedHashMap<>();
+    for (T row : second) {
+      secondByKey.put(key.apply(row), row);
+    }
+    TableDiff<T> diff = new TableDiff<>();
+    for (T row : first) {
+      T other = secondByKey.remove(key.apply(row));
+      if (other == null) {
+        diff.getOnlyInFirst().add(row);
+      } else if (!other.equals(row)) {
+        diff.getChanged().add(Arrays.asList(row, other));
+      }
+    }
+    diff.getOnlyInSecond().addAll(secondByKey.values());
+    return diff;
+  }
+
+  private static void upsertResourceGroup(ResourceGroupsDetail resourceGroup) {
+    ResourceGroups model =
+        ResourceGroups.findFirst("resource_group_id = ?", resourceGroup.getResourceGroupId());
+    if (model == null) {
+      ResourceGroups.create(new ResourceGroups(), resourceGroup);
+    } else {
+      ResourceGroups.update(model, resourceGroup);
+    }
+  }
+
+  private static void upsertGlobalProperty(GlobalPropertiesDetail globalProperty) {
+    ResourceGroupsGlobalProperties model =
+        ResourceGroupsGlobalProperties.findFirst("name = ?", globalProperty.getName());
+    if (model == null) {
+      ResourceGroupsGlobalProperties.create(new ResourceGroupsGlobalProperties(), globalProperty);
+    } else {
+      ResourceGroupsGlobalProperties.update(model, globalProperty);
+    }
+  }
+
+  /**
+   * Orders resource groups so that each one comes after its parent.
+   *
+   * @param resourceGroups
+   * @param externalParents whether parents that are not in the list are expected to exist already
+   * @return
+   */
+  private static List<ResourceGroupsDetail> parentsFirst(
+      List<ResourceGroupsDetail> resourceGroups, boolean externalParents) {
+    Map<Long, ResourceGroupsDetail> pending = new LinkedHashMap<>();
+    for (ResourceGroupsDetail resourceGroup : resourceGroups) {
+      if (pending.put(resourceGroup.getResourceGroupId(), resourceGroup) != null) {
+        throw new IllegalArgumentException(
+            "Duplicate resource group " + resourceGroup.getResourceGroupId());
+      }
+    }
+    List<ResourceGroupsDetail> ordered = new ArrayList<>(resourceGroups.size());
+    Set<Long> added = new HashSet<>();
+    while (!pending.isEmpty()) {
+      boolean progress = false;
+      Iterator<ResourceGroupsDetail> iterator = pending.values().iterator();
+      while (iterator.hasNext()) {
+        ResourceGroupsDetail resourceGroup = iterator.next();
+        Long parent = resourceGroup.getParent();
+        if (parent == null || added.contains(parent)
+            || (externalParents && !pending.containsKey(parent))) {
+          ordered.add(resourceGroup);
+          added.add(resourceGroup.getResourceGroupId());
+          iterator.remove();
+          progress = true;
+        }
+      }
+      if (!progress) {
+        throw new IllegalArgumentException(
+            "Resource groups with a missing or cyclic parent: " + pending.keySet());
+      }
+    }
+    return ordered;
+  }
+
+  private void invalidate(@Nullable String routingGroupDatabase) {
+    versions.computeIfAbsent(Strings.nullToEmpty(routingGroupDatabase), k -> new AtomicLong())
+        .incrementAndGet();
+  }
+
+  private Snapshot getSnapshot(@Nullable String routingGroupDatabase) {
+    Snapshot snapshot = snapshots.get(Strings.nullToEmpty(routingGroupDatabase));
+    if (snapshot != null
+        && snapshot.getVersion() == getVersion(routingGroupDatabase)
+        && System.currentTimeMillis() - snapshot.getLoadTime() < cacheTtlMillis) {
+      return snapshot;
+    }
+    return loadSnapshot(routingGroupDatabase);
+  }
+
+  private Snapshot loadSnapshot(@Nullable String routingGroupDatabase) {
+    // Read before loading, so that a write during the load makes the snapshot stale
+    long version = getVersion(routingGroupDatabase);
+    Snapshot snapshot;
+    try {
+      connectionManager.open(routingGroupDatabase);
+      snapshot = new Snapshot(version, System.currentTimeMillis(),
+          Collections.unmodifiableList(ResourceGroups.upcast(ResourceGroups.findAll())),
+          Collections.unmodifiableList(Selectors.upcast(Selectors.findAll())),
+          Collections.unmodifiableList(ResourceGroupsGlobalProperties.upcast(
+              ResourceGroupsGlobalProperties.findAll())));
+    } finally {
+      connectionManager.close();
+    }
+    snapshots.merge(Strings.nullToEmpty(routingGroupDatabase), snapshot,
+        (previous, loaded) -> previous.getVersion() > loaded.getVersion() ? previous : loaded);
+    return snapshot;
+  }
+
+  private long getVersion(@Nullable String routingGroupDatabase) {
+    AtomicLong version = versions.get(Strings.nullToEmpty(routingGroupDatabase));
+    return version == null ? 0 : version.get();
+  }
+
+  /**
+   * The resource groups, selectors and global properties of a database, read at a version. The
+   * lists are shared by all the readers of the snapshot.
+   */
+  @Data
+  private static class Snapshot {
+    private final long version;
+    private final long loadTime;
+    private final List<ResourceGroupsDetail> resourceGroups;
+    private final List<SelectorsDetail> selectors;
+    private final List<GlobalPropertiesDetail> globalProperties;
+  }
+
   public String getMatchingString(Object detail) {
     if (detail == null) {
       return "IS NULL";
@@ -12,7 +12,16 @@ public class HaRoutingManager extends RoutingManager {
           QueryHistoryManager queryHistoryManager,
           CacheManager cacheManager,
           boolean lookupQueryIds) {
-    super(gatewayBackendManager, cacheManager, lookupQueryIds);
+    this(gatewayBackendManager, queryHistoryManager, cacheManager, lookupQueryIds, false);
+  }
+
+  public HaRoutingManager(
+          GatewayBackendManager gatewayBackendManager,
+          QueryHistoryManager queryHistoryManager,
+          CacheManager cacheManager,
+          boolean lookupQueryIds,
+          boolean coordinatorIdRouting) {
+    super(gatewayBackendManager, cacheManager, lookupQueryIds, coordinatorIdRouting);
     this.queryHistoryManager = queryHistoryManager;
   }
 
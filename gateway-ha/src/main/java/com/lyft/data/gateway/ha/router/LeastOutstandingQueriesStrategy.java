@@ -0,0 +1,43 @@
+package com.lyft.data.gateway.ha.router;
+
+import com.lyft.data.gateway.ha.config.ProxyBackendConfiguration;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Picks the backend with the fewest queries routed by this gateway that have not completed yet.
+ * The counts are kept by the gateway from the submissions and completions it proxies, so they are
+ * always up to date, unlike the cluster stats which are only refreshed by the cluster monitor.
+ * Ties are broken at random.
+ */
+public class LeastOutstandingQueriesStrategy implements RoutingStrategy {
+  private final OutstandingQueryTracker outstandingQueryTracker;
+
+  public LeastOutstandingQueriesStrategy(OutstandingQueryTracker outstandingQueryTracker) {
+    this.outstandingQueryTracker = outstandingQueryTracker;
+  }
+
+  @Override
+  public String pickBackend(
+      String routingGroup,
+      String user,
+      String routingKey,
+      List<ProxyBackendConfiguration> backends) {
+    String picked = null;
+    int minOutstanding = Integer.MAX_VALUE;
+    int ties = 0;
+    for (ProxyBackendConfiguration backend : backends) {
+      int outstanding = outstandingQueryTracker.getOutstandingQueries(backend.getProxyTo());
+      if (outstanding < minOutstanding) {
+        picked = backend.getProxyTo();
+        minOutstanding = outstanding;
+        ties = 1;
+      } else if (outstanding == minOutstanding
+          && ThreadLocalRandom.current().nextInt(++ties) == 0) {
+        // Reservoir sampling keeps each of the tied backends with the same probability
+        picked = backend.getProxyTo();
+      }
+    }
+    return picked;
+  }
+}
@@ -0,0 +1,95 @@
+package com.lyft.data.gateway.ha.router;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Counts the queries routed to each backend that have not completed yet, from the submissions and
+ * completions seen by the proxy. Clients may stop polling a query without the gateway seeing it
+ * complete, so a query no request was seen for during the idle timeout stops being counted.
+ */
+@Slf4j
+public class OutstandingQueryTracker {
+  private final Map<String, AtomicInteger> outstandingQueries = new ConcurrentHashMap<>();
+  private final Cache<String, String> queryBackends;
+  private final List<Consumer<String>> completionListeners = new CopyOnWriteArrayList<>();
+
+  public OutstandingQueryTracker(long idleTimeoutSeconds) {
+    this.queryBackends = CacheBuilder.newBuilder()
+        .expireAfterAccess(idleTimeoutSeconds, TimeUnit.SECONDS)
+        .<String, String>removalListener(notification -> {
+          decrement(notification.getValue());
+          if (notification.getCause() != RemovalCause.REPLACED) {
+            completionListeners.forEach(listener -> listener.accept(notification.getKey()));
+          }
+        })
+        .build();
+  }
+
+  /**
+   * Adds a listener given the id of each query that stops being counted, because it completed,
+   * was cancelled or went idle.
+   */
+  public void addCompletionListener(Consumer<String> listener) {
+    completionListeners.add(listener);
+  }
+
+  /**
+   * Starts counting a query submitted to a backend.
+   *
+   * @param queryId
+   * @param backend
+   */
+  public void querySubmitted(String queryId, String backend) {
+    outstandingQueries.computeIfAbsent(backend, k -> new AtomicInteger()).incrementAndGet();
+    // A query id seen again replaces the previous entry, which decrements its backend
+    queryBackends.put(queryId, backend);
+  }
+
+  /**
+   * Keeps a query counted, called for every request seen for it.
+   *
+   * @param queryId
+   */
+  public void queryActive(String queryId) {
+    queryBackends.getIfPresent(queryId);
+  }
+
+  /**
+   * Stops counting a query that completed or was cancelled.
+   *
+   * @param queryId
+   */
+  public void queryCompleted(String queryId) {
+    queryBackends.invalidate(queryId);
+  }
+
+  public int getOutstandingQueries(String backend) {
+    AtomicInteger count = outstandingQueries.get(backend);
+    return count == null ? 0 : count.get();
+  }
+
+  /**
+   * Stops counting queries that have been idle for longer than the idle timeout. Expired queries
+   * are also dropped as new queries are tracked.
+   */
+  public void expireIdleQueries() {
+    queryBackends.cleanUp();
+  }
+
+  private void decrement(String backend) {
+    AtomicInteger count = outstandingQueries.get(backend);
+    if (count != null) {
+      count.decrementAndGet();
+    }
+  }
+}
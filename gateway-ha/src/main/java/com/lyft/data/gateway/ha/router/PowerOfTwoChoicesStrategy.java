@@ -0,0 +1,64 @@
+package com.lyft.data.gateway.ha.router;
+
+import com.lyft.data.gateway.ha.clustermonitor.ClusterStats;
+import com.lyft.data.gateway.ha.clustermonitor.PrestoClusterStatsObserver;
+import com.lyft.data.gateway.ha.config.ProxyBackendConfiguration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Picks two backends at random and routes to the one with the shorter queue, as last reported by
+ * the cluster monitor, falling back to the running query count when the queues are equal. Unlike
+ * always picking the least loaded backend, this does not send every query to the same backend
+ * between two cluster monitor runs, while still steering away from overloaded backends. Backends
+ * without stats yet are considered idle.
+ */
+public class PowerOfTwoChoicesStrategy implements RoutingStrategy, PrestoClusterStatsObserver {
+  private volatile Map<String, ClusterStats> backendStats = Collections.emptyMap();
+
+  @Override
+  public void observe(List<ClusterStats> stats) {
+    Map<String, ClusterStats> updatedStats = new HashMap<>();
+    for (ClusterStats stat : stats) {
+      if (stat.getProxyTo() != null) {
+        updatedStats.put(stat.getProxyTo(), stat);
+      }
+    }
+    backendStats = updatedStats;
+  }
+
+  @Override
+  public String pickBackend(
+      String routingGroup,
+      String user,
+      String routingKey,
+      List<ProxyBackendConfiguration> backends) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    if (backends.size() == 1) {
+      return backends.get(0).getProxyTo();
+    }
+    int first = random.nextInt(backends.size());
+    // Pick a second backend distinct from the first one
+    int second = (first + 1 + random.nextInt(backends.size() - 1)) % backends.size();
+    String firstBackend = backends.get(first).getProxyTo();
+    String secondBackend = backends.get(second).getProxyTo();
+    return compareLoad(firstBackend, secondBackend) <= 0 ? firstBackend : secondBackend;
+  }
+
+  private int compareLoad(String firstBackend, String secondBackend) {
+    Map<String, ClusterStats> stats = backendStats;
+    ClusterStats first = stats.get(firstBackend);
+    ClusterStats second = stats.get(secondBackend);
+    int firstQueued = first == null ? 0 : first.getQueuedQueryCount();
+    int secondQueued = second == null ? 0 : second.getQueuedQueryCount();
+    if (firstQueued != secondQueued) {
+      return Integer.compare(firstQueued, secondQueued);
+    }
+    return Integer.compare(
+        first == null ? 0 : first.getRunningQueryCount(),
+        second == null ? 0 : second.getRunningQueryCount());
+  }
+}
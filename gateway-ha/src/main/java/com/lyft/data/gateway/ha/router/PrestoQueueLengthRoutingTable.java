@@ -1,6 +1,7 @@
 package com.lyft.data.gateway.ha.router;
 
 import com.google.common.base.Strings;
+import com.google.common.base.Ticker;
 import com.lyft.data.gateway.ha.config.ProxyBackendConfiguration;
 import java.util.Collection;
 import java.util.Collections;
@@ -14,6 +15,10 @@ import java.util.Random;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
 
 import lombok.extern.slf4j.Slf4j;
@@ -33,8 +38,19 @@ public class PrestoQueueLengthRoutingTable extends HaRoutingManager {
   private static final Random RANDOM = new Random();
   private static final int MIN_WT = 1;
   private static final int MAX_WT = 100;
-  private final Object lockObject = new Object();
+  // Shortest time between two recomputations of the weights for the routed queries
+  private static final long PREDICTION_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+  private final ReentrantLock weightsLock = new ReentrantLock();
+  private final Ticker ticker;
   private ConcurrentHashMap<String, Integer> routingGroupWeightSum;
+  // Queries routed to each cluster since the last cluster stats update, replaced on each update
+  private volatile ConcurrentHashMap<String, LongAdder> routedSinceUpdate =
+      new ConcurrentHashMap<>();
+  // Queue length added by a query routed to each cluster, in the unit of the cluster stats
+  private volatile Map<String, Double> routedQueryLengths = Collections.emptyMap();
+  // Routing groups whose weights do not account for the latest routed queries yet
+  private final Set<String> staleRoutingGroups = ConcurrentHashMap.newKeySet();
+  private final AtomicLong nextPrediction;
   private ConcurrentHashMap<String, ConcurrentHashMap<String, Integer>> clusterQueueLengthMap;
 
   private ConcurrentHashMap<String, ConcurrentHashMap<String, Integer>> userClusterQueueLengthMap;
@@ -47,10 +63,17 @@ public class PrestoQueueLengthRoutingTable extends HaRoutingManager {
    */
   public PrestoQueueLengthRoutingTable(GatewayBackendManager gatewayBackendManager,
           QueryHistoryManager queryHistoryManager, CacheManager cacheManager) {
+    this(gatewayBackendManager, queryHistoryManager, cacheManager, Ticker.systemTicker());
+  }
+
+  PrestoQueueLengthRoutingTable(GatewayBackendManager gatewayBackendManager,
+      QueryHistoryManager queryHistoryManager, CacheManager cacheManager, Ticker ticker) {
     super(gatewayBackendManager, queryHistoryManager, cacheManager);
+    this.ticker = ticker;
+    this.nextPrediction = new AtomicLong(ticker.read());
     routingGroupWeightSum = new ConcurrentHashMap<String, Integer>();
     clusterQueueLengthMap = new ConcurrentHashMap<String, ConcurrentHashMap<String, Integer>>();
-    weightedDistributionRouting = new HashMap<String, TreeMap<Integer, String>>();
+    weightedDistributionRouting = new ConcurrentHashMap<String, TreeMap<Integer, String>>();
     userClusterQueueLengthMap = new ConcurrentHashMap<>();
   }
 
@@ -108,82 +131,157 @@ public class PrestoQueueLengthRoutingTable extends HaRoutingManager {
    */
   private void computeWeightsBasedOnQueueLength(ConcurrentHashMap<String,
       ConcurrentHashMap<String, Integer>> queueLengthMap) {
-    synchronized (lockObject) {
-      int sum = 0;
-      int queueSum = 0;
-      int weight;
-      int numBuckets = 1;
-      int equalDistribution = 0;
-      int smallestQueueLn = 0;
-      int lastButOneQueueLn = 0;
-      int maxQueueLn = 0;
-      int calculatedWtMaxQueue = 0;
-
-      weightedDistributionRouting.clear();
-      routingGroupWeightSum.clear();
-
+    weightsLock.lock();
+    try {
       log.debug("Computing Weights for Queue Map :[{}] ", queueLengthMap.toString());
 
+      Map<String, TreeMap<Integer, String>> updatedRouting = new HashMap<>();
       for (String routingGroup : queueLengthMap.keySet()) {
-        sum = 0;
-        TreeMap<Integer, String> weightsMap = new TreeMap<>();
+        TreeMap<Integer, String> weightsMap =
+            computeWeightsForGroup(routingGroup, queueLengthMap.get(routingGroup));
+        if (weightsMap != null) {
+          updatedRouting.put(routingGroup, weightsMap);
+        }
+      }
+      // Readers do not lock, the routing of a group is replaced as a whole
+      for (Map.Entry<String, TreeMap<Integer, String>> entry : updatedRouting.entrySet()) {
+        publishWeights(entry.getKey(), entry.getValue());
+      }
+      weightedDistributionRouting.keySet().retainAll(updatedRouting.keySet());
+      routingGroupWeightSum.keySet().retainAll(updatedRouting.keySet());
 
-        if (queueLengthMap.get(routingGroup).size() == 0) {
-          log.warn("No active clusters in routingGroup : [{}]. Continue to "
-              + "process rest of routing table ", routingGroup);
-          continue;
-        } else if (queueLengthMap.get(routingGroup).size() == 1) {
-          log.debug("Routing Group: [{}] has only 1 active backend.", routingGroup);
-          weightedDistributionRouting.put(routingGroup, new TreeMap<Integer, String>() {
-                {
-                  put(MAX_WT, queueLengthMap.get(routingGroup).keys().nextElement());
-                }
-              }
-          );
-          routingGroupWeightSum.put(routingGroup, MAX_WT);
-          continue;
+      if (log.isDebugEnabled()) {
+        for (String rg : weightedDistributionRouting.keySet()) {
+          log.debug("Routing Table for : [{}] is [{}]", rg,
+              weightedDistributionRouting.get(rg).toString());
         }
+      }
+    } finally {
+      weightsLock.unlock();
+    }
+  }
 
-        LinkedHashMap<String, Integer> sortedByQueueLength = queueLengthMap.get(routingGroup)
-            .entrySet()
-            .stream().sorted(Comparator.comparing(Map.Entry::getValue))
-            .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue,
-                (e1, e2) -> e1, LinkedHashMap::new));
+  private void publishWeights(String routingGroup, TreeMap<Integer, String> weightsMap) {
+    weightedDistributionRouting.put(routingGroup, weightsMap);
+    routingGroupWeightSum.put(routingGroup, weightsMap.lastKey());
+  }
 
-        numBuckets = sortedByQueueLength.size();
-        queueSum = sortedByQueueLength.values().stream().mapToInt(Integer::intValue).sum();
+  /**
+   * Computes the cumulative weights of the clusters of a routing group.
+   *
+   * @return the clusters by cumulative weight, or null if the group has no cluster
+   */
+  private TreeMap<Integer, String> computeWeightsForGroup(
+      String routingGroup, Map<String, Integer> groupQueueLengths) {
+    TreeMap<Integer, String> weightsMap = new TreeMap<>();
 
-        Object[] queueLengths = sortedByQueueLength.values().toArray();
-        Object[] clusterNames = sortedByQueueLength.keySet().toArray();
+    if (groupQueueLengths.size() == 0) {
+      log.warn("No active clusters in routingGroup : [{}]. Continue to "
+          + "process rest of routing table ", routingGroup);
+      return null;
+    } else if (groupQueueLengths.size() == 1) {
+      log.debug("Routing Group: [{}] has only 1 active backend.", routingGroup);
+      weightsMap.put(MAX_WT, groupQueueLengths.keySet().iterator().next());
+      return weightsMap;
+    }
 
-        maxQueueLn = (Integer) queueLengths[queueLengths.length - 1];
-        calculatedWtMaxQueue = getWeightForMaxQueueCluster(sortedByQueueLength);
+    LinkedHashMap<String, Integer> sortedByQueueLength = groupQueueLengths
+        .entrySet()
+        .stream().sorted(Comparator.comparing(Map.Entry::getValue))
+        .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue,
+            (e1, e2) -> e1, LinkedHashMap::new));
 
-        for (int i = 0; i < numBuckets - 1; i++) {
-          // If all clusters have same queue length, assign same wt
-          weight = (maxQueueLn == (Integer) queueLengths[i]) ? calculatedWtMaxQueue :
-              (int) Math.ceil(MAX_WT
-                  - (((Integer) queueLengths[i] * MAX_WT) / (double) maxQueueLn));
-          sum += weight;
-          weightsMap.put(sum, (String) clusterNames[i]);
-        }
+    final int numBuckets = sortedByQueueLength.size();
+
+    Object[] queueLengths = sortedByQueueLength.values().toArray();
+    Object[] clusterNames = sortedByQueueLength.keySet().toArray();
+
+    final int maxQueueLn = (Integer) queueLengths[queueLengths.length - 1];
+    final int calculatedWtMaxQueue = getWeightForMaxQueueCluster(sortedByQueueLength);
+
+    int sum = 0;
+    for (int i = 0; i < numBuckets - 1; i++) {
+      // If all clusters have same queue length, assign same wt
+      int weight = (maxQueueLn == (Integer) queueLengths[i]) ? calculatedWtMaxQueue :
+          (int) Math.ceil(MAX_WT
+              - (((Integer) queueLengths[i] * MAX_WT) / (double) maxQueueLn));
+      sum += weight;
+      weightsMap.put(sum, (String) clusterNames[i]);
+    }
 
-        sum += calculatedWtMaxQueue;
-        weightsMap.put(sum, (String) clusterNames[numBuckets - 1]);
+    sum += calculatedWtMaxQueue;
+    weightsMap.put(sum, (String) clusterNames[numBuckets - 1]);
+    return weightsMap;
+  }
 
-        weightedDistributionRouting.put(routingGroup, weightsMap);
-        routingGroupWeightSum.put(routingGroup, sum);
+  /**
+   * Accounts for a query routed to a cluster until the next cluster stats update. The queries
+   * routed since the last update are added to the queue length of their cluster, so a burst of
+   * queries does not all land on the cluster that looked the least loaded at the last update.
+   * Sorting the clusters for every routed query would be wasted on a busy gateway, so the weights
+   * of the groups that routed queries are recomputed at most once per prediction interval, by the
+   * first query routed after it. The counts are bumped without locking, and the queries routed
+   * while the weights are recomputed do not wait for it.
+   *
+   * @param routingGroup routing group of the query
+   * @param clusterId the cluster the query was routed to
+   * @param user the user of the query, may be null
+   */
+  public void recordRoutedQuery(String routingGroup, String clusterId, String user) {
+    routedSinceUpdate.computeIfAbsent(clusterId, k -> new LongAdder()).increment();
+    if (!Strings.isNullOrEmpty(user)) {
+      userClusterQueueLengthMap.computeIfAbsent(user, k -> new ConcurrentHashMap<>())
+          .merge(clusterId, 1, Integer::sum);
+    }
+    staleRoutingGroups.add(routingGroup);
+    long now = ticker.read();
+    long next = nextPrediction.get();
+    // Only the thread moving the next prediction time recomputes, the others carry on
+    if (now - next >= 0 && nextPrediction.compareAndSet(next, now + PREDICTION_INTERVAL_NANOS)
+        && weightsLock.tryLock()) {
+      try {
+        recomputePredictedWeights();
+      } finally {
+        weightsLock.unlock();
       }
+    }
+  }
 
-      if (log.isDebugEnabled()) {
-        for (String rg : weightedDistributionRouting.keySet()) {
-          log.debug("Routing Table for : [{}] is [{}]", rg,
-              weightedDistributionRouting.get(rg).toString());
-        }
+  private void recomputePredictedWeights() {
+    Map<String, LongAdder> routed = routedSinceUpdate;
+    Map<String, Double> queryLengths = routedQueryLengths;
+    for (String routingGroup : staleRoutingGroups) {
+      // Removed first, so a query routed meanwhile marks the group stale again
+      staleRoutingGroups.remove(routingGroup);
+      Map<String, Integer> groupQueueLengths = clusterQueueLengthMap.get(routingGroup);
+      if (groupQueueLengths == null) {
+        continue;
+      }
+      Map<String, Integer> predictedQueueLengths = new HashMap<>();
+      for (Map.Entry<String, Integer> entry : groupQueueLengths.entrySet()) {
+        LongAdder routedCount = routed.get(entry.getKey());
+        long routedQueries = routedCount == null ? 0 : routedCount.sum();
+        // Rounded up like the reported lengths, so any routed query counts
+        int routedLength = (int) Math.ceil(
+            routedQueries * queryLengths.getOrDefault(entry.getKey(), 1.0));
+        predictedQueueLengths.put(entry.getKey(), entry.getValue() + routedLength);
+      }
+      TreeMap<Integer, String> weightsMap =
+          computeWeightsForGroup(routingGroup, predictedQueueLengths);
+      if (weightsMap != null) {
+        publishWeights(routingGroup, weightsMap);
       }
     }
   }
 
+  /**
+   * A convenience method to peak into the queries routed to a cluster since the last update.
+   */
+  public int getRoutedSinceUpdate(String clusterId) {
+    LongAdder routed = routedSinceUpdate.get(clusterId);
+    return routed == null ? 0 : routed.intValue();
+  }
+
   /**
    * Update the Routing Table only if a previously known backend has been deactivated.
    * Newly added backends are handled through
@@ -191,7 +289,13 @@ public class PrestoQueueLengthRoutingTable extends HaRoutingManager {
    * updateRoutingTable}
    */
   public void updateRoutingTable(String routingGroup, Set<String> backends) {
-    synchronized (lockObject) {
+    Map<String, Integer> groupQueueLengths = clusterQueueLengthMap.get(routingGroup);
+    if (groupQueueLengths == null || backends.containsAll(groupQueueLengths.keySet())) {
+      // Nothing to remove, checked without locking as this runs for every routed query
+      return;
+    }
+    weightsLock.lock();
+    try {
       if (clusterQueueLengthMap.containsKey(routingGroup)) {
         log.debug("Update routing table for routing group : [{}]"
             + " with active backends : [{}]", routingGroup, backends.toString());
@@ -210,20 +314,42 @@ public class PrestoQueueLengthRoutingTable extends HaRoutingManager {
       }
 
       computeWeightsBasedOnQueueLength(clusterQueueLengthMap);
+    } finally {
+      weightsLock.unlock();
     }
   }
 
   /**
-   * Update routing Table with new Queue Lengths.
+   * Update routing Table with new Queue Lengths. The fresh stats include the queries routed since
+   * the last update, so their accounting starts over.
    */
   public void updateRoutingTable(Map<String, Map<String, Integer>> updatedQueueLengthMap,
                                  Map<String, Map<String, Integer>> updatedRunningLengthMap,
                                  Map<String, Map<String, Integer>> updatedUserQueueLengthMap) {
-    synchronized (lockObject) {
+    updateRoutingTable(updatedQueueLengthMap, updatedRunningLengthMap, updatedUserQueueLengthMap,
+        Collections.emptyMap());
+  }
+
+  /**
+   * Update routing Table with new Queue Lengths, which may not be plain query counts.
+   *
+   * @param updatedRoutedQueryLengths the queue length a routed query adds to each cluster until
+   *     the next update, in the unit of the queue lengths, 1 for the clusters missing
+   */
+  public void updateRoutingTable(Map<String, Map<String, Integer>> updatedQueueLengthMap,
+                                 Map<String, Map<String, Integer>> updatedRunningLengthMap,
+                                 Map<String, Map<String, Integer>> updatedUserQueueLengthMap,
+                                 Map<String, Double> updatedRoutedQueryLengths) {
+    weightsLock.lock();
+    try {
       log.debug("Update Routing table with new cluster queue lengths : [{}]",
               updatedQueueLengthMap.toString());
       clusterQueueLengthMap.clear();
       userClusterQueueLengthMap.clear();
+      // Swapped rather than cleared, queries routed meanwhile are part of the fresh stats
+      routedSinceUpdate = new ConcurrentHashMap<>();
+      staleRoutingGroups.clear();
+      routedQueryLengths = new HashMap<>(updatedRoutedQueryLengths);
 
       if (updatedUserQueueLengthMap != null) {
         for (String user : updatedUserQueueLengthMap.keySet()) {
@@ -254,6 +380,8 @@ public class PrestoQueueLengthRoutingTable extends HaRoutingManager {
         clusterQueueLengthMap.put(grp, queueMap);
       }
       computeWeightsBasedOnQueueLength(clusterQueueLengthMap);
+    } finally {
+      weightsLock.unlock();
     }
   }
 
@@ -292,8 +420,11 @@ public class PrestoQueueLengthRoutingTable extends HaRoutingManager {
     if (!Strings.isNullOrEmpty(user)) {
       Map<String, Integer> clusterQueueCountForUser = userClusterQueueLengthMap.get(user);
 
-      if (clusterQueueCountForUser != null && !clusterQueueCountForUser.isEmpty()) {
-        Set<String> backends = clusterQueueLengthMap.get(routingGroup).keySet();
+      Map<String, Integer> groupQueueLength = clusterQueueLengthMap.get(routingGroup);
+
+      if (clusterQueueCountForUser != null && !clusterQueueCountForUser.isEmpty()
+          && groupQueueLength != null) {
+        Set<String> backends = groupQueueLength.keySet();
         String leastQueuedCluster = null;
         Integer minQueueCount = Integer.MAX_VALUE;
         Integer maxQueueCount = Integer.MIN_VALUE;
@@ -318,10 +449,11 @@ public class PrestoQueueLengthRoutingTable extends HaRoutingManager {
       }
     }
     // Looks up the closest weight to random number generated for a given routing group.
-    if (routingGroupWeightSum.containsKey(routingGroup)
-        && weightedDistributionRouting.containsKey(routingGroup)) {
-      int rnd = RANDOM.nextInt(routingGroupWeightSum.get(routingGroup));
-      return weightedDistributionRouting.get(routingGroup).higherEntry(rnd).getValue();
+    TreeMap<Integer, String> weightsMap = weightedDistributionRouting.get(routingGroup);
+    if (weightsMap != null) {
+      // The last cumulative weight is the sum of the weights
+      int rnd = RANDOM.nextInt(weightsMap.lastKey());
+      return weightsMap.higherEntry(rnd).getValue();
     } else {
       return null;
     }
@@ -332,13 +464,15 @@ public class PrestoQueueLengthRoutingTable extends HaRoutingManager {
    * backend is found.
    */
   @Override
-  public String provideBackendForRoutingGroup(String routingGroup, String user) {
+  public String provideBackendForRoutingGroup(
+      String routingGroup, String user, String routingKey) {
     List<ProxyBackendConfiguration> backends =
         getGatewayBackendManager().getActiveBackends(routingGroup);
 
     if (backends.isEmpty()) {
       return provideAdhocBackend(user);
     }
+    backends = filterAvailableBackends(backends);
     Map<String, String> proxyMap = new HashMap<>();
     for (ProxyBackendConfiguration backend : backends) {
       proxyMap.put(backend.getName(), backend.getProxyTo());
@@ -350,6 +484,7 @@ public class PrestoQueueLengthRoutingTable extends HaRoutingManager {
         clusterId, routingGroup);
 
     if (clusterId != null) {
+      recordRoutedQuery(routingGroup, clusterId, user);
       return proxyMap.get(clusterId);
     } else {
       log.debug("Falling back to random distribution");
@@ -365,12 +500,13 @@ public class PrestoQueueLengthRoutingTable extends HaRoutingManager {
    * <p>d.
    */
   @Override
-  public String provideAdhocBackend(String user) {
+  public String provideAdhocBackend(String user, String routingKey) {
     Map<String, String> proxyMap = new HashMap<>();
     List<ProxyBackendConfiguration> backends = getGatewayBackendManager().getActiveAdhocBackends();
     if (backends.size() == 0) {
       throw new IllegalStateException("Number of active backends found zero");
     }
+    backends = filterAvailableBackends(backends);
 
     for (ProxyBackendConfiguration backend : backends) {
       proxyMap.put(backend.getName(), backend.getProxyTo());
@@ -381,6 +517,7 @@ public class PrestoQueueLengthRoutingTable extends HaRoutingManager {
     String clusterId = getEligibleBackEnd("adhoc", user);
     log.debug("Routing to eligible backend : " + clusterId + " for routing group: adhoc");
     if (clusterId != null) {
+      recordRoutedQuery("adhoc", clusterId, user);
       return proxyMap.get(clusterId);
     } else {
       log.debug("Falling back to random distribution");
@@ -0,0 +1,20 @@
+package com.lyft.data.gateway.ha.router;
+
+import com.lyft.data.gateway.ha.config.ProxyBackendConfiguration;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Picks a backend uniformly at random.
+ */
+public class RandomRoutingStrategy implements RoutingStrategy {
+
+  @Override
+  public String pickBackend(
+      String routingGroup,
+      String user,
+      String routingKey,
+      List<ProxyBackendConfiguration> backends) {
+    return backends.get(ThreadLocalRandom.current().nextInt(backends.size())).getProxyTo();
+  }
+}
@@ -1,7 +1,8 @@
 package com.lyft.data.gateway.ha.router;
 
-import com.sun.istack.Nullable;
+import java.util.ArrayList;
 import java.util.List;
+import javax.annotation.Nullable;
 import lombok.Data;
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
@@ -53,6 +54,18 @@ public interface ResourceGroupsManager {
 
   ExactSelectorsDetail getExactMatchSourceSelector(ExactSelectorsDetail exactSelectorDetail);
 
+  ResourceGroupsTree exportResourceGroups(@Nullable String routingGroupDatabase);
+
+  void importResourceGroups(ResourceGroupsTree resourceGroupsTree,
+                            @Nullable String routingGroupDatabase);
+
+  List<DatabaseResult> applyResourceGroupsChange(ResourceGroupsChange change,
+                                                 List<String> routingGroupDatabases,
+                                                 boolean allOrNothing);
+
+  ResourceGroupsDiff diffResourceGroups(@Nullable String firstRoutingGroupDatabase,
+                                        @Nullable String secondRoutingGroupDatabase);
+
   @RequiredArgsConstructor
   @Data
   @ToString
@@ -130,6 +143,58 @@ public interface ResourceGroupsManager {
     }
   }
 
+  /**
+   * All the resource groups, selectors and global properties of a database.
+   */
+  @Data
+  class ResourceGroupsTree {
+    private List<ResourceGroupsDetail> resourceGroups = new ArrayList<>();
+    private List<SelectorsDetail> selectors = new ArrayList<>();
+    private List<GlobalPropertiesDetail> globalProperties = new ArrayList<>();
+  }
+
+  /**
+   * A change applied to several databases. Resource groups and global properties are created or
+   * updated, and the selectors listed for a resource group replace all of its selectors.
+   */
+  @Data
+  class ResourceGroupsChange {
+    private List<ResourceGroupsDetail> resourceGroups = new ArrayList<>();
+    private List<SelectorsDetail> selectors = new ArrayList<>();
+    private List<GlobalPropertiesDetail> globalProperties = new ArrayList<>();
+    private List<Long> deletedResourceGroupIds = new ArrayList<>();
+  }
+
+  /**
+   * The outcome of a change for one database.
+   */
+  @Data
+  class DatabaseResult {
+    private final String database;
+    private final boolean applied;
+    private final String error;
+  }
+
+  /**
+   * The differences between the resource groups, selectors and global properties of two
+   * databases. Resource groups are matched by id and global properties by name, selectors have no
+   * key so they are only ever in one database or the other.
+   */
+  @Data
+  class ResourceGroupsDiff {
+    private TableDiff<ResourceGroupsDetail> resourceGroups = new TableDiff<>();
+    private TableDiff<SelectorsDetail> selectors = new TableDiff<>();
+    private TableDiff<GlobalPropertiesDetail> globalProperties = new TableDiff<>();
+  }
+
+  @Data
+  class TableDiff<T> {
+    private List<T> onlyInFirst = new ArrayList<>();
+    private List<T> onlyInSecond = new ArrayList<>();
+    // Pairs of the first and second versions of the rows with the same key
+    private List<List<T>> changed = new ArrayList<>();
+  }
+
   @RequiredArgsConstructor
   @Data
   @ToString
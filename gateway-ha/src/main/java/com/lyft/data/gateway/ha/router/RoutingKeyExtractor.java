@@ -0,0 +1,55 @@
+package com.lyft.data.gateway.ha.router;
+
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * RoutingKeyExtractor finds the key of a query submission that routing strategies with affinity,
+ * like consistent hashing, route on. Queries with the same key go to the same backend.
+ */
+public interface RoutingKeyExtractor {
+  String ROUTING_KEY_ATTRIBUTE = RoutingKeyExtractor.class.getName();
+
+  static RoutingKeyExtractor byUser() {
+    return request -> Optional.ofNullable(request.getHeader("X-Trino-User"))
+        .orElse(request.getHeader("X-Presto-User"));
+  }
+
+  static RoutingKeyExtractor bySource() {
+    return request -> Optional.ofNullable(request.getHeader("X-Trino-Source"))
+        .orElse(request.getHeader("X-Presto-Source"));
+  }
+
+  /**
+   * Routing key extractor on the client tags, which do not depend on the order they are sent in.
+   */
+  static RoutingKeyExtractor byClientTags() {
+    return request -> {
+      String clientTags = Optional.ofNullable(request.getHeader("X-Trino-Client-Tags"))
+          .orElse(request.getHeader("X-Presto-Client-Tags"));
+      if (clientTags == null) {
+        return null;
+      }
+      return Arrays.stream(clientTags.split(","))
+          .map(String::trim)
+          .filter(tag -> !tag.isEmpty())
+          .sorted()
+          .collect(Collectors.joining(","));
+    };
+  }
+
+  /**
+   * Routing key extractor on the routingKey result of the routing rules engine, which has to
+   * select the routing group of the request first.
+   */
+  static RoutingKeyExtractor byRoutingRulesEngine() {
+    return request -> (String) request.getAttribute(ROUTING_KEY_ATTRIBUTE);
+  }
+
+  /**
+   * Given a query submission find its routing key. If the request has none return null.
+   */
+  String findRoutingKey(HttpServletRequest request);
+}
@@ -5,19 +5,27 @@ import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.lyft.data.gateway.ha.config.ProxyBackendConfiguration;
+import com.lyft.data.gateway.ha.handler.ProxyStageMetrics;
+import com.lyft.data.proxyserver.BackendOutlierDetector;
 import com.lyft.data.proxyserver.ProxyServerConfiguration;
 
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 import javax.ws.rs.HttpMethod;
 import lombok.extern.slf4j.Slf4j;
 
@@ -27,19 +35,43 @@ import lombok.extern.slf4j.Slf4j;
  */
 @Slf4j
 public abstract class RoutingManager {
-  private static final Random RANDOM = new Random();
+  // How long the backends looked up on the request path are used before being read again
+  private static final long BACKEND_SNAPSHOT_TTL_NANOS = TimeUnit.SECONDS.toNanos(10);
   private final LoadingCache<String, String> queryIdBackendCache;
   private final boolean lookupQueries;
   private final LoadingCache<String, String> uiCookieBackendCache;
   private ExecutorService executorService = Executors.newFixedThreadPool(5);
   private GatewayBackendManager gatewayBackendManager;
+  // Only set when routing on coordinator id suffixes is enabled
+  private final CoordinatorIdRoutingTable coordinatorIdRoutingTable;
+  private BackendOutlierDetector outlierDetector;
+  // Only set when routing follows the health checks of the cluster monitor
+  private BackendHealthRegistry healthRegistry;
+  private OutstandingQueryTracker outstandingQueryTracker;
+  // Only set when the proxy stage latencies are recorded
+  private ProxyStageMetrics stageMetrics;
+  private RoutingStrategy defaultRoutingStrategy = new RandomRoutingStrategy();
+  private Map<String, RoutingStrategy> routingGroupStrategies = Collections.emptyMap();
   CacheManager cacheManager;
+  // Backends by proxy url, so that UI requests and direct results do not read the database
+  private volatile BackendSnapshot backendSnapshot;
+  private final AtomicBoolean backendSnapshotLoading = new AtomicBoolean();
+  private final AtomicLong backendChanges = new AtomicLong();
 
   public RoutingManager(
           GatewayBackendManager gatewayBackendManager,
           CacheManager cacheManager,
           boolean lookupQueries) {
+    this(gatewayBackendManager, cacheManager, lookupQueries, false);
+  }
+
+  public RoutingManager(
+          GatewayBackendManager gatewayBackendManager,
+          CacheManager cacheManager,
+          boolean lookupQueries,
+          boolean coordinatorIdRouting) {
     this.gatewayBackendManager = gatewayBackendManager;
+    this.coordinatorIdRoutingTable = coordinatorIdRouting ? new CoordinatorIdRoutingTable() : null;
     this.cacheManager = cacheManager;
     this.lookupQueries = lookupQueries;
     if (lookupQueries) {
@@ -51,7 +83,10 @@ public abstract class RoutingManager {
                               new CacheLoader<String, String>() {
                               @Override
                               public String load(String queryId) {
-                                return findBackendForUnknownQueryId(queryId);
+                                long start = System.nanoTime();
+                                String backend = findBackendForUnknownQueryId(queryId);
+                                recordLoad(ProxyStageMetrics.STAGE_QUERY_ID_LOAD, backend, start);
+                                return backend;
                               }
                         });
     } else {
@@ -63,7 +98,10 @@ public abstract class RoutingManager {
                               new CacheLoader<String, String>() {
                               @Override
                               public String load(String queryId) {
-                                return lookupBackendForQueryId(queryId);
+                                long start = System.nanoTime();
+                                String backend = lookupBackendForQueryId(queryId);
+                                recordLoad(ProxyStageMetrics.STAGE_QUERY_ID_LOAD, backend, start);
+                                return backend;
                               }
                         });
     }
@@ -75,7 +113,10 @@ public abstract class RoutingManager {
                 new CacheLoader<String, String>() {
                 @Override
                   public String load(String queryId) {
-                    return lookupBackendForUiCookie(queryId);
+                    long start = System.nanoTime();
+                    String backend = lookupBackendForUiCookie(queryId);
+                    recordLoad(ProxyStageMetrics.STAGE_COOKIE_LOAD, backend, start);
+                    return backend;
                   }
                 });
   }
@@ -84,7 +125,102 @@ public abstract class RoutingManager {
     return gatewayBackendManager;
   }
 
+  public void setOutlierDetector(BackendOutlierDetector outlierDetector) {
+    this.outlierDetector = outlierDetector;
+  }
+
+  public void setHealthRegistry(BackendHealthRegistry healthRegistry) {
+    this.healthRegistry = healthRegistry;
+  }
+
+  public void setStageMetrics(ProxyStageMetrics stageMetrics) {
+    this.stageMetrics = stageMetrics;
+  }
+
+  private void recordLoad(String stage, String backend, long start) {
+    if (stageMetrics != null) {
+      stageMetrics.record(stage, null, backend, System.nanoTime() - start);
+    }
+  }
+
+  public OutstandingQueryTracker getOutstandingQueryTracker() {
+    return outstandingQueryTracker;
+  }
+
+  public void setOutstandingQueryTracker(OutstandingQueryTracker outstandingQueryTracker) {
+    this.outstandingQueryTracker = outstandingQueryTracker;
+  }
+
+  /**
+   * Sets the strategies picking the backends of new queries.
+   *
+   * @param defaultRoutingStrategy strategy for the routing groups without their own strategy
+   * @param routingGroupStrategies strategies by routing group
+   */
+  public void setRoutingStrategies(
+      RoutingStrategy defaultRoutingStrategy,
+      Map<String, RoutingStrategy> routingGroupStrategies) {
+    this.defaultRoutingStrategy = defaultRoutingStrategy;
+    this.routingGroupStrategies = routingGroupStrategies;
+  }
+
+  /**
+   * All the distinct routing strategies in use.
+   *
+   * @return
+   */
+  public Collection<RoutingStrategy> getRoutingStrategies() {
+    Set<RoutingStrategy> strategies = new LinkedHashSet<>();
+    strategies.add(defaultRoutingStrategy);
+    strategies.addAll(routingGroupStrategies.values());
+    return strategies;
+  }
+
+  /**
+   * Picks a backend for a new query among candidates with the strategy of the routing group,
+   * after removing the unhealthy backends and the ones ejected by outlier detection.
+   *
+   * @param routingGroup
+   * @param user
+   * @param routingKey
+   * @param backends
+   * @return
+   */
+  protected String pickBackend(
+      String routingGroup,
+      String user,
+      String routingKey,
+      List<ProxyBackendConfiguration> backends) {
+    RoutingStrategy strategy =
+        routingGroupStrategies.getOrDefault(routingGroup, defaultRoutingStrategy);
+    return strategy.pickBackend(routingGroup, user, routingKey, filterAvailableBackends(backends));
+  }
+
+  /**
+   * Removes the backends failing the cluster monitor health checks and the ones ejected by outlier
+   * detection from a list of candidates for a new query. All the candidates are kept if every one
+   * of them is removed.
+   *
+   * @param backends
+   * @return
+   */
+  protected List<ProxyBackendConfiguration> filterAvailableBackends(
+      List<ProxyBackendConfiguration> backends) {
+    if (outlierDetector == null && healthRegistry == null) {
+      return backends;
+    }
+    List<ProxyBackendConfiguration> available = backends.stream()
+        .filter(backend -> healthRegistry == null || healthRegistry.isHealthy(backend.getName()))
+        .filter(backend -> outlierDetector == null
+            || outlierDetector.isAvailable(backend.getProxyTo()))
+        .collect(Collectors.toList());
+    return available.isEmpty() ? backends : available;
+  }
+
   public void setBackendForQueryId(String queryId, String backend) {
+    if (coordinatorIdRoutingTable != null) {
+      coordinatorIdRoutingTable.learn(queryId, backend);
+    }
     if (lookupQueries) {
       queryIdBackendCache.put(queryId, backend);
     } else {
@@ -114,12 +250,22 @@ public abstract class RoutingManager {
    * @return
    */
   public String provideAdhocBackend(String user) {
+    return provideAdhocBackend(user, null);
+  }
+
+  /**
+   * Performs routing to an adhoc backend, with the routing key of the query.
+   *
+   * @param user
+   * @param routingKey the key strategies with affinity route on, may be null
+   * @return
+   */
+  public String provideAdhocBackend(String user, String routingKey) {
     List<ProxyBackendConfiguration> backends = this.gatewayBackendManager.getActiveAdhocBackends();
     if (backends.size() == 0) {
       throw new IllegalStateException("Number of active backends found zero");
     }
-    int backendId = Math.abs(RANDOM.nextInt()) % backends.size();
-    return backends.get(backendId).getProxyTo();
+    return pickBackend("adhoc", user, routingKey, backends);
   }
 
   /**
@@ -129,23 +275,134 @@ public abstract class RoutingManager {
    * @return
    */
   public String provideBackendForRoutingGroup(String routingGroup, String user) {
+    return provideBackendForRoutingGroup(routingGroup, user, null);
+  }
+
+  /**
+   * Performs routing to a given cluster group, with the routing key of the query.
+   *
+   * @param routingGroup
+   * @param user
+   * @param routingKey the key strategies with affinity route on, may be null
+   * @return
+   */
+  public String provideBackendForRoutingGroup(
+      String routingGroup, String user, String routingKey) {
     List<ProxyBackendConfiguration> backends =
         gatewayBackendManager.getActiveBackends(routingGroup);
     if (backends.isEmpty()) {
-      return provideAdhocBackend(user);
+      return provideAdhocBackend(user, routingKey);
+    }
+    return pickBackend(routingGroup, user, routingKey, backends);
+  }
+
+  /**
+   * Picks another backend for a query submission that could not be sent to some backends. Like
+   * for provideBackendForRoutingGroup, adhoc backends are used if the routing group has none.
+   *
+   * @param routingGroup the routing group, or null for adhoc
+   * @param user
+   * @param routingKey
+   * @param excludedBackends backends the submission could not be sent to
+   * @return the backend, or null if there is no other backend
+   */
+  public String provideBackendForRetry(
+      String routingGroup, String user, String routingKey, Set<String> excludedBackends) {
+    List<ProxyBackendConfiguration> backends = Strings.isNullOrEmpty(routingGroup)
+        ? Collections.emptyList()
+        : gatewayBackendManager.getActiveBackends(routingGroup);
+    if (backends.isEmpty()) {
+      routingGroup = "adhoc";
+      backends = gatewayBackendManager.getActiveAdhocBackends();
+    }
+    backends = backends.stream()
+        .filter(backend -> !excludedBackends.contains(backend.getProxyTo()))
+        .collect(Collectors.toList());
+    if (backends.isEmpty()) {
+      return null;
+    }
+    return pickBackend(routingGroup, user, routingKey, backends);
+  }
+
+  /**
+   * Tells whether a backend exists and is active, from the backends read at most
+   * BACKEND_SNAPSHOT_TTL_NANOS ago or since the last change made on this gateway.
+   *
+   * @param proxyTo
+   * @return true if new requests can be routed to the backend
+   */
+  public boolean isBackendActive(String proxyTo) {
+    ProxyBackendConfiguration backend = getBackendSnapshot().get(proxyTo);
+    return backend != null && backend.isActive();
+  }
+
+  /**
+   * Finds the url clients use to reach a backend directly, from the same backends as
+   * {@link RoutingManager#isBackendActive(String)}.
+   *
+   * @param proxyTo
+   * @return the external url of the backend, or null if the backend is unknown
+   */
+  public String findExternalUrlForBackend(String proxyTo) {
+    ProxyBackendConfiguration backend = getBackendSnapshot().get(proxyTo);
+    return backend == null ? null : backend.getExternalUrl();
+  }
+
+  /**
+   * Makes the next backend lookup read the backends again, after they are changed.
+   */
+  public void invalidateBackends() {
+    backendChanges.incrementAndGet();
+  }
+
+  private Map<String, ProxyBackendConfiguration> getBackendSnapshot() {
+    BackendSnapshot snapshot = backendSnapshot;
+    long now = System.nanoTime();
+    if (snapshot != null && snapshot.changes == backendChanges.get()
+        && now - snapshot.expiry < 0) {
+      return snapshot.backends;
+    }
+    if (snapshot != null && !backendSnapshotLoading.compareAndSet(false, true)) {
+      // Another request is reading the backends, the current ones do meanwhile
+      return snapshot.backends;
+    }
+    try {
+      // Read before the backends, so that a change made meanwhile is not missed
+      long changes = backendChanges.get();
+      Map<String, ProxyBackendConfiguration> backends = new HashMap<>();
+      for (ProxyBackendConfiguration backend : gatewayBackendManager.getAllBackends()) {
+        backends.put(backend.getProxyTo(), backend);
+      }
+      backendSnapshot = new BackendSnapshot(backends, changes, now + BACKEND_SNAPSHOT_TTL_NANOS);
+      return backends;
+    } catch (RuntimeException e) {
+      if (snapshot == null) {
+        throw e;
+      }
+      log.warn("Could not read the backends, using the ones read before", e);
+      return snapshot.backends;
+    } finally {
+      if (snapshot != null) {
+        backendSnapshotLoading.set(false);
+      }
     }
-    int backendId = Math.abs(RANDOM.nextInt()) % backends.size();
-    return backends.get(backendId).getProxyTo();
   }
 
   /**
    * Performs cache look up, if a backend not found, it checks with all backends and tries to find
-   * out which backend has info about given query id.
+   * out which backend has info about given query id. When coordinator id routing is enabled, the
+   * backend is first resolved from the query id suffix.
    *
    * @param queryId
    * @return
    */
   public String findBackendForQueryId(String queryId) {
+    if (coordinatorIdRoutingTable != null) {
+      String backend = coordinatorIdRoutingTable.findBackend(queryId);
+      if (backend != null) {
+        return backend;
+      }
+    }
     String backendAddress = null;
     try {
       backendAddress = queryIdBackendCache.get(queryId);
@@ -230,4 +487,17 @@ public abstract class RoutingManager {
     log.warn(String.format("No backend found for Query Id %s!!", queryId));
     return provideAdhocBackend("");
   }
+
+  private static class BackendSnapshot {
+    private final Map<String, ProxyBackendConfiguration> backends;
+    // Value of backendChanges when the backends were read
+    private final long changes;
+    private final long expiry;
+
+    BackendSnapshot(Map<String, ProxyBackendConfiguration> backends, long changes, long expiry) {
+      this.backends = backends;
+      this.changes = changes;
+      this.expiry = expiry;
+    }
+  }
 }
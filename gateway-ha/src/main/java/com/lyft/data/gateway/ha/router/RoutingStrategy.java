@@ -0,0 +1,26 @@
+package com.lyft.data.gateway.ha.router;
+
+import com.lyft.data.gateway.ha.config.ProxyBackendConfiguration;
+import java.util.List;
+
+/**
+ * Picks the backend a new query is routed to. A strategy is chosen per routing group in the
+ * routing configuration, {@link RoutingManager} hands it the candidate backends of the group.
+ */
+public interface RoutingStrategy {
+
+  /**
+   * Picks a backend for a new query.
+   *
+   * @param routingGroup the routing group the query is routed in
+   * @param user the user submitting the query, may be null
+   * @param routingKey the key of the query for strategies with affinity, may be null
+   * @param backends the candidate backends, never empty
+   * @return the proxyTo url of the picked backend
+   */
+  String pickBackend(
+      String routingGroup,
+      String user,
+      String routingKey,
+      List<ProxyBackendConfiguration> backends);
+}
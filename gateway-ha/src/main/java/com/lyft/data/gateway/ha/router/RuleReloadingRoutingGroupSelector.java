@@ -62,6 +62,9 @@ public class RuleReloadingRoutingGroupSelector
       facts.put("request", request);
       facts.put("result", result);
       rulesEngine.fire(rules, facts);
+      if (result.containsKey("routingKey")) {
+        request.setAttribute(RoutingKeyExtractor.ROUTING_KEY_ATTRIBUTE, result.get("routingKey"));
+      }
       return result.get("routingGroup");
 
     } catch (Exception e) {
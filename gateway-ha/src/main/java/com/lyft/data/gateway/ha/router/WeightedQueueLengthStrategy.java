@@ -0,0 +1,56 @@
+package com.lyft.data.gateway.ha.router;
+
+import com.lyft.data.gateway.ha.clustermonitor.ClusterStats;
+import com.lyft.data.gateway.ha.clustermonitor.PrestoClusterStatsObserver;
+import com.lyft.data.gateway.ha.clustermonitor.PrestoQueueLengthChecker;
+import com.lyft.data.gateway.ha.config.ProxyBackendConfiguration;
+import com.lyft.data.gateway.ha.config.RoutingConfiguration.QueueLengthFormula;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Routes with the weights of a {@link PrestoQueueLengthRoutingTable}, which favour the backends
+ * with the shortest queues, and the backend with the fewest queued queries of the user first.
+ * Queries routed between two cluster stats updates are counted as queued on their backend.
+ */
+public class WeightedQueueLengthStrategy implements RoutingStrategy, PrestoClusterStatsObserver {
+  private final PrestoQueueLengthRoutingTable routingTable;
+  private final PrestoQueueLengthChecker queueLengthChecker;
+
+  public WeightedQueueLengthStrategy(
+      PrestoQueueLengthRoutingTable routingTable,
+      QueueLengthFormula queueLengthFormula,
+      double blockedQueryWeight) {
+    this.routingTable = routingTable;
+    this.queueLengthChecker =
+        new PrestoQueueLengthChecker(routingTable, queueLengthFormula, blockedQueryWeight);
+  }
+
+  @Override
+  public void observe(List<ClusterStats> stats) {
+    queueLengthChecker.observe(stats);
+  }
+
+  @Override
+  public String pickBackend(
+      String routingGroup,
+      String user,
+      String routingKey,
+      List<ProxyBackendConfiguration> backends) {
+    Map<String, String> proxyMap = new HashMap<>();
+    for (ProxyBackendConfiguration backend : backends) {
+      proxyMap.put(backend.getName(), backend.getProxyTo());
+    }
+    routingTable.updateRoutingTable(routingGroup, proxyMap.keySet());
+    String clusterId = routingTable.getEligibleBackEnd(routingGroup, user);
+    String backend = clusterId == null ? null : proxyMap.get(clusterId);
+    if (backend != null) {
+      routingTable.recordRoutedQuery(routingGroup, clusterId, user);
+      return backend;
+    }
+    // No weights yet, or the weighted backend is not a candidate
+    return backends.get(ThreadLocalRandom.current().nextInt(backends.size())).getProxyTo();
+  }
+}
@@ -0,0 +1,62 @@
+package com.lyft.data.gateway.ha;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+
+import com.codahale.metrics.health.HealthCheck;
+import com.lyft.data.baseapp.ComponentIndex;
+import com.lyft.data.gateway.ha.resource.GatewayResource;
+import io.dropwizard.servlets.tasks.Task;
+import javax.ws.rs.Path;
+import javax.ws.rs.ext.Provider;
+import org.reflections.Reflections;
+import org.reflections.scanners.SubTypesScanner;
+import org.reflections.scanners.TypeAnnotationsScanner;
+import org.reflections.util.ClasspathHelper;
+import org.reflections.util.ConfigurationBuilder;
+import org.reflections.util.FilterBuilder;
+import org.testng.annotations.Test;
+
+public class TestComponentIndex {
+  private static final String BASE_PACKAGE = "com.lyft";
+
+  @Test
+  public void testIndexMatchesClasspathScan() throws Exception {
+    ComponentIndex index = ComponentIndex.load(getClass().getClassLoader(), BASE_PACKAGE);
+    assertNotNull(index, "The component index should be generated at compile time");
+
+    Reflections reflections = new Reflections(new ConfigurationBuilder()
+        .addUrls(ClasspathHelper.forPackage(BASE_PACKAGE))
+        .filterInputsBy(new FilterBuilder().include(FilterBuilder.prefix(BASE_PACKAGE)))
+        .setScanners(new SubTypesScanner(), new TypeAnnotationsScanner()));
+    assertEquals(index.getTypesAnnotatedWith(Path.class),
+        reflections.getTypesAnnotatedWith(Path.class));
+    assertEquals(index.getTypesAnnotatedWith(Provider.class),
+        reflections.getTypesAnnotatedWith(Provider.class));
+    assertEquals(index.getSubTypesOf(HealthCheck.class),
+        reflections.getSubTypesOf(HealthCheck.class));
+    assertEquals(index.getSubTypesOf(Task.class), reflections.getSubTypesOf(Task.class));
+    assertTrue(index.getTypesAnnotatedWith(Path.class).contains(GatewayResource.class));
+  }
+
+  @Test
+  public void testIndexKeepsBasePackages() throws Exception {
+    ComponentIndex index =
+        ComponentIndex.load(getClass().getClassLoader(), "com.lyft.data.gateway.ha.router");
+    assertNotNull(index);
+    assertTrue(index.getTypesAnnotatedWith(Path.class).isEmpty());
+    assertEquals(index.count(Path.class), 0);
+  }
+
+  @Test
+  public void testCount() throws Exception {
+    ComponentIndex index = ComponentIndex.load(getClass().getClassLoader(), BASE_PACKAGE);
+    assertNotNull(index);
+    assertFalse(index.isEmpty());
+    assertEquals(index.count(Path.class), index.getTypesAnnotatedWith(Path.class).size());
+    assertEquals(index.count(Task.class), index.getSubTypesOf(Task.class).size());
+    assertTrue(ComponentIndex.load(getClass().getClassLoader(), "org.example").isEmpty());
+  }
+}
@@ -0,0 +1,139 @@
+package com.lyft.data.gateway.ha.admission;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import com.codahale.metrics.MetricRegistry;
+import com.lyft.data.gateway.ha.config.AdmissionControlConfiguration;
+import com.lyft.data.gateway.ha.router.OutstandingQueryTracker;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+public class TestAdmissionController {
+
+  private AdmissionController newController(int maxInFlight, int maxQueued, long maxWaitMillis) {
+    AdmissionControlConfiguration.Limits limits = new AdmissionControlConfiguration.Limits();
+    limits.setMaxInFlight(maxInFlight);
+    limits.setMaxQueued(maxQueued);
+    limits.setMaxWaitMillis(maxWaitMillis);
+    AdmissionControlConfiguration configuration = new AdmissionControlConfiguration();
+    configuration.getRoutingGroups().put("etl", limits);
+    return new AdmissionController(configuration, new MetricRegistry());
+  }
+
+  @Test
+  public void testUnlimitedRoutingGroup() {
+    AdmissionController controller = newController(1, 0, 0);
+    for (int i = 0; i < 10; i++) {
+      assertNotNull(controller.admit("adhoc"));
+    }
+  }
+
+  @Test
+  public void testInFlightLimit() {
+    AdmissionController controller = newController(2, 0, 0);
+    AdmissionController.Permit first = controller.admit("etl");
+    AdmissionController.Permit second = controller.admit("etl");
+    assertNotNull(first);
+    assertNotNull(second);
+    assertNull(controller.admit("etl"));
+
+    // Releasing twice only frees one slot
+    first.release();
+    first.release();
+    assertNotNull(controller.admit("etl"));
+    assertNull(controller.admit("etl"));
+  }
+
+  @Test
+  public void testWaitTimeout() {
+    AdmissionController controller = newController(1, 1, 50);
+    assertNotNull(controller.admit("etl"));
+    long start = System.nanoTime();
+    assertNull(controller.admit("etl"));
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+  }
+
+  @Test
+  public void testQueuedSubmissionIsAdmittedOnRelease() throws Exception {
+    AdmissionController controller = newController(1, 1, TimeUnit.SECONDS.toMillis(30));
+    AdmissionController.Permit permit = controller.admit("etl");
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      CountDownLatch waiting = new CountDownLatch(1);
+      final Future<AdmissionController.Permit> queued = executor.submit(() -> {
+        waiting.countDown();
+        return controller.admit("etl");
+      });
+      waiting.await();
+      // Give the submission time to enter the queue, the next one finds the queue full
+      Thread.sleep(200);
+      long start = System.nanoTime();
+      assertNull(controller.admit("etl"));
+      assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+
+      permit.release();
+      assertNotNull(queued.get(10, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testQueuedSubmissionsDoNotHoldThreads() throws Exception {
+    AdmissionController controller = newController(1, 2, 100);
+    AdmissionController.Permit permit = controller.admitAsync("etl").join();
+    assertNotNull(permit);
+    CompletableFuture<AdmissionController.Permit> first = controller.admitAsync("etl");
+    CompletableFuture<AdmissionController.Permit> second = controller.admitAsync("etl");
+    assertFalse(first.isDone());
+    assertFalse(second.isDone());
+    // The queue is full
+    assertNull(controller.admitAsync("etl").join());
+
+    permit.release();
+    assertNotNull(first.get(10, TimeUnit.SECONDS));
+    // The second one times out, as the first one keeps the slot
+    assertNull(second.get(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testSlotIsHeldUntilQueryCompletes() throws Exception {
+    AdmissionController controller = newController(1, 1, TimeUnit.SECONDS.toMillis(30));
+    OutstandingQueryTracker tracker = new OutstandingQueryTracker(300);
+    controller.trackQueries(tracker);
+    controller.queryStarted("query1", controller.admit("etl"));
+    tracker.querySubmitted("query1", "http://presto1");
+
+    CompletableFuture<AdmissionController.Permit> queued = controller.admitAsync("etl");
+    tracker.queryActive("query1");
+    assertFalse(queued.isDone());
+    tracker.queryCompleted("query1");
+    assertNotNull(queued.get(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testRejectionsAreMetered() {
+    AdmissionControlConfiguration.Limits limits = new AdmissionControlConfiguration.Limits();
+    limits.setMaxInFlight(0);
+    limits.setMaxQueued(0);
+    AdmissionControlConfiguration configuration = new AdmissionControlConfiguration();
+    configuration.getRoutingGroups().put("etl", limits);
+    MetricRegistry metrics = new MetricRegistry();
+    AdmissionController controller = new AdmissionController(configuration, metrics);
+    assertNull(controller.admit("etl"));
+    assertNull(controller.admit("etl"));
+    assertEquals(metrics.meter(
+        MetricRegistry.name(AdmissionController.class, "etl", "rejected")).getCount(), 2);
+  }
+}
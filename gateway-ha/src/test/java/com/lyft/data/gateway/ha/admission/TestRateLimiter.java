@@ -0,0 +1,202 @@
+package com.lyft.data.gateway.ha.admission;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Ticker;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.testng.annotations.Test;
+
+public class TestRateLimiter {
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  @Test
+  public void testTokenBucket() {
+    TokenBucket bucket = new TokenBucket(2, 3);
+    long now = 1000 * SECOND;
+    assertTrue(bucket.tryAcquire(now));
+    assertTrue(bucket.tryAcquire(now));
+    assertTrue(bucket.tryAcquire(now));
+    assertFalse(bucket.tryAcquire(now));
+
+    // Refills at two tokens per second
+    assertTrue(bucket.tryAcquire(now + SECOND / 2));
+    assertFalse(bucket.tryAcquire(now + SECOND / 2));
+
+    // Never holds more than the burst
+    long later = now + 60 * SECOND;
+    for (int i = 0; i < 3; i++) {
+      assertTrue(bucket.tryAcquire(later));
+    }
+    assertFalse(bucket.tryAcquire(later));
+  }
+
+  @Test
+  public void testZeroRateBlocks() {
+    assertFalse(new TokenBucket(0, 10).tryAcquire(System.nanoTime()));
+  }
+
+  @Test
+  public void testLimitsByKey() throws Exception {
+    File rules = writeRules("users:\n"
+        + "  airflow:\n"
+        + "    requestsPerSecond: 0.001\n"
+        + "    burst: 2\n"
+        + "sources:\n"
+        + "  dashboard:\n"
+        + "    requestsPerSecond: 0.001\n"
+        + "routingGroups:\n"
+        + "  etl:\n"
+        + "    requestsPerSecond: 0\n");
+    MetricRegistry metrics = new MetricRegistry();
+    RateLimiter rateLimiter = new RateLimiter(rules.getPath(), 10, metrics);
+
+    assertTrue(rateLimiter.tryAcquire("airflow", null, "adhoc"));
+    assertTrue(rateLimiter.tryAcquire("airflow", null, "adhoc"));
+    assertFalse(rateLimiter.tryAcquire("airflow", null, "adhoc"));
+    assertEquals(metrics.meter(
+        MetricRegistry.name(RateLimiter.class, "user", "airflow", "throttled")).getCount(), 1);
+
+    assertTrue(rateLimiter.tryAcquire("alice", "dashboard", "adhoc"));
+    assertFalse(rateLimiter.tryAcquire("bob", "dashboard", "adhoc"));
+    assertFalse(rateLimiter.tryAcquire("alice", null, "etl"));
+
+    // Keys without limits are never throttled
+    for (int i = 0; i < 100; i++) {
+      assertTrue(rateLimiter.tryAcquire("alice", "cli", "adhoc"));
+    }
+  }
+
+  @Test
+  public void testDefaultUserLimit() throws Exception {
+    File rules = writeRules("defaultUserLimit:\n"
+        + "  requestsPerSecond: 0.001\n"
+        + "users:\n"
+        + "  service:\n"
+        + "    requestsPerSecond: 1000\n"
+        + "    burst: 1000\n");
+    RateLimiter rateLimiter = new RateLimiter(rules.getPath(), 10, new MetricRegistry());
+    assertTrue(rateLimiter.tryAcquire("alice", null, null));
+    assertFalse(rateLimiter.tryAcquire("alice", null, null));
+    assertTrue(rateLimiter.tryAcquire("bob", null, null));
+    for (int i = 0; i < 100; i++) {
+      assertTrue(rateLimiter.tryAcquire("service", null, null));
+    }
+  }
+
+  @Test
+  public void testReload() throws Exception {
+    File rules = writeRules("users:\n"
+        + "  airflow:\n"
+        + "    requestsPerSecond: 0\n");
+    RateLimiter rateLimiter = new RateLimiter(rules.getPath(), 0, new MetricRegistry());
+    assertFalse(rateLimiter.tryAcquire("airflow", null, null));
+
+    Files.write(rules.toPath(), "users: {}\n".getBytes(StandardCharsets.UTF_8));
+    assertTrue(rules.setLastModified(rules.lastModified() + 10000));
+    assertTrue(rateLimiter.tryAcquire("airflow", null, null));
+
+    // Invalid rules keep the previous limits
+    Files.write(rules.toPath(), "users: [".getBytes(StandardCharsets.UTF_8));
+    assertTrue(rules.setLastModified(rules.lastModified() + 10000));
+    assertTrue(rateLimiter.tryAcquire("airflow", null, null));
+  }
+
+  @Test
+  public void testReloadKeepsThrottleMeters() throws Exception {
+    File rules = writeRules("users:\n"
+        + "  airflow:\n"
+        + "    requestsPerSecond: 0\n");
+    MetricRegistry metrics = new MetricRegistry();
+    RateLimiter rateLimiter = new RateLimiter(rules.getPath(), 0, metrics);
+    assertFalse(rateLimiter.tryAcquire("airflow", null, null));
+
+    Files.write(rules.toPath(), ("users:\n"
+        + "  airflow:\n"
+        + "    requestsPerSecond: 0\n"
+        + "    burst: 2\n").getBytes(StandardCharsets.UTF_8));
+    assertTrue(rules.setLastModified(rules.lastModified() + 10000));
+    assertFalse(rateLimiter.tryAcquire("airflow", null, null));
+    String meterName = MetricRegistry.name(RateLimiter.class, "user", "airflow", "throttled");
+    assertTrue(metrics.getMeters().containsKey(meterName));
+    assertEquals(metrics.meter(meterName).getCount(), 1);
+  }
+
+  @Test
+  public void testThrottledSubmissionsDoNotTakeTokens() throws Exception {
+    File rules = writeRules("users:\n"
+        + "  airflow:\n"
+        + "    requestsPerSecond: 0.001\n"
+        + "sources:\n"
+        + "  dashboard:\n"
+        + "    requestsPerSecond: 0\n"
+        + "routingGroups:\n"
+        + "  etl:\n"
+        + "    requestsPerSecond: 0\n");
+    RateLimiter rateLimiter = new RateLimiter(rules.getPath(), 10, new MetricRegistry());
+
+    // The single token of airflow is given back when another limit throttles the submission
+    assertFalse(rateLimiter.tryAcquire("airflow", null, "etl"));
+    assertFalse(rateLimiter.tryAcquire("airflow", "dashboard", "adhoc"));
+    assertTrue(rateLimiter.tryAcquire("airflow", null, "adhoc"));
+    assertFalse(rateLimiter.tryAcquire("airflow", null, "adhoc"));
+  }
+
+  @Test
+  public void testIdleBucketsAreDropped() throws Exception {
+    File rules = writeRules("defaultUserLimit:\n"
+        + "  requestsPerSecond: 0.01\n"
+        + "  burst: 2\n");
+    MetricRegistry metrics = new MetricRegistry();
+    AtomicLong nanos = new AtomicLong();
+    Ticker ticker = new Ticker() {
+      @Override
+      public long read() {
+        return nanos.get();
+      }
+    };
+    RateLimiter rateLimiter = new RateLimiter(rules.getPath(), 0, metrics, ticker);
+
+    assertTrue(rateLimiter.tryAcquire("alice", null, null));
+    assertTrue(rateLimiter.tryAcquire("alice", null, null));
+    assertFalse(rateLimiter.tryAcquire("alice", null, null));
+    String meterName = MetricRegistry.name(RateLimiter.class, "user", "alice", "throttled");
+    assertTrue(metrics.getMeters().containsKey(meterName));
+
+    // Kept until the bucket would be full again, 200 seconds for two tokens
+    nanos.addAndGet(150 * SECOND);
+    assertTrue(rateLimiter.tryAcquire("bob", null, null));
+    assertTrue(rateLimiter.tryAcquire("alice", null, null));
+    assertFalse(rateLimiter.tryAcquire("alice", null, null));
+
+    nanos.addAndGet(201 * SECOND);
+    assertTrue(rateLimiter.tryAcquire("bob", null, null));
+    assertFalse(metrics.getMeters().containsKey(meterName));
+    assertTrue(rateLimiter.tryAcquire("alice", null, null));
+    assertTrue(rateLimiter.tryAcquire("alice", null, null));
+
+    // A meter registered by someone else under the same name is not removed
+    metrics.remove(meterName);
+    Meter otherMeter = metrics.meter(meterName);
+    nanos.addAndGet(201 * SECOND);
+    assertTrue(rateLimiter.tryAcquire("bob", null, null));
+    assertSame(metrics.getMeters().get(meterName), otherMeter);
+  }
+
+  private File writeRules(String content) throws Exception {
+    File rules = File.createTempFile("rate-limits", ".yml");
+    rules.deleteOnExit();
+    Files.write(rules.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    return rules;
+  }
+}
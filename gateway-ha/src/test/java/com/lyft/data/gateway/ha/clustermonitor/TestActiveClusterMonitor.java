@@ -0,0 +1,41 @@
+package com.lyft.data.gateway.ha.clustermonitor;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import org.testng.annotations.Test;
+
+public class TestActiveClusterMonitor {
+
+  @Test
+  public void testCountQueuedQueriesByUser() throws Exception {
+    String queries = "["
+        + "{\"queryId\":\"q1\",\"sessionUser\":\"alice\",\"state\":\"QUEUED\","
+        + "\"session\":{\"user\":\"alice\",\"sessionUser\":\"nested\"},"
+        + "\"queryStats\":{\"elapsedTime\":\"1.00s\",\"operatorSummaries\":[{\"a\":[1,2]}]}},"
+        + "{\"queryId\":\"q2\",\"sessionUser\":\"bob\",\"errorCode\":null},"
+        + "{\"queryId\":\"q3\",\"state\":\"QUEUED\",\"sessionUser\":\"alice\"},"
+        + "{\"queryId\":\"q4\",\"sessionUser\":null}"
+        + "]";
+    Map<String, Integer> counts = ActiveClusterMonitor.countQueuedQueriesByUser(toStream(queries));
+    assertEquals(counts.size(), 2);
+    assertEquals(counts.get("alice").intValue(), 2);
+    assertEquals(counts.get("bob").intValue(), 1);
+
+    assertTrue(ActiveClusterMonitor.countQueuedQueriesByUser(toStream("[]")).isEmpty());
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void testCountQueuedQueriesRejectsNonList() throws Exception {
+    ActiveClusterMonitor.countQueuedQueriesByUser(toStream("{\"message\":\"unauthorized\"}"));
+  }
+
+  private static InputStream toStream(String content) {
+    return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+  }
+}
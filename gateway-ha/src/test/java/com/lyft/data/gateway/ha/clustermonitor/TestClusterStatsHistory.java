@@ -0,0 +1,66 @@
+package com.lyft.data.gateway.ha.clustermonitor;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.testng.annotations.Test;
+
+public class TestClusterStatsHistory {
+  private final AtomicLong now = new AtomicLong();
+
+  @Test
+  public void testRingBufferKeepsLatestSamples() {
+    ClusterStatsHistory history = new ClusterStatsHistory(4, now::get);
+    for (int i = 1; i <= 6; i++) {
+      now.set(i * 1000);
+      history.observe(Collections.singletonList(stats("presto1", i, true)));
+    }
+
+    List<ClusterStatsHistory.Sample> samples = history.getHistory(null, 10).get("presto1");
+    assertEquals(samples.size(), 4);
+    for (int i = 0; i < 4; i++) {
+      assertEquals(samples.get(i).getTimestamp(), (i + 3) * 1000);
+      assertEquals(samples.get(i).getQueuedQueryCount(), i + 3);
+      assertEquals(samples.get(i).getRunningQueryCount(), 2 * (i + 3));
+    }
+  }
+
+  @Test
+  public void testDownsampling() {
+    ClusterStatsHistory history = new ClusterStatsHistory(100, now::get);
+    for (int i = 1; i <= 6; i++) {
+      now.set(i * 1000);
+      history.observe(Collections.singletonList(stats("presto1", i, i != 2)));
+      history.observe(Collections.singletonList(stats("presto2", 10, true)));
+    }
+
+    List<ClusterStatsHistory.Sample> samples = history.getHistory("presto1", 3).get("presto1");
+    assertEquals(samples.size(), 3);
+    // Pairs of samples are averaged, and unhealthy if any sample was
+    assertEquals(samples.get(0).getTimestamp(), 2000);
+    assertEquals(samples.get(0).getQueuedQueryCount(), 2);
+    assertFalse(samples.get(0).isHealthy());
+    assertEquals(samples.get(2).getTimestamp(), 6000);
+    assertEquals(samples.get(2).getQueuedQueryCount(), 6);
+    assertTrue(samples.get(2).isHealthy());
+
+    Map<String, List<ClusterStatsHistory.Sample>> all = history.getHistory(null, 1);
+    assertEquals(all.size(), 2);
+    assertEquals(all.get("presto2").size(), 1);
+    assertEquals(all.get("presto2").get(0).getQueuedQueryCount(), 10);
+  }
+
+  private ClusterStats stats(String clusterId, int queued, boolean healthy) {
+    ClusterStats stats = new ClusterStats();
+    stats.setClusterId(clusterId);
+    stats.setQueuedQueryCount(queued);
+    stats.setRunningQueryCount(2 * queued);
+    stats.setHealthy(healthy);
+    return stats;
+  }
+}
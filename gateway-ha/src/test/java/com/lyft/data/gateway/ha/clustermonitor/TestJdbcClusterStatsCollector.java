@@ -0,0 +1,35 @@
+package com.lyft.data.gateway.ha.clustermonitor;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+
+import java.sql.ResultSet;
+import org.testng.annotations.Test;
+
+public class TestJdbcClusterStatsCollector {
+
+  @Test
+  public void testReadClusterStats() throws Exception {
+    // The total row, then a row per user
+    ResultSet resultSet = mock(ResultSet.class);
+    when(resultSet.next()).thenReturn(true, true, true, true, false);
+    when(resultSet.getInt("isTotal")).thenReturn(1, 0, 0, 0);
+    when(resultSet.getString("sessionUser")).thenReturn("alice", "bob", null);
+    when(resultSet.getInt("queuedQueries")).thenReturn(5, 3, 0, 2);
+    when(resultSet.getInt("runningQueries")).thenReturn(7);
+    when(resultSet.getInt("blockedQueries")).thenReturn(1);
+    when(resultSet.getInt("activeWorkers")).thenReturn(10);
+
+    ClusterStats clusterStats = new ClusterStats();
+    JdbcClusterStatsCollector.readClusterStats(resultSet, clusterStats);
+
+    assertEquals(clusterStats.getQueuedQueryCount(), 5);
+    assertEquals(clusterStats.getRunningQueryCount(), 7);
+    assertEquals(clusterStats.getBlockedQueryCount(), 1);
+    assertEquals(clusterStats.getNumWorkerNodes(), 10);
+    // Users without queued queries, and queries without a user, are left out
+    assertEquals(clusterStats.getUserQueuedCount().size(), 1);
+    assertEquals(clusterStats.getUserQueuedCount().get("alice").intValue(), 3);
+  }
+}
@@ -0,0 +1,133 @@
+package com.lyft.data.gateway.ha.clustermonitor;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import com.lyft.data.gateway.ha.config.RoutingConfiguration.QueueLengthFormula;
+import com.lyft.data.gateway.ha.router.PrestoQueueLengthRoutingTable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+public class TestPrestoQueueLengthChecker {
+  private static final String ROUTING_GROUP = "adhoc";
+
+  @DataProvider(name = "mixedClusterSizes")
+  public Object[][] mixedClusterSizes() {
+    // formula, blocked query weight, small cluster and large cluster as
+    // {workers, queued, running, blocked}, cluster expected to get the higher weight
+    return new Object[][] {
+        // Equal queues, the large cluster has more capacity
+        {QueueLengthFormula.QUEUED_PER_WORKER, 0.0, stats(10, 10, 0, 0), stats(200, 10, 0, 0),
+            "large"},
+        // A longer queue on a much larger cluster is still shorter per worker
+        {QueueLengthFormula.QUEUED_PER_WORKER, 0.0, stats(10, 5, 0, 0), stats(200, 50, 0, 0),
+            "large"},
+        {QueueLengthFormula.QUEUED_PER_WORKER, 0.0, stats(10, 1, 0, 0), stats(200, 100, 0, 0),
+            "small"},
+        // Equal queues per worker fall back to the running queries per worker
+        {QueueLengthFormula.QUEUED_PER_WORKER, 0.0, stats(10, 1, 10, 0), stats(200, 20, 100, 0),
+            "large"},
+        // Blocked queries count in the queue
+        {QueueLengthFormula.QUEUED_PER_WORKER, 1.0, stats(50, 10, 0, 0), stats(50, 10, 0, 20),
+            "small"},
+        {QueueLengthFormula.QUEUED_PER_WORKER, 0.0, stats(50, 10, 0, 20), stats(50, 12, 0, 0),
+            "small"},
+        // A cluster without active workers counts as a single worker
+        {QueueLengthFormula.QUEUED_PER_WORKER, 0.0, stats(0, 1, 0, 0), stats(100, 10, 0, 0),
+            "large"},
+        // Raw queue lengths ignore the cluster sizes
+        {QueueLengthFormula.QUEUED, 0.0, stats(10, 10, 5, 0), stats(200, 10, 50, 0), "small"},
+        {QueueLengthFormula.QUEUED, 0.0, stats(10, 5, 0, 0), stats(200, 50, 0, 0), "small"},
+        {QueueLengthFormula.QUEUED, 1.0, stats(10, 10, 0, 0), stats(200, 5, 0, 10), "small"},
+    };
+  }
+
+  @Test(dataProvider = "mixedClusterSizes")
+  public void testWeightsForMixedClusterSizes(
+      QueueLengthFormula formula,
+      double blockedQueryWeight,
+      ClusterStats small,
+      ClusterStats large,
+      String expectedFavoured) {
+    small.setClusterId("small");
+    large.setClusterId("large");
+    PrestoQueueLengthRoutingTable routingTable =
+        new PrestoQueueLengthRoutingTable(null, null, null);
+    new PrestoQueueLengthChecker(routingTable, formula, blockedQueryWeight)
+        .observe(Arrays.asList(small, large));
+
+    Map<String, Integer> weights = getWeights(routingTable);
+    String other = expectedFavoured.equals("small") ? "large" : "small";
+    assertTrue(weights.get(expectedFavoured) > weights.get(other), weights.toString());
+  }
+
+  @Test
+  public void testQueueLengths() {
+    PrestoQueueLengthRoutingTable routingTable =
+        new PrestoQueueLengthRoutingTable(null, null, null);
+    PrestoQueueLengthChecker perWorker =
+        new PrestoQueueLengthChecker(routingTable, QueueLengthFormula.QUEUED_PER_WORKER, 0.5);
+    assertEquals(perWorker.getQueueLength(stats(200, 10, 0, 4)), 6);
+    assertEquals(perWorker.getRunningLength(stats(200, 10, 300, 4)), 150);
+    // Any queue is rounded up to a non zero length
+    assertEquals(perWorker.getQueueLength(stats(1000, 1, 0, 0)), 1);
+
+    PrestoQueueLengthChecker queued = new PrestoQueueLengthChecker(routingTable);
+    assertEquals(queued.getQueueLength(stats(200, 10, 0, 4)), 10);
+    assertEquals(queued.getRunningLength(stats(200, 10, 300, 4)), 300);
+  }
+
+  @Test
+  public void testRoutedQueriesCountPerWorker() {
+    ClusterStats small = stats(1, 0, 0, 0);
+    small.setClusterId("small");
+    ClusterStats large = stats(100, 10, 0, 0);
+    large.setClusterId("large");
+    PrestoQueueLengthRoutingTable routingTable =
+        new PrestoQueueLengthRoutingTable(null, null, null);
+    PrestoQueueLengthChecker checker =
+        new PrestoQueueLengthChecker(routingTable, QueueLengthFormula.QUEUED_PER_WORKER, 0);
+    checker.observe(Arrays.asList(small, large));
+    assertEquals(checker.getRoutedQueryLength(small), 100.0);
+    assertEquals(checker.getRoutedQueryLength(large), 1.0);
+    Map<String, Integer> weights = getWeights(routingTable);
+    assertTrue(weights.get("small") > weights.get("large"), weights.toString());
+
+    // One query on the single worker is a longer queue than ten on a hundred workers
+    routingTable.recordRoutedQuery(ROUTING_GROUP, "small", null);
+    weights = getWeights(routingTable);
+    assertTrue(weights.get("large") > weights.get("small"), weights.toString());
+  }
+
+  /**
+   * The routing table holds cumulative weights, ordered by queue length.
+   */
+  private static Map<String, Integer> getWeights(PrestoQueueLengthRoutingTable routingTable) {
+    TreeMap<Integer, String> cumulative = new TreeMap<>();
+    routingTable.getInternalWeightedRoutingTable(ROUTING_GROUP)
+        .forEach((cluster, sum) -> cumulative.put(sum, cluster));
+    Map<String, Integer> weights = new HashMap<>();
+    int previous = 0;
+    for (Map.Entry<Integer, String> entry : cumulative.entrySet()) {
+      weights.put(entry.getValue(), entry.getKey() - previous);
+      previous = entry.getKey();
+    }
+    return weights;
+  }
+
+  private static ClusterStats stats(int workers, int queued, int running, int blocked) {
+    ClusterStats stats = new ClusterStats();
+    stats.setHealthy(true);
+    stats.setRoutingGroup(ROUTING_GROUP);
+    stats.setNumWorkerNodes(workers);
+    stats.setQueuedQueryCount(queued);
+    stats.setRunningQueryCount(running);
+    stats.setBlockedQueryCount(blocked);
+    return stats;
+  }
+}
@@ -0,0 +1,102 @@
+package com.lyft.data.gateway.ha.handler;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.lyft.data.gateway.ha.config.AccessLogConfiguration;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.servlet.http.HttpServletRequest;
+import org.mockito.Mockito;
+import org.testng.annotations.Test;
+
+public class TestAccessLogger {
+
+  @Test
+  public void testSampling() {
+    AccessLogConfiguration config = new AccessLogConfiguration();
+    config.setStatementSampleRate(1.0);
+    config.setPollSampleRate(0);
+    AccessLogger accessLogger = new AccessLogger(config, record -> { });
+    for (int i = 0; i < 100; i++) {
+      assertTrue(accessLogger.isSampled(AccessLogger.RequestKind.STATEMENT));
+      assertFalse(accessLogger.isSampled(AccessLogger.RequestKind.POLL));
+    }
+  }
+
+  @Test
+  public void testTruncate() {
+    AccessLogConfiguration config = new AccessLogConfiguration();
+    config.setMaxPayloadLength(6);
+    AccessLogger accessLogger = new AccessLogger(config, record -> { });
+    assertEquals(accessLogger.truncate("select 1"), "select...");
+    assertEquals(accessLogger.truncate("show"), "show");
+    assertEquals(accessLogger.truncate(null), null);
+  }
+
+  @Test
+  public void testReadPayload() throws Exception {
+    AccessLogConfiguration config = new AccessLogConfiguration();
+    config.setMaxPayloadLength(6);
+    AccessLogger accessLogger = new AccessLogger(config, record -> { });
+    StringReader reader = new StringReader("select * from large_table");
+    assertEquals(accessLogger.readPayload(reader), "select...");
+    // Only one character past the limit is read
+    assertEquals(reader.read(), (int) '*');
+    assertEquals(accessLogger.readPayload(new StringReader("show")), "show");
+    assertEquals(accessLogger.readPayload(new StringReader("")), "");
+  }
+
+  @Test
+  public void testRecordsDroppedWhenQueueIsFull() throws Exception {
+    AccessLogConfiguration config = new AccessLogConfiguration();
+    config.setQueueSize(2);
+    List<String> lines = new ArrayList<>();
+    AccessLogger accessLogger = new AccessLogger(config, lines::add);
+    for (int i = 0; i < 3; i++) {
+      Map<String, Object> record = new LinkedHashMap<>();
+      record.put("status", 200 + i);
+      record.put("path", "/v1/statement");
+      accessLogger.log(record);
+    }
+    assertEquals(accessLogger.getDroppedRecords(), 1);
+
+    accessLogger.drain();
+    assertEquals(lines.size(), 2);
+    Map<?, ?> written = new ObjectMapper().readValue(lines.get(1), Map.class);
+    assertEquals(written.get("status"), 201);
+    assertEquals(written.get("path"), "/v1/statement");
+
+    accessLogger.log(Collections.singletonMap("status", 503));
+    assertEquals(accessLogger.getDroppedRecords(), 1);
+  }
+
+  @Test
+  public void testRequestKind() {
+    assertEquals(QueryIdCachingProxyHandler.getRequestKind(request("POST", "/v1/statement")),
+        AccessLogger.RequestKind.STATEMENT);
+    assertEquals(QueryIdCachingProxyHandler.getRequestKind(
+        request("GET", "/v1/statement/queued/20200416_160256_03078_6b4yt/y/1")),
+        AccessLogger.RequestKind.POLL);
+    assertEquals(QueryIdCachingProxyHandler.getRequestKind(
+        request("DELETE", "/v1/query/20200416_160256_03078_6b4yt")),
+        AccessLogger.RequestKind.POLL);
+    assertEquals(QueryIdCachingProxyHandler.getRequestKind(request("GET", "/ui/api/stats")),
+        AccessLogger.RequestKind.UI);
+    assertEquals(QueryIdCachingProxyHandler.getRequestKind(request("GET", "/v1/info")),
+        AccessLogger.RequestKind.OTHER);
+  }
+
+  private HttpServletRequest request(String method, String path) {
+    HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+    Mockito.when(request.getMethod()).thenReturn(method);
+    Mockito.when(request.getRequestURI()).thenReturn(path);
+    return request;
+  }
+}
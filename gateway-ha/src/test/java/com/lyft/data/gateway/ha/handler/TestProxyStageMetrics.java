@@ -0,0 +1,48 @@
+package com.lyft.data.gateway.ha.handler;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+
+import com.codahale.metrics.MetricRegistry;
+import java.util.concurrent.TimeUnit;
+import org.testng.annotations.Test;
+
+public class TestProxyStageMetrics {
+
+  @Test
+  public void testRecordByRoutingGroupAndBackend() {
+    MetricRegistry metrics = new MetricRegistry();
+    ProxyStageMetrics stageMetrics = new ProxyStageMetrics(metrics);
+    stageMetrics.record(ProxyStageMetrics.STAGE_BACKEND_SELECTION, "etl",
+        "http://presto1.lyft.com:8080", TimeUnit.MILLISECONDS.toNanos(3));
+    stageMetrics.record(ProxyStageMetrics.STAGE_BACKEND_SELECTION, "adhoc",
+        "http://presto2.lyft.com:8080", TimeUnit.MILLISECONDS.toNanos(5));
+    stageMetrics.record(ProxyStageMetrics.STAGE_BACKEND_SELECTION, null, null, 1);
+
+    assertEquals(metrics.timer("proxy.backendSelection").getCount(), 3);
+    assertEquals(metrics.timer("proxy.backendSelection.routingGroup.etl").getCount(), 1);
+    assertEquals(metrics.timer("proxy.backendSelection.backend.presto2_lyft_com_8080")
+        .getSnapshot().getMax(), TimeUnit.MILLISECONDS.toNanos(5));
+    assertFalse(metrics.getTimers().containsKey("proxy.backendSelection.routingGroup.null"));
+  }
+
+  @Test
+  public void testKeepsLatestSamples() {
+    MetricRegistry metrics = new MetricRegistry();
+    ProxyStageMetrics stageMetrics = new ProxyStageMetrics(metrics);
+    stageMetrics.record(ProxyStageMetrics.STAGE_COOKIE_LOOKUP, null, null,
+        TimeUnit.SECONDS.toNanos(10));
+    for (int i = 0; i < 5000; i++) {
+      stageMetrics.record(ProxyStageMetrics.STAGE_COOKIE_LOOKUP, null, null, 1);
+    }
+    assertEquals(metrics.timer("proxy.cookieLookup").getCount(), 5001);
+    assertEquals(metrics.timer("proxy.cookieLookup").getSnapshot().size(), 1024);
+    assertEquals(metrics.timer("proxy.cookieLookup").getSnapshot().getMax(), 1);
+  }
+
+  @Test
+  public void testBackendName() {
+    assertEquals(ProxyStageMetrics.backendName("https://presto1.lyft.com"), "presto1_lyft_com");
+    assertEquals(ProxyStageMetrics.backendName("presto1:8080"), "presto1_8080");
+  }
+}
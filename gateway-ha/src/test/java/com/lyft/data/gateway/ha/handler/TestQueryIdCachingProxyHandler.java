@@ -1,10 +1,29 @@
 package com.lyft.data.gateway.ha.handler;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
 
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableList;
+import com.lyft.data.gateway.ha.admission.AdmissionController;
+import com.lyft.data.gateway.ha.config.AdmissionControlConfiguration;
+import com.lyft.data.gateway.ha.router.RoutingGroupSelector;
+import com.lyft.data.gateway.ha.router.RoutingManager;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 
 import org.eclipse.jetty.client.HttpClient;
@@ -50,4 +69,101 @@ public class TestQueryIdCachingProxyHandler {
         backendServer, backendPort));
   }
 
+  @Test
+  public void testHasNextUri() throws IOException {
+    byte[] running = ("{\"id\":\"q1\",\"nextUri\":\"http://presto/v1/statement/executing/q1\","
+        + "\"stats\":{\"state\":\"RUNNING\"}}").getBytes(StandardCharsets.UTF_8);
+    byte[] finished = "{\"id\":\"q1\",\"stats\":{\"state\":\"FINISHED\"}}"
+        .getBytes(StandardCharsets.UTF_8);
+    assertTrue(QueryIdCachingProxyHandler.hasNextUri(running, 0, running.length, false));
+    assertFalse(QueryIdCachingProxyHandler.hasNextUri(finished, 0, finished.length, false));
+    // Truncated results are taken as a running query
+    assertTrue(QueryIdCachingProxyHandler.hasNextUri(finished, 0, 10, false));
+
+    byte[] gzipped = gzip(finished);
+    assertFalse(QueryIdCachingProxyHandler.hasNextUri(gzipped, 0, gzipped.length, true));
+    byte[] truncated = Arrays.copyOf(gzip(running), 30);
+    assertTrue(QueryIdCachingProxyHandler.hasNextUri(truncated, 0, truncated.length, true));
+  }
+
+  @Test
+  public void testRepinCookieOfInactiveBackend() throws IOException {
+    SignedBackendCookie backendCookie = new SignedBackendCookie(ImmutableList.of("key1"));
+    RoutingManager routingManager = Mockito.mock(RoutingManager.class);
+    Mockito.when(routingManager.isBackendActive("http://presto1:8080")).thenReturn(true);
+    Mockito.when(routingManager.isBackendActive("http://presto2:8080")).thenReturn(false);
+    Mockito.when(routingManager.provideAdhocBackend(Mockito.any(), Mockito.any()))
+        .thenReturn("http://presto3:8080");
+    QueryIdCachingProxyHandler handler =
+        newHandler(routingManager, backendCookie, null);
+
+    HttpServletRequest active = newUiRequest(backendCookie.newCookie("http://presto1:8080", true));
+    assertEquals(handler.rewriteTarget(active, 1), "http://presto1:8080/ui/");
+
+    // The cookie of a deactivated, drained or removed backend is ignored and the session re-pinned
+    HttpServletRequest inactive =
+        newUiRequest(backendCookie.newCookie("http://presto2:8080", true));
+    assertEquals(handler.rewriteTarget(inactive, 2), "http://presto3:8080/ui/");
+    Mockito.verify(inactive).setAttribute(SignedBackendCookie.class.getName(),
+        "http://presto3:8080");
+  }
+
+  @Test
+  public void testReleaseAdmissionWhenBackendSelectionFails() throws IOException {
+    AdmissionControlConfiguration.Limits limits = new AdmissionControlConfiguration.Limits();
+    limits.setMaxInFlight(1);
+    limits.setMaxQueued(0);
+    AdmissionControlConfiguration configuration = new AdmissionControlConfiguration();
+    configuration.getRoutingGroups().put(QueryIdCachingProxyHandler.DEFAULT_ROUTING_GROUP, limits);
+    AdmissionController admissionController =
+        new AdmissionController(configuration, new MetricRegistry());
+    RoutingManager routingManager = Mockito.mock(RoutingManager.class);
+    Mockito.when(routingManager.provideAdhocBackend(Mockito.any(), Mockito.any()))
+        .thenThrow(new IllegalStateException("No active backends"));
+
+    HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+    Map<String, Object> attributes = new HashMap<>();
+    Mockito.doAnswer(invocation -> attributes.put((String) invocation.getArguments()[0],
+        invocation.getArguments()[1])).when(request).setAttribute(Mockito.anyString(),
+        Mockito.any());
+    Mockito.doAnswer(invocation -> attributes.remove(invocation.getArguments()[0]))
+        .when(request).removeAttribute(Mockito.anyString());
+    Mockito.when(request.getAttribute(Mockito.anyString()))
+        .thenAnswer(invocation -> attributes.get(invocation.getArguments()[0]));
+    Mockito.when(request.getRequestURI()).thenReturn("/v1/statement");
+    Mockito.when(request.getMethod()).thenReturn("POST");
+    Mockito.when(request.getReader()).thenReturn(new BufferedReader(new StringReader("SELECT 1")));
+
+    QueryIdCachingProxyHandler handler = newHandler(routingManager, null, admissionController);
+    Assert.assertThrows(IllegalStateException.class, () -> handler.rewriteTarget(request, 1));
+    // The slot taken by the failed submission is free again
+    AdmissionController.Permit permit =
+        admissionController.admit(QueryIdCachingProxyHandler.DEFAULT_ROUTING_GROUP);
+    Assert.assertNotNull(permit);
+  }
+
+  private static QueryIdCachingProxyHandler newHandler(RoutingManager routingManager,
+      SignedBackendCookie backendCookie, AdmissionController admissionController) {
+    RoutingGroupSelector routingGroupSelector = Mockito.mock(RoutingGroupSelector.class);
+    return new QueryIdCachingProxyHandler(null, routingManager, routingGroupSelector, null, 8080,
+        new Meter(), new Meter(), false, Collections.emptySet(), backendCookie,
+        admissionController, null, new ProxyStageMetrics(new MetricRegistry()), null);
+  }
+
+  private static HttpServletRequest newUiRequest(Cookie cookie) throws IOException {
+    HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+    Mockito.when(request.getRequestURI()).thenReturn("/ui/");
+    Mockito.when(request.getMethod()).thenReturn("GET");
+    Mockito.when(request.getReader()).thenReturn(new BufferedReader(new StringReader("")));
+    Mockito.when(request.getCookies()).thenReturn(new Cookie[] {cookie});
+    return request;
+  }
+
+  private static byte[] gzip(byte[] content) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+      gzip.write(content);
+    }
+    return out.toByteArray();
+  }
 }
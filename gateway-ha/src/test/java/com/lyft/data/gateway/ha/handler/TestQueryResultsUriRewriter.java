@@ -0,0 +1,75 @@
+package com.lyft.data.gateway.ha.handler;
+
+import static org.testng.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.testng.annotations.Test;
+
+public class TestQueryResultsUriRewriter {
+  private static final String EXTERNAL_URL = "https://coordinator1.example.com:8443/";
+
+  private static final String RESPONSE = "{\"id\":\"20200416_160256_03078_6b4yt\","
+      + "\"infoUri\":\"http://gateway:8080/ui/query.html?20200416_160256_03078_6b4yt\","
+      + "\"partialCancelUri\":\"http://gateway:8080/v1/stage/20200416_160256_03078_6b4yt.0\","
+      + "\"nextUri\":\"http://gateway:8080/v1/statement/queued/20200416_160256_03078_6b4yt/x/1\","
+      + "\"columns\":[{\"name\":\"nextUri\",\"type\":\"varchar\"}],"
+      + "\"data\":[[\"http://gateway:8080/not/rewritten\",\"a \\\"nextUri\\\": b\"]],"
+      + "\"stats\":{\"nextUri\":\"http://gateway:8080/nested\"}}";
+
+  private static final String EXPECTED = "{\"id\":\"20200416_160256_03078_6b4yt\","
+      + "\"infoUri\":\"https://coordinator1.example.com:8443/ui/query.html?"
+      + "20200416_160256_03078_6b4yt\","
+      + "\"partialCancelUri\":\"https://coordinator1.example.com:8443/v1/stage/"
+      + "20200416_160256_03078_6b4yt.0\","
+      + "\"nextUri\":\"https://coordinator1.example.com:8443/v1/statement/queued/"
+      + "20200416_160256_03078_6b4yt/x/1\","
+      + "\"columns\":[{\"name\":\"nextUri\",\"type\":\"varchar\"}],"
+      + "\"data\":[[\"http://gateway:8080/not/rewritten\",\"a \\\"nextUri\\\": b\"]],"
+      + "\"stats\":{\"nextUri\":\"http://gateway:8080/nested\"}}";
+
+  @Test
+  public void testRewriteSingleChunk() {
+    byte[] input = RESPONSE.getBytes(StandardCharsets.UTF_8);
+    byte[] output = new QueryResultsUriRewriter(EXTERNAL_URL).rewrite(input, 0, input.length);
+    assertEquals(new String(output, StandardCharsets.UTF_8), EXPECTED);
+  }
+
+  @Test
+  public void testRewriteSplitChunks() {
+    byte[] input = RESPONSE.getBytes(StandardCharsets.UTF_8);
+    for (int split = 0; split <= input.length; split++) {
+      QueryResultsUriRewriter rewriter = new QueryResultsUriRewriter(EXTERNAL_URL);
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      byte[] first = rewriter.rewrite(input, 0, split);
+      output.write(first, 0, first.length);
+      byte[] second = rewriter.rewrite(input, split, input.length - split);
+      output.write(second, 0, second.length);
+      assertEquals(new String(output.toByteArray(), StandardCharsets.UTF_8), EXPECTED,
+          "split at " + split);
+    }
+  }
+
+  @Test
+  public void testRewriteByteByByte() {
+    byte[] input = RESPONSE.getBytes(StandardCharsets.UTF_8);
+    QueryResultsUriRewriter rewriter = new QueryResultsUriRewriter(EXTERNAL_URL);
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    for (int i = 0; i < input.length; i++) {
+      byte[] chunk = rewriter.rewrite(input, i, 1);
+      output.write(chunk, 0, chunk.length);
+    }
+    assertEquals(new String(output.toByteArray(), StandardCharsets.UTF_8), EXPECTED);
+  }
+
+  @Test
+  public void testRewriteUri() {
+    QueryResultsUriRewriter rewriter = new QueryResultsUriRewriter(EXTERNAL_URL);
+    assertEquals(rewriter.rewriteUri("http://gateway:8080/v1/statement"),
+        "https://coordinator1.example.com:8443/v1/statement");
+    assertEquals(rewriter.rewriteUri("http://gateway:8080"),
+        "https://coordinator1.example.com:8443");
+    assertEquals(rewriter.rewriteUri("/v1/statement"), "/v1/statement");
+  }
+}
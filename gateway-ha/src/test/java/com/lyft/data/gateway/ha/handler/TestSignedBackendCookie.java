@@ -0,0 +1,75 @@
+package com.lyft.data.gateway.ha.handler;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import com.google.common.collect.ImmutableList;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+
+import org.mockito.Mockito;
+import org.testng.annotations.Test;
+
+public class TestSignedBackendCookie {
+  private static final String BACKEND = "https://presto1.example.com:8443";
+
+  @Test
+  public void testSignAndVerify() {
+    SignedBackendCookie backendCookie = new SignedBackendCookie(ImmutableList.of("key1"));
+    String value = backendCookie.sign(BACKEND);
+    assertEquals(backendCookie.verify(value), BACKEND);
+  }
+
+  @Test
+  public void testRejectTamperedValues() {
+    SignedBackendCookie backendCookie = new SignedBackendCookie(ImmutableList.of("key1"));
+    String value = backendCookie.sign(BACKEND);
+    String otherBackend = new SignedBackendCookie(ImmutableList.of("key2")).sign("http://evil");
+
+    // Payload of one cookie with the signature of another
+    assertNull(backendCookie.verify(otherBackend.substring(0, otherBackend.indexOf('.'))
+        + value.substring(value.indexOf('.'))));
+    assertNull(backendCookie.verify(otherBackend));
+    assertNull(backendCookie.verify(value.substring(0, value.length() - 2)));
+    assertNull(backendCookie.verify("no-signature"));
+    assertNull(backendCookie.verify("not base64.!!"));
+    assertNull(backendCookie.verify(null));
+  }
+
+  @Test
+  public void testKeyRotation() {
+    String oldValue = new SignedBackendCookie(ImmutableList.of("old")).sign(BACKEND);
+    SignedBackendCookie rotated = new SignedBackendCookie(ImmutableList.of("new", "old"));
+    assertEquals(rotated.verify(oldValue), BACKEND);
+    assertEquals(new SignedBackendCookie(ImmutableList.of("new")).verify(rotated.sign(BACKEND)),
+        BACKEND);
+    assertNull(new SignedBackendCookie(ImmutableList.of("new")).verify(oldValue));
+  }
+
+  @Test
+  public void testFindBackend() {
+    SignedBackendCookie backendCookie = new SignedBackendCookie(ImmutableList.of("key1"));
+    Cookie cookie = backendCookie.newCookie(BACKEND, true);
+    assertEquals(cookie.getName(), SignedBackendCookie.COOKIE_NAME);
+    assertEquals(cookie.getPath(), "/");
+
+    HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+    Mockito.when(request.getCookies()).thenReturn(
+        new Cookie[] {new Cookie("JSESSIONID", "abc"), cookie});
+    assertEquals(backendCookie.findBackend(request), BACKEND);
+
+    HttpServletRequest noCookies = Mockito.mock(HttpServletRequest.class);
+    assertNull(backendCookie.findBackend(noCookies));
+  }
+
+  @Test
+  public void testFindBackendSkipsInvalidBackends() {
+    SignedBackendCookie backendCookie = new SignedBackendCookie(ImmutableList.of("key1"));
+    HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+    Mockito.when(request.getCookies()).thenReturn(
+        new Cookie[] {backendCookie.newCookie(BACKEND, true)});
+    assertEquals(backendCookie.findBackend(request, BACKEND::equals), BACKEND);
+    assertNull(backendCookie.findBackend(request, backend -> false));
+  }
+}
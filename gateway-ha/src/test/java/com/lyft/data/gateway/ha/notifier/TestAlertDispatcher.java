@@ -0,0 +1,96 @@
+package com.lyft.data.gateway.ha.notifier;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestAlertDispatcher {
+  private final AtomicLong now = new AtomicLong();
+  private final List<String> subjects = new ArrayList<>();
+  private final List<String> contents = new ArrayList<>();
+  private AlertDispatcher dispatcher;
+
+  @BeforeMethod
+  public void setUp() {
+    now.set(0);
+    subjects.clear();
+    contents.clear();
+    Notifier notifier = new Notifier() {
+      @Override
+      public void sendNotification(String subject, String content) {
+        subjects.add(subject);
+        contents.add(content);
+      }
+
+      @Override
+      public void sendNotification(
+          String from, List<String> recipients, String subject, String content) {
+        sendNotification(subject, content);
+      }
+    };
+    dispatcher = new AlertDispatcher(notifier, 60_000, now::get);
+  }
+
+  @Test
+  public void testAlertsOnlyOnStateChange() {
+    for (int i = 0; i < 5; i++) {
+      dispatcher.update("presto1", "Cluster unhealthy", true, "stats");
+    }
+    dispatcher.flush();
+    assertEquals(subjects, Collections.singletonList("presto1 - Cluster unhealthy"));
+
+    dispatcher.update("presto1", "Cluster unhealthy", true, "stats");
+    dispatcher.flush();
+    assertEquals(subjects.size(), 1);
+
+    dispatcher.update("presto1", "Cluster unhealthy", false, "stats");
+    dispatcher.flush();
+    assertEquals(subjects.get(1), "presto1 - Cluster unhealthy (resolved)");
+  }
+
+  @Test
+  public void testCooldown() {
+    dispatcher.update("presto1", "Cluster unhealthy", true, "stats");
+    dispatcher.flush();
+    dispatcher.update("presto1", "Cluster unhealthy", false, "stats");
+    dispatcher.flush();
+
+    // Flapping within the cooldown is not alerted, and neither is its recovery
+    now.set(30_000);
+    dispatcher.update("presto1", "Cluster unhealthy", true, "stats");
+    dispatcher.update("presto1", "Cluster unhealthy", false, "stats");
+    dispatcher.flush();
+    assertEquals(subjects.size(), 2);
+
+    now.set(61_000);
+    dispatcher.update("presto1", "Cluster unhealthy", true, "stats");
+    dispatcher.flush();
+    assertEquals(subjects.size(), 3);
+  }
+
+  @Test
+  public void testBatching() {
+    dispatcher.update("presto1", "Cluster unhealthy", true, "stats1");
+    dispatcher.update("presto2", "Cluster unhealthy", true, "stats2");
+    dispatcher.update("presto2", "Number of workers", true, "stats2");
+    // Started and stopped within the batch, so not sent at all
+    dispatcher.update("presto3", "Number of workers", true, "stats3");
+    dispatcher.update("presto3", "Number of workers", false, "stats3");
+    dispatcher.flush();
+
+    assertEquals(subjects, Collections.singletonList("3 cluster alerts"));
+    assertTrue(contents.get(0).contains("presto1 - Cluster unhealthy\nstats1"));
+    assertTrue(contents.get(0).contains("presto2 - Number of workers\nstats2"));
+    assertFalse(contents.get(0).contains("presto3"));
+
+    dispatcher.flush();
+    assertEquals(subjects.size(), 1);
+  }
+}
@@ -0,0 +1,160 @@
+package com.lyft.data.gateway.ha.persistence;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Ticker;
+import com.lyft.data.gateway.ha.config.ModelCacheConfiguration;
+import com.lyft.data.gateway.ha.config.PersistenceCacheConfiguration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.javalite.activejdbc.cache.CacheEvent;
+import org.testng.annotations.Test;
+
+public class TestModelCacheManager {
+  private final AtomicLong nanos = new AtomicLong();
+  private final Ticker ticker = new Ticker() {
+    @Override
+    public long read() {
+      return nanos.get();
+    }
+  };
+
+  @Test
+  public void testPolicyByTable() {
+    PersistenceCacheConfiguration configuration = new PersistenceCacheConfiguration();
+    configuration.getModels().put("selectors", new ModelCacheConfiguration(true, 10, 60));
+    ModelCacheManager cacheManager = new ModelCacheManager(configuration, ticker);
+
+    cacheManager.addCache("queryid", "key", "value");
+    assertNull(cacheManager.getCache("queryid", "key"));
+    assertFalse(cacheManager.isCached("queryid"));
+
+    cacheManager.addCache("gateway_backend", "key", "value");
+    assertEquals(cacheManager.getCache("gateway_backend", "key"), "value");
+    nanos.addAndGet(TimeUnit.SECONDS.toNanos(11));
+    assertNull(cacheManager.getCache("gateway_backend", "key"));
+
+    // Tables without their own policy use the defaults
+    cacheManager.addCache("other", "key", "value");
+    nanos.addAndGet(TimeUnit.SECONDS.toNanos(9));
+    assertEquals(cacheManager.getCache("other", "key"), "value");
+
+    cacheManager.addCache("selectors", "key", "value");
+    nanos.addAndGet(TimeUnit.SECONDS.toNanos(30));
+    assertEquals(cacheManager.getCache("selectors", "key"), "value");
+    for (int i = 0; i < 20; i++) {
+      cacheManager.addCache("selectors", "key" + i, "value");
+    }
+    assertTrue(cacheManager.getStats("selectors").evictionCount() >= 11);
+  }
+
+  @Test
+  public void testHitAndMissMetrics() {
+    MetricRegistry metrics = new MetricRegistry();
+    ModelCacheManager cacheManager =
+        new ModelCacheManager(new PersistenceCacheConfiguration(), ticker);
+    cacheManager.registerMetrics(metrics);
+
+    assertNull(cacheManager.getCache("gateway_backend", "key"));
+    cacheManager.addCache("gateway_backend", "key", "value");
+    cacheManager.getCache("gateway_backend", "key");
+    cacheManager.getCache("gateway_backend", "key");
+    cacheManager.getCache("queryid", "key");
+
+    assertEquals(metrics.getGauges().get("persistence.cache.gateway_backend.hits").getValue(), 2L);
+    assertEquals(
+        metrics.getGauges().get("persistence.cache.gateway_backend.misses").getValue(), 1L);
+    Gauge<?> hitRatio = metrics.getGauges().get("persistence.cache.gateway_backend.hitRatio");
+    assertEquals((Double) hitRatio.getValue(), 2.0 / 3, 0.001);
+    assertFalse(metrics.getGauges().containsKey("persistence.cache.queryid.hits"));
+  }
+
+  @Test
+  public void testFlushAndRemotePurge() {
+    ModelCacheManager cacheManager =
+        new ModelCacheManager(new PersistenceCacheConfiguration(), ticker);
+    List<CacheEvent> events = new ArrayList<>();
+    cacheManager.addCacheEventListener(events::add);
+    cacheManager.addCache("gateway_backend", "key", "value");
+    cacheManager.addCache("other", "key", "value");
+
+    cacheManager.purgeTableCache("gateway_backend");
+    assertNull(cacheManager.getCache("gateway_backend", "key"));
+    assertEquals(cacheManager.getCache("other", "key"), "value");
+    assertEquals(events.size(), 1);
+
+    // Purges requested by other instances are not propagated back
+    cacheManager.addCache("gateway_backend", "key", "value");
+    cacheManager.purge(Collections.singletonList("other"));
+    assertNull(cacheManager.getCache("other", "key"));
+    assertEquals(cacheManager.getCache("gateway_backend", "key"), "value");
+    cacheManager.purge(Collections.emptyList());
+    assertNull(cacheManager.getCache("gateway_backend", "key"));
+    assertEquals(events.size(), 1);
+  }
+
+  @Test
+  public void testInvalidationPublisher() {
+    ModelCacheManager cacheManager =
+        new ModelCacheManager(new PersistenceCacheConfiguration(), ticker);
+    List<String> sent = new ArrayList<>();
+    CacheInvalidationPublisher publisher = new CacheInvalidationPublisher(
+        Arrays.asList("http://gateway1", "http://gateway2"),
+        cacheManager::isCached,
+        (String peer, Collection<String> tables) -> {
+          if (peer.equals("http://gateway1")) {
+            throw new IllegalStateException("unreachable");
+          }
+          sent.add(peer + " " + tables);
+        });
+    cacheManager.addCacheEventListener(publisher);
+
+    cacheManager.purgeTableCache("gateway_backend");
+    cacheManager.purgeTableCache("queryid");
+    cacheManager.purgeTableCache("gateway_backend");
+    cacheManager.purgeTableCache("other");
+    publisher.publish();
+    assertEquals(sent, Collections.singletonList("http://gateway2 [gateway_backend, other]"));
+
+    sent.clear();
+    publisher.publish();
+    assertTrue(sent.isEmpty());
+    cacheManager.flush(CacheEvent.ALL);
+    publisher.publish();
+    assertEquals(sent, Collections.singletonList("http://gateway2 []"));
+  }
+
+  @Test
+  public void testPublisherSendsPendingPurgesOnStop() throws Exception {
+    List<String> sent = new ArrayList<>();
+    CacheInvalidationPublisher publisher = new CacheInvalidationPublisher(
+        Collections.singletonList("http://gateway2"), table -> true,
+        (String peer, Collection<String> tables) -> sent.add(peer + " " + tables),
+        TimeUnit.HOURS.toMillis(1));
+    publisher.start();
+    publisher.onFlush(new CacheEvent("gateway_backend", "test"));
+    publisher.stop();
+    assertEquals(sent, Collections.singletonList("http://gateway2 [gateway_backend]"));
+  }
+
+  @Test
+  public void testOnlyPeersMayPurge() {
+    PersistenceCacheConfiguration configuration = new PersistenceCacheConfiguration();
+    configuration.setPeers(Arrays.asList("http://127.0.0.2:8080", "http://localhost:8080"));
+    ModelCacheManager cacheManager = new ModelCacheManager(configuration, ticker);
+    assertTrue(cacheManager.isPeer("127.0.0.2"));
+    assertTrue(cacheManager.isPeer("127.0.0.1"));
+    assertFalse(cacheManager.isPeer("10.1.2.3"));
+    assertFalse(cacheManager.isPeer("not an address"));
+  }
+}
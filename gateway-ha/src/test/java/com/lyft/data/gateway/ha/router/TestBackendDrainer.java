@@ -0,0 +1,91 @@
+package com.lyft.data.gateway.ha.router;
+
+import static org.testng.Assert.assertEquals;
+
+import com.lyft.data.gateway.ha.config.ProxyBackendConfiguration;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.mockito.Mockito;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestBackendDrainer {
+  private ProxyBackendConfiguration backend;
+  private OutstandingQueryTracker tracker;
+  private GatewayBackendManager backendManager;
+  private BackendDrainer drainer;
+
+  @BeforeMethod
+  public void setUp() {
+    backend = new ProxyBackendConfiguration();
+    backend.setName("presto1");
+    backend.setProxyTo("http://presto1:8080");
+    backendManager = Mockito.mock(GatewayBackendManager.class);
+    Mockito.when(backendManager.getAllBackends())
+        .thenReturn(Collections.singletonList(backend));
+    Mockito.doAnswer(invocation -> {
+      backend.setActive(false);
+      return null;
+    }).when(backendManager).deactivateBackend("presto1");
+    tracker = new OutstandingQueryTracker(300);
+    drainer = new BackendDrainer(backendManager, tracker, 10);
+  }
+
+  @Test
+  public void testDrainStates() {
+    tracker.querySubmitted("q1", "http://presto1:8080");
+    tracker.querySubmitted("q2", "http://presto1:8080");
+    assertEquals(drainer.getStatus("presto1").getState(), BackendDrainer.State.ACTIVE);
+
+    BackendDrainer.DrainStatus status = drainer.drain("presto1");
+    assertEquals(status.getState(), BackendDrainer.State.DRAINING);
+    assertEquals(status.getRunningQueries(), 2);
+
+    tracker.queryCompleted("q1");
+    tracker.queryCompleted("q2");
+    status = drainer.getStatus("presto1");
+    assertEquals(status.getState(), BackendDrainer.State.DRAINED);
+    assertEquals(status.getRunningQueries(), 0);
+  }
+
+  @Test
+  public void testAwaitDrained() throws Exception {
+    tracker.querySubmitted("q1", "http://presto1:8080");
+    drainer.drain("presto1");
+    assertEquals(drainer.awaitDrained("presto1", 50).getState(), BackendDrainer.State.DRAINING);
+
+    CompletableFuture<BackendDrainer.DrainStatus> drained = CompletableFuture.supplyAsync(() -> {
+      try {
+        return drainer.awaitDrained("presto1", TimeUnit.SECONDS.toMillis(10));
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    tracker.queryCompleted("q1");
+    assertEquals(drained.get(10, TimeUnit.SECONDS).getState(), BackendDrainer.State.DRAINED);
+  }
+
+  @Test
+  public void testOnlyDrainedBackendsAreDrained() {
+    // Deactivated without a drain, or drained and activated again
+    backendManager.deactivateBackend("presto1");
+    assertEquals(drainer.getStatus("presto1").getState(), BackendDrainer.State.INACTIVE);
+    drainer.drain("presto1");
+    assertEquals(drainer.getStatus("presto1").getState(), BackendDrainer.State.DRAINED);
+    backend.setActive(true);
+    assertEquals(drainer.getStatus("presto1").getState(), BackendDrainer.State.ACTIVE);
+    backend.setActive(false);
+    assertEquals(drainer.getStatus("presto1").getState(), BackendDrainer.State.INACTIVE);
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void testDrainingDisabled() {
+    new BackendDrainer(backendManager, null).drain("presto1");
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testUnknownBackend() {
+    drainer.drain("presto2");
+  }
+}
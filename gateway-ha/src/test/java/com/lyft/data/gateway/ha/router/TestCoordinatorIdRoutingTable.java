@@ -0,0 +1,55 @@
+package com.lyft.data.gateway.ha.router;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import org.testng.annotations.Test;
+
+public class TestCoordinatorIdRoutingTable {
+  private static final String BACKEND1 = "http://presto1:8080";
+  private static final String BACKEND2 = "http://presto2:8080";
+
+  @Test
+  public void testLearnAndFind() {
+    CoordinatorIdRoutingTable table = new CoordinatorIdRoutingTable();
+    assertNull(table.findBackend("20200416_160256_03078_6b4yt"));
+
+    table.learn("20200416_160256_03078_6b4yt", BACKEND1);
+    table.learn("20200416_160301_00012_k2m9x", BACKEND2);
+    assertEquals(table.findBackend("20200416_170000_04000_6b4yt"), BACKEND1);
+    assertEquals(table.findBackend("20200417_000000_00001_k2m9x"), BACKEND2);
+    assertNull(table.findBackend("20200417_000000_00001_zzzzz"));
+  }
+
+  @Test
+  public void testInvalidQueryIds() {
+    CoordinatorIdRoutingTable table = new CoordinatorIdRoutingTable();
+    table.learn("not_a_query_id", BACKEND1);
+    table.learn(null, BACKEND1);
+    assertNull(table.findBackend("not_a_query_id"));
+    assertNull(table.findBackend(null));
+    assertNull(CoordinatorIdRoutingTable.extractSuffix("20200416_160256_6b4yt"));
+    assertEquals(CoordinatorIdRoutingTable.extractSuffix("20200416_160256_03078_6b4yt"), "6b4yt");
+  }
+
+  @Test
+  public void testCoordinatorRestart() {
+    CoordinatorIdRoutingTable table = new CoordinatorIdRoutingTable();
+    table.learn("20200416_160256_03078_6b4yt", BACKEND1);
+    table.learn("20200416_180000_00000_a1b2c", BACKEND1);
+    assertNull(table.findBackend("20200416_160300_03079_6b4yt"));
+    assertEquals(table.findBackend("20200416_180001_00001_a1b2c"), BACKEND1);
+  }
+
+  @Test
+  public void testAmbiguousSuffix() {
+    CoordinatorIdRoutingTable table = new CoordinatorIdRoutingTable();
+    table.learn("20200416_160256_03078_6b4yt", BACKEND1);
+    table.learn("20200416_160257_00001_6b4yt", BACKEND2);
+    assertNull(table.findBackend("20200416_160300_03079_6b4yt"));
+
+    // Stays ambiguous even if seen again on a single backend
+    table.learn("20200416_160258_03080_6b4yt", BACKEND1);
+    assertNull(table.findBackend("20200416_160300_03079_6b4yt"));
+  }
+}
@@ -3,6 +3,7 @@ package com.lyft.data.gateway.ha.router;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.junit.Assert.assertEquals;
 
+import com.google.common.base.Ticker;
 import com.lyft.data.gateway.ha.HaGatewayTestUtils;
 import com.lyft.data.gateway.ha.config.DataStoreConfiguration;
 import com.lyft.data.gateway.ha.config.ProxyBackendConfiguration;
@@ -14,9 +15,13 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
@@ -32,6 +37,7 @@ public class TestPrestoQueueLengthRoutingTable {
   String mockRoutingGroup = "adhoc";
 
   String mockUser = "user";
+  final AtomicLong nanos = new AtomicLong();
 
   Map<String, Map<String, Integer>> clusterQueueMap;
   Map<String, Map<String, Integer>> clusterRunningMap;
@@ -50,7 +56,14 @@ public class TestPrestoQueueLengthRoutingTable {
     historyManager = new HaQueryHistoryManager(connectionManager) {
     };
     cacheManager = new CacheManager(connectionManager);
-    routingTable = new PrestoQueueLengthRoutingTable(backendManager, historyManager, cacheManager);
+    Ticker ticker = new Ticker() {
+      @Override
+      public long read() {
+        return nanos.get();
+      }
+    };
+    routingTable = new PrestoQueueLengthRoutingTable(
+        backendManager, historyManager, cacheManager, ticker);
 
     for (String grp : mockRoutingGroups) {
       addMockBackends(grp, NUM_BACKENDS, 0);
@@ -391,6 +404,58 @@ public class TestPrestoQueueLengthRoutingTable {
     }
   }
 
+  @Test
+  public void testRoutedQueriesCountAsQueuedUntilUpdate() {
+    int numRequests = 1000;
+    resetBackends(mockRoutingGroup, 2, 10, 0);
+    Map<String, Integer> routingDistribution = routeQueries(mockRoutingGroup, numRequests);
+    assert routingDistribution.getOrDefault(mockRoutingGroup + 0, 0)
+        > routingDistribution.getOrDefault(mockRoutingGroup + 1, 0);
+
+    // A burst routed to the shortest queue moves the weights before the next update, once the
+    // prediction interval has passed
+    for (int i = 0; i < 29; i++) {
+      routingTable.recordRoutedQuery(mockRoutingGroup, mockRoutingGroup + 0, mockUser);
+    }
+    nanos.addAndGet(TimeUnit.SECONDS.toNanos(1));
+    routingTable.recordRoutedQuery(mockRoutingGroup, mockRoutingGroup + 0, mockUser);
+    assertEquals(routingTable.getRoutedSinceUpdate(mockRoutingGroup + 0), 30);
+    assertEquals(routingTable.getEligibleBackEnd(mockRoutingGroup, mockUser),
+        mockRoutingGroup + 1);
+    routingDistribution = routeQueries(mockRoutingGroup, numRequests);
+    assert routingDistribution.getOrDefault(mockRoutingGroup + 1, 0)
+        > routingDistribution.getOrDefault(mockRoutingGroup + 0, 0);
+
+    // Fresh stats include the routed queries
+    resetBackends(mockRoutingGroup, 2, 10, 0);
+    assertEquals(routingTable.getRoutedSinceUpdate(mockRoutingGroup + 0), 0);
+    routingDistribution = routeQueries(mockRoutingGroup, numRequests);
+    assert routingDistribution.getOrDefault(mockRoutingGroup + 0, 0)
+        > routingDistribution.getOrDefault(mockRoutingGroup + 1, 0);
+  }
+
+  @Test
+  public void testConcurrentRoutedQueriesAreCounted() throws Exception {
+    int numThreads = 4;
+    int numRequests = 1000;
+    resetBackends(mockRoutingGroup, 2, 10, 0);
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int t = 0; t < numThreads; t++) {
+      futures.add(executor.submit(() -> {
+        for (int i = 0; i < numRequests; i++) {
+          nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(10));
+          routingTable.recordRoutedQuery(mockRoutingGroup, mockRoutingGroup + 0, null);
+        }
+      }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+    assertEquals(routingTable.getRoutedSinceUpdate(mockRoutingGroup + 0), numThreads * numRequests);
+  }
+
   @Test
   public void testActiveClusterMonitorUpdateAndRouting() throws InterruptedException {
     int numRequests = 10;
@@ -0,0 +1,198 @@
+package com.lyft.data.gateway.ha.router;
+
+import static com.lyft.data.gateway.ha.router.ResourceGroupsManager.DatabaseResult;
+import static com.lyft.data.gateway.ha.router.ResourceGroupsManager.GlobalPropertiesDetail;
+import static com.lyft.data.gateway.ha.router.ResourceGroupsManager.ResourceGroupsChange;
+import static com.lyft.data.gateway.ha.router.ResourceGroupsManager.ResourceGroupsDetail;
+import static com.lyft.data.gateway.ha.router.ResourceGroupsManager.ResourceGroupsDiff;
+import static com.lyft.data.gateway.ha.router.ResourceGroupsManager.ResourceGroupsTree;
+import static com.lyft.data.gateway.ha.router.ResourceGroupsManager.SelectorsDetail;
+
+import com.lyft.data.gateway.ha.HaGatewayTestUtils;
+import com.lyft.data.gateway.ha.config.DataStoreConfiguration;
+import com.lyft.data.gateway.ha.persistence.JdbcConnectionManager;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+public class TestResourceGroupsBulkChanges {
+  private ResourceGroupsManager resourceGroupManager;
+  private ResourceGroupsManager otherInstance;
+  private String firstDb;
+  private String secondDb;
+
+  @BeforeClass(alwaysRun = true)
+  public void setUp() {
+    File baseDir = new File(System.getProperty("java.io.tmpdir"));
+    File tempH2DbDir = new File(baseDir, "h2db-import-" + System.currentTimeMillis());
+    tempH2DbDir.deleteOnExit();
+    String jdbcUrl = "jdbc:h2:" + tempH2DbDir.getAbsolutePath();
+    HaGatewayTestUtils.seedRequiredData(
+        new HaGatewayTestUtils.TestConfig("", tempH2DbDir.getAbsolutePath()));
+    DataStoreConfiguration db = new DataStoreConfiguration(jdbcUrl, "sa", "sa", "org.h2.Driver");
+    JdbcConnectionManager connectionManager = new JdbcConnectionManager(db);
+    resourceGroupManager = new HaResourceGroupsManager(connectionManager);
+    otherInstance = new HaResourceGroupsManager(connectionManager, 0);
+    firstDb = seedDatabase(baseDir, "h2db-first-");
+    secondDb = seedDatabase(baseDir, "h2db-second-");
+  }
+
+  private static String seedDatabase(File baseDir, String prefix) {
+    String name = prefix + System.currentTimeMillis();
+    File dir = new File(baseDir, name);
+    dir.deleteOnExit();
+    HaGatewayTestUtils.seedRequiredData(
+        new HaGatewayTestUtils.TestConfig("", dir.getAbsolutePath()));
+    return name;
+  }
+
+  @Test
+  public void testCacheInvalidatedOnWrite() {
+    Assert.assertEquals(resourceGroupManager.readAllResourceGroups(null).size(), 0);
+    resourceGroupManager.createResourceGroup(resourceGroup(10L, "cached", null), null);
+    Assert.assertEquals(resourceGroupManager.readAllResourceGroups(null).size(), 1);
+    Assert.assertEquals(resourceGroupManager.readResourceGroup(10L, null).get(0).getName(),
+        "cached");
+
+    // Writes of other instances are only seen once the cache expires
+    otherInstance.deleteResourceGroup(10L, null);
+    Assert.assertEquals(resourceGroupManager.readAllResourceGroups(null).size(), 1);
+    Assert.assertEquals(otherInstance.readAllResourceGroups(null).size(), 0);
+    resourceGroupManager.deleteResourceGroup(10L, null);
+    Assert.assertEquals(resourceGroupManager.readAllResourceGroups(null).size(), 0);
+  }
+
+  @Test(dependsOnMethods = "testCacheInvalidatedOnWrite")
+  public void testImportAndExport() {
+    ResourceGroupsTree tree = new ResourceGroupsTree();
+    // Children before their parents are inserted after them
+    tree.setResourceGroups(Arrays.asList(
+        resourceGroup(3L, "etl", 2L),
+        resourceGroup(2L, "global", 1L),
+        resourceGroup(1L, "root", null)));
+    SelectorsDetail selector = new SelectorsDetail();
+    selector.setResourceGroupId(3L);
+    selector.setPriority(1L);
+    selector.setUserRegex("etl-.*");
+    tree.setSelectors(Collections.singletonList(selector));
+    tree.setGlobalProperties(
+        Collections.singletonList(new GlobalPropertiesDetail("cpu_quota_period")));
+    resourceGroupManager.importResourceGroups(tree, null);
+
+    ResourceGroupsTree exported = resourceGroupManager.exportResourceGroups(null);
+    Assert.assertEquals(exported.getResourceGroups().size(), 3);
+    Assert.assertEquals(exported.getSelectors(), tree.getSelectors());
+    Assert.assertEquals(exported.getGlobalProperties().get(0).getName(), "cpu_quota_period");
+    Assert.assertEquals(resourceGroupManager.readSelector(3L, null).size(), 1);
+
+    // An import replaces the previous tree
+    tree.setResourceGroups(Collections.singletonList(resourceGroup(4L, "adhoc", null)));
+    tree.setSelectors(Collections.emptyList());
+    resourceGroupManager.importResourceGroups(tree, null);
+    List<ResourceGroupsDetail> resourceGroups = resourceGroupManager.readAllResourceGroups(null);
+    Assert.assertEquals(resourceGroups.size(), 1);
+    Assert.assertEquals(resourceGroups.get(0).getName(), "adhoc");
+    Assert.assertEquals(resourceGroupManager.readAllSelectors(null).size(), 0);
+  }
+
+  @Test(dependsOnMethods = "testImportAndExport")
+  public void testFailedImportChangesNothing() {
+    ResourceGroupsTree tree = new ResourceGroupsTree();
+    tree.setResourceGroups(Arrays.asList(
+        resourceGroup(5L, "duplicate", null),
+        resourceGroup(6L, "duplicate", null)));
+    Assert.assertThrows(() -> resourceGroupManager.importResourceGroups(tree, null));
+    Assert.assertEquals(resourceGroupManager.readAllResourceGroups(null).get(0).getName(),
+        "adhoc");
+
+    tree.setResourceGroups(Collections.singletonList(resourceGroup(7L, "orphan", 8L)));
+    Assert.assertThrows(IllegalArgumentException.class,
+        () -> resourceGroupManager.importResourceGroups(tree, null));
+    Assert.assertEquals(resourceGroupManager.exportResourceGroups(null).getResourceGroups().size(),
+        1);
+  }
+
+  @Test
+  public void testApplyChangeToDatabases() {
+    ResourceGroupsChange change = new ResourceGroupsChange();
+    change.setResourceGroups(Arrays.asList(
+        resourceGroup(21L, "etl", 20L),
+        resourceGroup(20L, "root", null)));
+    SelectorsDetail selector = new SelectorsDetail();
+    selector.setResourceGroupId(21L);
+    selector.setPriority(1L);
+    change.setSelectors(Collections.singletonList(selector));
+    List<DatabaseResult> results =
+        resourceGroupManager.applyResourceGroupsChange(change, Arrays.asList(firstDb, secondDb),
+            true);
+    Assert.assertEquals(results, Arrays.asList(
+        new DatabaseResult(firstDb, true, null),
+        new DatabaseResult(secondDb, true, null)));
+    Assert.assertEquals(resourceGroupManager.readAllResourceGroups(secondDb).size(), 2);
+    Assert.assertEquals(resourceGroupManager.readSelector(21L, firstDb).size(), 1);
+
+    ResourceGroupsDiff diff = resourceGroupManager.diffResourceGroups(firstDb, secondDb);
+    Assert.assertTrue(diff.getResourceGroups().getChanged().isEmpty());
+    Assert.assertTrue(diff.getSelectors().getOnlyInFirst().isEmpty());
+
+    // Only applied to the first database, a child of an unknown parent fails in the second
+    ResourceGroupsDetail updated = resourceGroup(21L, "etl", 20L);
+    updated.setMaxQueued(5);
+    change = new ResourceGroupsChange();
+    change.setResourceGroups(Collections.singletonList(updated));
+    resourceGroupManager.applyResourceGroupsChange(
+        change, Collections.singletonList(firstDb), false);
+    diff = resourceGroupManager.diffResourceGroups(firstDb, secondDb);
+    Assert.assertEquals(diff.getResourceGroups().getChanged().size(), 1);
+    Assert.assertEquals(diff.getResourceGroups().getChanged().get(0).get(0).getMaxQueued(), 5);
+    Assert.assertEquals(diff.getResourceGroups().getChanged().get(0).get(1).getMaxQueued(), 100);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testTooManyDatabases() {
+    resourceGroupManager.applyResourceGroupsChange(new ResourceGroupsChange(),
+        Collections.nCopies(HaResourceGroupsManager.MAX_FAN_OUT_DATABASES + 1, firstDb), false);
+  }
+
+  @Test(dependsOnMethods = "testApplyChangeToDatabases")
+  public void testAllOrNothing() {
+    // The parent only exists in the first database
+    ResourceGroupsChange parent = new ResourceGroupsChange();
+    parent.setResourceGroups(Collections.singletonList(resourceGroup(30L, "adhoc", null)));
+    resourceGroupManager.applyResourceGroupsChange(
+        parent, Collections.singletonList(firstDb), false);
+
+    ResourceGroupsChange change = new ResourceGroupsChange();
+    change.setResourceGroups(Collections.singletonList(resourceGroup(31L, "bi", 30L)));
+    List<DatabaseResult> results = resourceGroupManager.applyResourceGroupsChange(
+        change, Arrays.asList(firstDb, secondDb), true);
+    Assert.assertFalse(results.get(0).isApplied());
+    Assert.assertTrue(results.get(0).getError().contains(secondDb));
+    Assert.assertFalse(results.get(1).isApplied());
+    Assert.assertTrue(resourceGroupManager.readResourceGroup(31L, firstDb).isEmpty());
+
+    results = resourceGroupManager.applyResourceGroupsChange(
+        change, Arrays.asList(firstDb, secondDb), false);
+    Assert.assertTrue(results.get(0).isApplied());
+    Assert.assertFalse(results.get(1).isApplied());
+    Assert.assertEquals(resourceGroupManager.readResourceGroup(31L, firstDb).size(), 1);
+    ResourceGroupsDiff diff = resourceGroupManager.diffResourceGroups(firstDb, secondDb);
+    Assert.assertEquals(diff.getResourceGroups().getOnlyInFirst().size(), 2);
+    Assert.assertTrue(diff.getResourceGroups().getOnlyInSecond().isEmpty());
+  }
+
+  private static ResourceGroupsDetail resourceGroup(long id, String name, Long parent) {
+    ResourceGroupsDetail resourceGroup = new ResourceGroupsDetail();
+    resourceGroup.setResourceGroupId(id);
+    resourceGroup.setName(name);
+    resourceGroup.setParent(parent);
+    resourceGroup.setHardConcurrencyLimit(10);
+    resourceGroup.setMaxQueued(100);
+    resourceGroup.setSoftMemoryLimit("50%");
+    return resourceGroup;
+  }
+}
@@ -0,0 +1,263 @@
+package com.lyft.data.gateway.ha.router;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertTrue;
+
+import com.lyft.data.gateway.ha.clustermonitor.ClusterStats;
+import com.lyft.data.gateway.ha.config.ProxyBackendConfiguration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.servlet.http.HttpServletRequest;
+import org.mockito.Mockito;
+import org.testng.annotations.Test;
+
+public class TestRoutingStrategy {
+
+  @Test
+  public void testOutstandingQueryTracker() {
+    OutstandingQueryTracker tracker = new OutstandingQueryTracker(300);
+    tracker.querySubmitted("q1", "http://presto1");
+    tracker.querySubmitted("q2", "http://presto1");
+    tracker.querySubmitted("q3", "http://presto2");
+    assertEquals(tracker.getOutstandingQueries("http://presto1"), 2);
+    assertEquals(tracker.getOutstandingQueries("http://presto2"), 1);
+    assertEquals(tracker.getOutstandingQueries("http://presto3"), 0);
+
+    tracker.queryCompleted("q1");
+    tracker.queryCompleted("q1");
+    tracker.queryCompleted("unknown");
+    assertEquals(tracker.getOutstandingQueries("http://presto1"), 1);
+
+    // A query seen again is only counted once
+    tracker.querySubmitted("q3", "http://presto2");
+    assertEquals(tracker.getOutstandingQueries("http://presto2"), 1);
+  }
+
+  @Test
+  public void testIdleQueriesExpire() throws Exception {
+    OutstandingQueryTracker tracker = new OutstandingQueryTracker(1);
+    tracker.querySubmitted("q1", "http://presto1");
+    Thread.sleep(1100);
+    tracker.expireIdleQueries();
+    assertEquals(tracker.getOutstandingQueries("http://presto1"), 0);
+  }
+
+  @Test
+  public void testLeastOutstandingQueries() {
+    OutstandingQueryTracker tracker = new OutstandingQueryTracker(300);
+    RoutingStrategy strategy = new LeastOutstandingQueriesStrategy(tracker);
+    List<ProxyBackendConfiguration> backends = backends(3);
+    tracker.querySubmitted("q1", "http://presto0");
+    tracker.querySubmitted("q2", "http://presto1");
+    for (int i = 0; i < 10; i++) {
+      assertEquals(strategy.pickBackend("adhoc", "user", null, backends), "http://presto2");
+    }
+
+    // Ties are broken at random
+    tracker.querySubmitted("q3", "http://presto2");
+    Set<String> picked = new HashSet<>();
+    for (int i = 0; i < 100; i++) {
+      picked.add(strategy.pickBackend("adhoc", "user", null, backends));
+    }
+    assertEquals(picked.size(), 3);
+  }
+
+  @Test
+  public void testPowerOfTwoChoices() {
+    PowerOfTwoChoicesStrategy strategy = new PowerOfTwoChoicesStrategy();
+    List<ProxyBackendConfiguration> backends = backends(2);
+    strategy.observe(Arrays.asList(
+        stats("http://presto0", 10, 0),
+        stats("http://presto1", 2, 50)));
+    for (int i = 0; i < 10; i++) {
+      assertEquals(strategy.pickBackend("adhoc", "user", null, backends), "http://presto1");
+    }
+
+    // Equal queues fall back to the running queries
+    strategy.observe(Arrays.asList(
+        stats("http://presto0", 2, 10),
+        stats("http://presto1", 2, 50)));
+    for (int i = 0; i < 10; i++) {
+      assertEquals(strategy.pickBackend("adhoc", "user", null, backends), "http://presto0");
+    }
+
+    // The most loaded backend never wins a comparison
+    backends = backends(5);
+    List<ClusterStats> stats = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      stats.add(stats("http://presto" + i, i, 0));
+    }
+    strategy.observe(stats);
+    for (int i = 0; i < 100; i++) {
+      assertNotEquals(strategy.pickBackend("adhoc", "user", null, backends), "http://presto4");
+    }
+  }
+
+  @Test
+  public void testConsistentHash() {
+    OutstandingQueryTracker tracker = new OutstandingQueryTracker(300);
+    RoutingStrategy strategy = new ConsistentHashStrategy(tracker, 100, 1.25);
+    List<ProxyBackendConfiguration> backends = backends(5);
+    Map<String, String> keyBackends = new HashMap<>();
+    for (int i = 0; i < 1000; i++) {
+      String key = "user" + i;
+      String backend = strategy.pickBackend("adhoc", "user", key, backends);
+      keyBackends.put(key, backend);
+      assertEquals(strategy.pickBackend("adhoc", "user", key, backends), backend);
+    }
+    // Virtual nodes spread the keys over all the backends
+    assertEquals(new HashSet<>(keyBackends.values()).size(), 5);
+
+    // Only the keys of a backend that leaves are moved
+    List<ProxyBackendConfiguration> remaining = backends.subList(0, 4);
+    for (Map.Entry<String, String> entry : keyBackends.entrySet()) {
+      String backend = strategy.pickBackend("adhoc", "user", entry.getKey(), remaining);
+      if (!entry.getValue().equals("http://presto4")) {
+        assertEquals(backend, entry.getValue());
+      } else {
+        assertNotEquals(backend, "http://presto4");
+      }
+    }
+  }
+
+  @Test
+  public void testConsistentHashBoundedLoad() {
+    OutstandingQueryTracker tracker = new OutstandingQueryTracker(300);
+    RoutingStrategy strategy = new ConsistentHashStrategy(tracker, 100, 1.25);
+    List<ProxyBackendConfiguration> backends = backends(4);
+    String backend = strategy.pickBackend("adhoc", "user", "dashboard", backends);
+
+    // A hot key spills over to the next backends on the ring once its backend is loaded
+    Map<String, Integer> routed = new HashMap<>();
+    for (int i = 0; i < 100; i++) {
+      String picked = strategy.pickBackend("adhoc", "user", "dashboard", backends);
+      tracker.querySubmitted("q" + i, picked);
+      routed.merge(picked, 1, Integer::sum);
+    }
+    for (int load : routed.values()) {
+      // Never above the load factor times the average, rounded up
+      assertTrue(load <= 32);
+    }
+    assertTrue(routed.get(backend) >= routed.values().stream().mapToInt(i -> i).max().getAsInt());
+  }
+
+  @Test
+  public void testRoutingKeyExtractors() {
+    HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+    Mockito.when(request.getHeader("X-Presto-User")).thenReturn("alice");
+    Mockito.when(request.getHeader("X-Trino-Source")).thenReturn("superset");
+    Mockito.when(request.getHeader("X-Trino-Client-Tags")).thenReturn("etl, daily,");
+    assertEquals(RoutingKeyExtractor.byUser().findRoutingKey(request), "alice");
+    assertEquals(RoutingKeyExtractor.bySource().findRoutingKey(request), "superset");
+    assertEquals(RoutingKeyExtractor.byClientTags().findRoutingKey(request), "daily,etl");
+  }
+
+  @Test
+  public void testBackendHealthHysteresis() {
+    BackendHealthRegistry registry = new BackendHealthRegistry(2, 2);
+    registry.observe(Arrays.asList(health("presto0", false), health("presto1", true)));
+    assertTrue(registry.isHealthy("presto0"));
+    registry.observe(Arrays.asList(health("presto0", false), health("presto1", true)));
+    assertFalse(registry.isHealthy("presto0"));
+    assertTrue(registry.isHealthy("presto1"));
+    assertTrue(registry.isHealthy("unknown"));
+
+    // A single success does not readmit the backend
+    registry.observe(Arrays.asList(health("presto0", true), health("presto1", true)));
+    registry.observe(Arrays.asList(health("presto0", false), health("presto1", true)));
+    registry.observe(Arrays.asList(health("presto0", true), health("presto1", true)));
+    assertFalse(registry.isHealthy("presto0"));
+    registry.observe(Arrays.asList(health("presto0", true), health("presto1", true)));
+    assertTrue(registry.isHealthy("presto0"));
+
+    // A backend no longer monitored is forgotten
+    registry.observe(Arrays.asList(health("presto0", false), health("presto1", false)));
+    registry.observe(Arrays.asList(health("presto0", false), health("presto1", false)));
+    registry.observe(Collections.singletonList(health("presto0", false)));
+    assertTrue(registry.isHealthy("presto1"));
+  }
+
+  @Test
+  public void testRoutingSkipsUnhealthyBackends() {
+    GatewayBackendManager backendManager = Mockito.mock(GatewayBackendManager.class);
+    Mockito.when(backendManager.getActiveBackends("etl")).thenReturn(backends(3));
+    RoutingManager routingManager = new HaRoutingManager(backendManager,
+        Mockito.mock(QueryHistoryManager.class), Mockito.mock(CacheManager.class));
+    BackendHealthRegistry registry = new BackendHealthRegistry(1, 1);
+    routingManager.setHealthRegistry(registry);
+    registry.observe(Arrays.asList(
+        health("presto0", false), health("presto1", true), health("presto2", false)));
+    for (int i = 0; i < 20; i++) {
+      assertEquals(routingManager.provideBackendForRoutingGroup("etl", "user"), "http://presto1");
+    }
+
+    // Every backend is kept when none is healthy
+    registry.observe(Arrays.asList(
+        health("presto0", false), health("presto1", false), health("presto2", false)));
+    Set<String> picked = new HashSet<>();
+    for (int i = 0; i < 100; i++) {
+      picked.add(routingManager.provideBackendForRoutingGroup("etl", "user"));
+    }
+    assertEquals(picked.size(), 3);
+  }
+
+  @Test
+  public void testActiveBackendsAreReadFromMemory() {
+    GatewayBackendManager backendManager = Mockito.mock(GatewayBackendManager.class);
+    List<ProxyBackendConfiguration> backends = backends(2);
+    backends.get(1).setActive(false);
+    Mockito.when(backendManager.getAllBackends()).thenReturn(backends);
+    RoutingManager routingManager = new HaRoutingManager(backendManager,
+        Mockito.mock(QueryHistoryManager.class), Mockito.mock(CacheManager.class));
+    for (int i = 0; i < 10; i++) {
+      assertTrue(routingManager.isBackendActive("http://presto0"));
+      assertFalse(routingManager.isBackendActive("http://presto1"));
+      assertFalse(routingManager.isBackendActive("http://presto2"));
+    }
+    Mockito.verify(backendManager, Mockito.times(1)).getAllBackends();
+
+    // A change is seen by the next lookup
+    backends = backends(2);
+    backends.get(0).setActive(false);
+    Mockito.when(backendManager.getAllBackends()).thenReturn(backends);
+    routingManager.invalidateBackends();
+    assertFalse(routingManager.isBackendActive("http://presto0"));
+    assertTrue(routingManager.isBackendActive("http://presto1"));
+    Mockito.verify(backendManager, Mockito.times(2)).getAllBackends();
+  }
+
+  private static List<ProxyBackendConfiguration> backends(int count) {
+    List<ProxyBackendConfiguration> backends = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      ProxyBackendConfiguration backend = new ProxyBackendConfiguration();
+      backend.setName("presto" + i);
+      backend.setProxyTo("http://presto" + i);
+      backends.add(backend);
+    }
+    return backends;
+  }
+
+  private static ClusterStats health(String clusterId, boolean healthy) {
+    ClusterStats stats = new ClusterStats();
+    stats.setClusterId(clusterId);
+    stats.setHealthy(healthy);
+    return stats;
+  }
+
+  private static ClusterStats stats(String proxyTo, int queued, int running) {
+    ClusterStats stats = new ClusterStats();
+    stats.setProxyTo(proxyTo);
+    stats.setHealthy(true);
+    stats.setQueuedQueryCount(queued);
+    stats.setRunningQueryCount(running);
+    return stats;
+  }
+}
@@ -0,0 +1,123 @@
+package com.lyft.data.proxyserver;
+
+import java.io.IOException;
+import java.nio.channels.WritePendingException;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.jetty.util.Callback;
+
+/**
+ * Writes proxied content to the client with servlet async output. A chunk is handed over with
+ * {@link #write}, and its callback is only completed once the client has accepted the bytes, so a
+ * slow client applies back pressure on the backend response instead of blocking a thread.
+ */
+@Slf4j
+public class AsyncResponseWriter implements WriteListener {
+  private static final String WRITER_ATTRIBUTE = AsyncResponseWriter.class.getName();
+
+  private enum State {
+    IDLE, READY, PENDING
+  }
+
+  private final HttpServletResponse response;
+  private State state = State.IDLE;
+  private byte[] buffer;
+  private int offset;
+  private int length;
+  private Callback callback;
+
+  private AsyncResponseWriter(HttpServletResponse response) {
+    this.response = response;
+  }
+
+  /**
+   * Writes a chunk of the response for the given request, completing the callback asynchronously.
+   *
+   * @param request
+   * @param response
+   * @param buffer
+   * @param offset
+   * @param length
+   * @param callback
+   */
+  public static void write(
+      HttpServletRequest request,
+      HttpServletResponse response,
+      byte[] buffer,
+      int offset,
+      int length,
+      Callback callback) throws IOException {
+    AsyncResponseWriter writer = (AsyncResponseWriter) request.getAttribute(WRITER_ATTRIBUTE);
+    if (writer == null) {
+      writer = new AsyncResponseWriter(response);
+      request.setAttribute(WRITER_ATTRIBUTE, writer);
+      // Data has to be set before the listener, as setWriteListener() may call
+      // onWritePossible() right away from another thread.
+      writer.data(buffer, offset, length, callback);
+      response.getOutputStream().setWriteListener(writer);
+    } else {
+      writer.data(buffer, offset, length, callback);
+      writer.onWritePossible();
+    }
+  }
+
+  private synchronized void data(byte[] buffer, int offset, int length, Callback callback) {
+    if (state != State.IDLE) {
+      throw new WritePendingException();
+    }
+    this.state = State.READY;
+    this.buffer = buffer;
+    this.offset = offset;
+    this.length = length;
+    this.callback = callback;
+  }
+
+  @Override
+  public void onWritePossible() throws IOException {
+    Callback completed = null;
+    synchronized (this) {
+      ServletOutputStream output = response.getOutputStream();
+      if (state == State.READY) {
+        output.write(buffer, offset, length);
+        state = State.PENDING;
+        if (output.isReady()) {
+          completed = reset();
+        }
+      } else if (state == State.PENDING) {
+        // The previous write could not complete right away, it is done now.
+        completed = reset();
+      }
+    }
+    // Completing the callback may deliver the next chunk, the state has to be reset by then.
+    if (completed != null) {
+      completed.succeeded();
+    }
+  }
+
+  @Override
+  public void onError(Throwable failure) {
+    Callback failed;
+    synchronized (this) {
+      failed = reset();
+    }
+    log.debug("Error writing proxied response", failure);
+    if (failed != null) {
+      failed.failed(failure);
+    }
+  }
+
+  private Callback reset() {
+    final Callback current = callback;
+    buffer = null;
+    offset = 0;
+    length = 0;
+    callback = null;
+    state = State.IDLE;
+    return current;
+  }
+}
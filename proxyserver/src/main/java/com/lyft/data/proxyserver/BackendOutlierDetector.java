@@ -0,0 +1,156 @@
+package com.lyft.data.proxyserver;
+
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.function.LongSupplier;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Passive outlier detection for the backends requests are proxied to. Connect errors, timeouts
+ * and 5xx responses are counted per backend, and a backend with too many consecutive failures is
+ * ejected from routing. Each ejection lasts twice as long as the previous one, up to a maximum.
+ * Once an ejection expires the backend is half open: it is offered to routing for a probe at most
+ * once per probe interval, and a successful response restores it while a failure ejects it again.
+ */
+@Slf4j
+public class BackendOutlierDetector {
+  private final int consecutiveFailures;
+  private final long baseEjectionMillis;
+  private final long maxEjectionMillis;
+  private final long probeIntervalMillis;
+  private final LongSupplier clock;
+  private final Map<String, BackendState> backends = new ConcurrentHashMap<>();
+
+  public BackendOutlierDetector(
+      int consecutiveFailures,
+      long baseEjectionMillis,
+      long maxEjectionMillis,
+      long probeIntervalMillis) {
+    this(consecutiveFailures, baseEjectionMillis, maxEjectionMillis, probeIntervalMillis,
+        System::currentTimeMillis);
+  }
+
+  public BackendOutlierDetector(
+      int consecutiveFailures,
+      long baseEjectionMillis,
+      long maxEjectionMillis,
+      long probeIntervalMillis,
+      LongSupplier clock) {
+    this.consecutiveFailures = consecutiveFailures;
+    this.baseEjectionMillis = baseEjectionMillis;
+    this.maxEjectionMillis = maxEjectionMillis;
+    this.probeIntervalMillis = probeIntervalMillis;
+    this.clock = clock;
+  }
+
+  /**
+   * Records the outcome of a proxied request.
+   *
+   * @param backendUrl url of the request sent to the backend
+   * @param status status of the backend response, or 0 if there was no response
+   * @param failure the failure of the exchange, or null
+   */
+  public void recordOutcome(String backendUrl, int status, Throwable failure) {
+    String backend = backendKey(backendUrl);
+    if (backend == null) {
+      return;
+    }
+    if (status >= 500 || isBackendFailure(failure)) {
+      backends.computeIfAbsent(backend, k -> new BackendState()).recordFailure(backend);
+    } else if (failure == null) {
+      BackendState state = backends.get(backend);
+      if (state != null) {
+        state.recordSuccess(backend);
+      }
+    }
+    // Other failures come from the client side, they say nothing about the backend
+  }
+
+  /**
+   * Checks whether new queries can be routed to a backend. A half open backend is only available
+   * once per probe interval, so the caller should route to it when this returns true.
+   *
+   * @param backendUrl
+   * @return
+   */
+  public boolean isAvailable(String backendUrl) {
+    String backend = backendKey(backendUrl);
+    BackendState state = backend == null ? null : backends.get(backend);
+    return state == null || state.isAvailable();
+  }
+
+  static String backendKey(String url) {
+    try {
+      URI uri = URI.create(url);
+      if (uri.getScheme() == null || uri.getHost() == null) {
+        return null;
+      }
+      return uri.getScheme().toLowerCase() + "://" + uri.getHost().toLowerCase()
+          + (uri.getPort() == -1 ? "" : ":" + uri.getPort());
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  static boolean isBackendFailure(Throwable failure) {
+    for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+      if (cause instanceof ConnectException
+          || cause instanceof TimeoutException
+          || cause instanceof SocketTimeoutException
+          || cause instanceof UnresolvedAddressException) {
+        return true;
+      }
+      if (cause.getCause() == cause) {
+        break;
+      }
+    }
+    return false;
+  }
+
+  private class BackendState {
+    private int failures;
+    private int ejections;
+    private long ejectedUntil;
+    private long nextProbe;
+
+    synchronized void recordFailure(String backend) {
+      failures++;
+      long now = clock.getAsLong();
+      boolean halfOpen = ejections > 0 && now >= ejectedUntil;
+      if (halfOpen || (ejections == 0 && failures >= consecutiveFailures)) {
+        ejections++;
+        long window = baseEjectionMillis << Math.min(ejections - 1, 20);
+        ejectedUntil = now + Math.min(window, maxEjectionMillis);
+        nextProbe = ejectedUntil;
+        log.warn("Ejecting backend [{}] from routing for {} ms after {} consecutive failures",
+            backend, ejectedUntil - now, failures);
+      }
+    }
+
+    synchronized void recordSuccess(String backend) {
+      failures = 0;
+      if (ejections > 0 && clock.getAsLong() >= ejectedUntil) {
+        log.info("Backend [{}] is back in routing", backend);
+        ejections = 0;
+      }
+    }
+
+    synchronized boolean isAvailable() {
+      if (ejections == 0) {
+        return true;
+      }
+      long now = clock.getAsLong();
+      if (now < nextProbe) {
+        return false;
+      }
+      nextProbe = now + probeIntervalMillis;
+      return true;
+    }
+  }
+}
@@ -7,6 +7,7 @@ import java.io.InputStreamReader;
 import java.nio.charset.Charset;
 import java.util.Collection;
 import java.util.Enumeration;
+import java.util.concurrent.CompletableFuture;
 import java.util.zip.GZIPInputStream;
 
 import javax.servlet.http.HttpServletRequest;
@@ -16,11 +17,35 @@ import lombok.extern.slf4j.Slf4j;
 import org.apache.http.HttpHeaders;
 import org.eclipse.jetty.client.api.Request;
 import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpStatus;
 import org.eclipse.jetty.util.Callback;
 
-/* Order of control => rewriteTarget, preConnectionHook, postConnectionHook. */
+/* Order of control => deferRequest, rewriteTarget, preConnectionHook, postConnectionHook. */
 @Slf4j
 public class ProxyHandler {
+  // Stages of a proxied request timed by the proxy server, see recordStage
+  public static final String STAGE_BODY_CAPTURE = "bodyCapture";
+  public static final String STAGE_UPSTREAM_CONNECT = "upstreamConnect";
+  public static final String STAGE_TIME_TO_FIRST_BYTE = "timeToFirstByte";
+  public static final String STAGE_RESPONSE_STREAMING = "responseStreaming";
+
+  private boolean asyncResponseWriteEnabled;
+
+  public void setAsyncResponseWriteEnabled(boolean asyncResponseWriteEnabled) {
+    this.asyncResponseWriteEnabled = asyncResponseWriteEnabled;
+  }
+
+  /**
+   * Called before a request is proxied, so that it can wait for something without holding a
+   * server thread. Once the returned future completes, the request is handled again from the
+   * start by a server thread, so this is called again for it and must return null then.
+   *
+   * @param request
+   * @return a future to wait for before proxying the request, or null to proxy it now
+   */
+  public CompletableFuture<?> deferRequest(HttpServletRequest request) {
+    return null;
+  }
 
   protected String rewriteTarget(HttpServletRequest request) {
     // Dont override this unless absolutely needed.
@@ -33,6 +58,18 @@ public class ProxyHandler {
   }
 
 
+  /**
+   * Called when the connection to the backend failed before the request could be sent, to pick
+   * another target for it.
+   *
+   * @param request
+   * @param requestId
+   * @return the target to retry the request on, or null to not retry it
+   */
+  protected String rewriteTargetForRetry(HttpServletRequest request, int requestId) {
+    return null;
+  }
+
   /**
    * Request interceptor.
    *
@@ -60,12 +97,7 @@ public class ProxyHandler {
       int offset,
       int length,
       Callback callback) {
-    try {
-      response.getOutputStream().write(buffer, offset, length);
-      callback.succeeded();
-    } catch (Throwable var9) {
-      callback.failed(var9);
-    }
+    writeResponseContent(request, response, buffer, offset, length, callback);
   }
 
   protected void postConnectionHook(
@@ -76,9 +108,93 @@ public class ProxyHandler {
           int length,
           Callback callback,
           int requestId) {
+    writeResponseContent(request, response, buffer, offset, length, callback);
+  }
+
+  /**
+   * Called when rewriteTarget did not return a target, before the error response is sent.
+   *
+   * @param request
+   * @param response
+   * @return the status of the error response
+   */
+  public int onRewriteFailed(HttpServletRequest request, HttpServletResponse response) {
+    return HttpStatus.NOT_FOUND_404;
+  }
+
+  /**
+   * Called once the proxied request is over, whether the backend response was fully sent to the
+   * client or not.
+   *
+   * @param request
+   * @param response
+   * @param failure the failure, or null if the response was sent successfully
+   */
+  public void onProxyResponseComplete(
+      HttpServletRequest request, HttpServletResponse response, Throwable failure) {
+    // you may override it.
+  }
+
+  /**
+   * Called once the backend response headers are received, before they are copied to the client
+   * response.
+   *
+   * @param request
+   * @param response
+   */
+  public void onServerResponseHeaders(HttpServletRequest request, HttpServletResponse response) {
+    // you may override it.
+  }
+
+  /**
+   * Records how long a stage of a proxied request took.
+   *
+   * @param request
+   * @param stage
+   * @param nanos
+   */
+  public void recordStage(HttpServletRequest request, String stage, long nanos) {
+    // you may override it.
+  }
+
+  /**
+   * Filters a backend response header before it is copied to the client response.
+   *
+   * @param request
+   * @param headerName
+   * @param headerValue
+   * @return the value to send, or null to drop the header
+   */
+  public String filterServerResponseHeader(
+      HttpServletRequest request, String headerName, String headerValue) {
+    return headerValue;
+  }
+
+  /**
+   * Writes a chunk of the response to the client and completes the callback once it is written.
+   * When async response writes are enabled the write does not block the calling thread.
+   *
+   * @param request
+   * @param response
+   * @param buffer
+   * @param offset
+   * @param length
+   * @param callback
+   */
+  protected void writeResponseContent(
+      HttpServletRequest request,
+      HttpServletResponse response,
+      byte[] buffer,
+      int offset,
+      int length,
+      Callback callback) {
     try {
-      response.getOutputStream().write(buffer, offset, length);
-      callback.succeeded();
+      if (asyncResponseWriteEnabled) {
+        AsyncResponseWriter.write(request, response, buffer, offset, length, callback);
+      } else {
+        response.getOutputStream().write(buffer, offset, length);
+        callback.succeeded();
+      }
     } catch (Throwable var9) {
       callback.failed(var9);
     }
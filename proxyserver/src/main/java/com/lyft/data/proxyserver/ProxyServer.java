@@ -11,8 +11,12 @@ import javax.servlet.Filter;
 import lombok.extern.slf4j.Slf4j;
 
 import org.apache.http.util.TextUtils;
+import org.eclipse.jetty.alpn.server.ALPNServerConnectionFactory;
 import org.eclipse.jetty.http.HttpScheme;
 import org.eclipse.jetty.http.HttpVersion;
+import org.eclipse.jetty.http2.HTTP2Cipher;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.http2.server.HTTP2ServerConnectionFactory;
 import org.eclipse.jetty.proxy.ConnectHandler;
 import org.eclipse.jetty.server.HttpConfiguration;
 import org.eclipse.jetty.server.HttpConnectionFactory;
@@ -74,11 +78,34 @@ public class ProxyServer implements Closeable {
       src.setStsMaxAge(TimeUnit.SECONDS.toSeconds(2000));
       src.setStsIncludeSubDomains(true);
       httpsConfig.addCustomizer(src);
+      if (config.isHttp2Enabled()) {
+        // Negotiate h2 through ALPN, clients that do not support it keep using HTTP/1.1
+        ALPNServerConnectionFactory alpn = new ALPNServerConnectionFactory();
+        alpn.setDefaultProtocol(HttpVersion.HTTP_1_1.asString());
+        sslContextFactory.setCipherComparator(HTTP2Cipher.COMPARATOR);
+        sslContextFactory.setUseCipherSuitesOrder(true);
+        connector =
+            new ServerConnector(
+                server,
+                new SslConnectionFactory(sslContextFactory, alpn.getProtocol()),
+                alpn,
+                new HTTP2ServerConnectionFactory(httpsConfig),
+                new HttpConnectionFactory(httpsConfig));
+      } else {
+        connector =
+            new ServerConnector(
+                server,
+                new SslConnectionFactory(sslContextFactory, HttpVersion.HTTP_1_1.asString()),
+                new HttpConnectionFactory(httpsConfig));
+      }
+    } else if (config.isHttp2Enabled()) {
+      // h2c, either through prior knowledge or an HTTP/1.1 upgrade
+      HttpConfiguration httpConfig = new HttpConfiguration();
       connector =
           new ServerConnector(
               server,
-              new SslConnectionFactory(sslContextFactory, HttpVersion.HTTP_1_1.asString()),
-              new HttpConnectionFactory(httpsConfig));
+              new HttpConnectionFactory(httpConfig),
+              new HTTP2CServerConnectionFactory(httpConfig));
     } else {
       connector = new ServerConnector(server);
     }
@@ -93,6 +120,7 @@ public class ProxyServer implements Closeable {
     this.server.setHandler(proxyConnectHandler);
 
     if (proxyHandler != null) {
+      proxyHandler.setAsyncResponseWriteEnabled(config.isAsyncResponseWriteEnabled());
       proxy.setProxyHandler(proxyHandler);
     }
 
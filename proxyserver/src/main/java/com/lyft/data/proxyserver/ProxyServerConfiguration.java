@@ -14,6 +14,10 @@ public class ProxyServerConfiguration {
   private String keystorePath;
   private String keystorePass;
   private boolean forwardKeystore;
+  private boolean http2Enabled;
+  private boolean backendHttp2Enabled;
+  private boolean asyncResponseWriteEnabled;
+  private int maxConnectRetries;
 
   protected String getPrefix() {
     return prefix;
@@ -43,6 +47,22 @@ public class ProxyServerConfiguration {
     return forwardKeystore;
   }
 
+  protected boolean isHttp2Enabled() {
+    return http2Enabled;
+  }
+
+  protected boolean isBackendHttp2Enabled() {
+    return backendHttp2Enabled;
+  }
+
+  protected boolean isAsyncResponseWriteEnabled() {
+    return asyncResponseWriteEnabled;
+  }
+
+  protected int getMaxConnectRetries() {
+    return maxConnectRetries;
+  }
+
   protected int getLocalPort() {
     return localPort;
   }
@@ -1,11 +1,19 @@
 package com.lyft.data.proxyserver;
 
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.UnresolvedAddressException;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletException;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -16,14 +24,24 @@ import org.eclipse.jetty.client.HttpClient;
 import org.eclipse.jetty.client.api.Request;
 import org.eclipse.jetty.client.api.Response;
 import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpStatus;
+import org.eclipse.jetty.http2.client.HTTP2Client;
+import org.eclipse.jetty.http2.client.http.HttpClientTransportOverHTTP2;
 import org.eclipse.jetty.proxy.ProxyServlet;
 import org.eclipse.jetty.util.Callback;
 import org.eclipse.jetty.util.ssl.SslContextFactory;
 
 @Slf4j
 public class ProxyServletImpl extends ProxyServlet.Transparent {
+  private static final String CONNECT_RETRIES_ATTRIBUTE =
+      ProxyServletImpl.class.getName() + ".connectRetries";
+  private static final String SEND_NANOS_ATTRIBUTE =
+      ProxyServletImpl.class.getName() + ".sendNanos";
+  private static final String RESPONSE_HEADERS_NANOS_ATTRIBUTE =
+      ProxyServletImpl.class.getName() + ".responseHeadersNanos";
   private ProxyHandler proxyHandler;
   private ProxyServerConfiguration serverConfig;
+  private BackendOutlierDetector outlierDetector;
   private final Map<String, String> trinoNonceBackendMap = new HashMap<>();
 
   public void setProxyHandler(ProxyHandler proxyHandler) {
@@ -36,6 +54,10 @@ public class ProxyServletImpl extends ProxyServlet.Transparent {
     this.serverConfig = config;
   }
 
+  public void setOutlierDetector(BackendOutlierDetector outlierDetector) {
+    this.outlierDetector = outlierDetector;
+  }
+
   // Overriding this method to support ssl
   @Override
   protected HttpClient newHttpClient() {
@@ -50,19 +72,77 @@ public class ProxyServletImpl extends ProxyServlet.Transparent {
     sslFactory.setStopTimeout(TimeUnit.SECONDS.toMillis(15));
     sslFactory.setSslSessionTimeout((int) TimeUnit.SECONDS.toMillis(15));
 
-    HttpClient httpClient = new HttpClient(sslFactory);
+    HttpClient httpClient;
+    if (serverConfig != null && serverConfig.isBackendHttp2Enabled()) {
+      // Multiplex requests to a backend over a few h2 (or h2c for plain http) connections
+      httpClient = new HttpClient(new HttpClientTransportOverHTTP2(new HTTP2Client()), sslFactory);
+    } else {
+      httpClient = new HttpClient(sslFactory);
+    }
     httpClient.setMaxConnectionsPerDestination(10000);
     httpClient.setConnectTimeout(TimeUnit.SECONDS.toMillis(60));
     return httpClient;
   }
 
 
+  @Override
+  protected void service(HttpServletRequest request, HttpServletResponse response)
+      throws ServletException, IOException {
+    CompletableFuture<?> deferred =
+        proxyHandler == null ? null : proxyHandler.deferRequest(request);
+    if (deferred == null) {
+      super.service(request, response);
+      return;
+    }
+    // The request wrapped by the filters is dispatched again, its buffered body with it
+    AsyncContext asyncContext = request.startAsync(request, response);
+    asyncContext.setTimeout(0);
+    deferred.whenComplete((result, failure) -> asyncContext.dispatch());
+  }
+
   @Override
   protected void onProxyRewriteFailed(
           HttpServletRequest clientRequest,
           HttpServletResponse proxyResponse) {
     // Will be called if rewriteTarget returns null
-    super.sendProxyResponseError(clientRequest, proxyResponse, 404);
+    int status = HttpStatus.NOT_FOUND_404;
+    if (proxyHandler != null) {
+      status = proxyHandler.onRewriteFailed(clientRequest, proxyResponse);
+    }
+    super.sendProxyResponseError(clientRequest, proxyResponse, status);
+  }
+
+  @Override
+  protected void onProxyResponseSuccess(
+          HttpServletRequest clientRequest,
+          HttpServletResponse proxyResponse,
+          Response serverResponse) {
+    recordOutcome(serverResponse, null);
+    recordStageSince(clientRequest, ProxyHandler.STAGE_RESPONSE_STREAMING,
+        RESPONSE_HEADERS_NANOS_ATTRIBUTE);
+    // The request is recycled once super completes it, call the handler first
+    if (proxyHandler != null) {
+      proxyHandler.onProxyResponseComplete(clientRequest, proxyResponse, null);
+    }
+    super.onProxyResponseSuccess(clientRequest, proxyResponse, serverResponse);
+  }
+
+  @Override
+  protected void onProxyResponseFailure(
+          HttpServletRequest clientRequest,
+          HttpServletResponse proxyResponse,
+          Response serverResponse,
+          Throwable failure) {
+    recordOutcome(serverResponse, failure);
+    if (retryOnConnectFailure(clientRequest, proxyResponse, failure)) {
+      return;
+    }
+    recordStageSince(clientRequest, ProxyHandler.STAGE_RESPONSE_STREAMING,
+        RESPONSE_HEADERS_NANOS_ATTRIBUTE);
+    if (proxyHandler != null) {
+      proxyHandler.onProxyResponseComplete(clientRequest, proxyResponse, failure);
+    }
+    super.onProxyResponseFailure(clientRequest, proxyResponse, serverResponse, failure);
   }
 
   /** Customize the headers of forwarding proxy requests. */
@@ -79,6 +159,11 @@ public class ProxyServletImpl extends ProxyServlet.Transparent {
     String target = null;
     if (proxyHandler != null) {
       target = proxyHandler.rewriteTarget(request, this.getRequestId(request));
+      Long bodyCaptureNanos =
+          (Long) request.getAttribute(RequestFilter.BODY_CAPTURE_NANOS_ATTRIBUTE);
+      if (bodyCaptureNanos != null) {
+        proxyHandler.recordStage(request, ProxyHandler.STAGE_BODY_CAPTURE, bodyCaptureNanos);
+      }
     } else {
       target = super.rewriteTarget(request);
     }
@@ -91,6 +176,12 @@ public class ProxyServletImpl extends ProxyServlet.Transparent {
           HttpServletRequest clientRequest,
           HttpServletResponse proxyResponse,
           Response serverResponse) {
+    recordStageSince(
+        clientRequest, ProxyHandler.STAGE_TIME_TO_FIRST_BYTE, SEND_NANOS_ATTRIBUTE);
+    clientRequest.setAttribute(RESPONSE_HEADERS_NANOS_ATTRIBUTE, System.nanoTime());
+    if (proxyHandler != null) {
+      proxyHandler.onServerResponseHeaders(clientRequest, proxyResponse);
+    }
     // Clean up session cookie. The session cookie is used to pin the client to a backend during
     // the oauth handshake. If an old cookie is reused for a new handshake it causes a failure.
     if (clientRequest.getCookies() == null) {
@@ -115,6 +206,108 @@ public class ProxyServletImpl extends ProxyServlet.Transparent {
     super.onServerResponseHeaders(clientRequest, proxyResponse, serverResponse);
   }
 
+  @Override
+  protected String filterServerResponseHeader(
+          HttpServletRequest clientRequest,
+          Response serverResponse,
+          String headerName,
+          String headerValue) {
+    String value = super.filterServerResponseHeader(
+        clientRequest, serverResponse, headerName, headerValue);
+    if (value != null && proxyHandler != null) {
+      value = proxyHandler.filterServerResponseHeader(clientRequest, headerName, value);
+    }
+    return value;
+  }
+
+  @Override
+  protected void sendProxyRequest(
+          HttpServletRequest clientRequest,
+          HttpServletResponse proxyResponse,
+          Request proxyRequest) {
+    if (proxyHandler != null) {
+      clientRequest.setAttribute(SEND_NANOS_ATTRIBUTE, System.nanoTime());
+      // The request begins once a connection to the backend is obtained
+      proxyRequest.onRequestBegin(request -> recordStageSince(
+          clientRequest, ProxyHandler.STAGE_UPSTREAM_CONNECT, SEND_NANOS_ATTRIBUTE));
+    }
+    super.sendProxyRequest(clientRequest, proxyResponse, proxyRequest);
+  }
+
+  private void recordStageSince(HttpServletRequest request, String stage, String startAttribute) {
+    Long start = proxyHandler == null ? null : (Long) request.getAttribute(startAttribute);
+    if (start != null) {
+      proxyHandler.recordStage(request, stage, System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Sends the request again to another target if the backend could not be connected to. Nothing
+   * reached the backend in that case, so it is safe to retry, and the request body is replayed
+   * from the buffered request.
+   */
+  private boolean retryOnConnectFailure(
+          HttpServletRequest clientRequest,
+          HttpServletResponse proxyResponse,
+          Throwable failure) {
+    if (proxyHandler == null
+        || serverConfig == null
+        || proxyResponse.isCommitted()
+        || !isConnectFailure(failure)) {
+      return false;
+    }
+    Integer retries = (Integer) clientRequest.getAttribute(CONNECT_RETRIES_ATTRIBUTE);
+    int attempt = retries == null ? 1 : retries + 1;
+    if (attempt > serverConfig.getMaxConnectRetries()) {
+      return false;
+    }
+    String target = proxyHandler.rewriteTargetForRetry(clientRequest, getRequestId(clientRequest));
+    if (target == null) {
+      return false;
+    }
+    clientRequest.setAttribute(CONNECT_RETRIES_ATTRIBUTE, attempt);
+    log.warn("Connection failed for [{}], retrying on [{}], attempt {}",
+        clientRequest.getRequestURI(), target, attempt, failure);
+    try {
+      Request proxyRequest = newProxyRequest(clientRequest, target);
+      copyRequestHeaders(clientRequest, proxyRequest);
+      addProxyHeaders(clientRequest, proxyRequest);
+      proxyRequest.timeout(getTimeout(), TimeUnit.MILLISECONDS);
+      if (hasContent(clientRequest)) {
+        proxyRequest.content(proxyRequestContent(clientRequest, proxyResponse, proxyRequest));
+      }
+      sendProxyRequest(clientRequest, proxyResponse, proxyRequest);
+      return true;
+    } catch (Exception e) {
+      log.error("Error retrying request on [{}]", target, e);
+      return false;
+    }
+  }
+
+  private static boolean isConnectFailure(Throwable failure) {
+    for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+      // Jetty reports connect timeouts as SocketTimeoutException, other timeouts differently
+      if (cause instanceof ConnectException
+          || cause instanceof NoRouteToHostException
+          || cause instanceof SocketTimeoutException
+          || cause instanceof UnresolvedAddressException) {
+        return true;
+      }
+      if (cause.getCause() == cause) {
+        break;
+      }
+    }
+    return false;
+  }
+
+  private void recordOutcome(Response serverResponse, Throwable failure) {
+    if (outlierDetector == null || serverResponse == null) {
+      return;
+    }
+    outlierDetector.recordOutcome(
+        serverResponse.getRequest().getURI().toString(), serverResponse.getStatus(), failure);
+  }
+
   /**
    * Customize the response returned from remote server.
    *
@@ -142,6 +335,8 @@ public class ProxyServletImpl extends ProxyServlet.Transparent {
       if (this.proxyHandler != null) {
         proxyHandler.postConnectionHook(
                 request, response, buffer, offset, length, callback, this.getRequestId(request));
+      } else if (serverConfig != null && serverConfig.isAsyncResponseWriteEnabled()) {
+        AsyncResponseWriter.write(request, response, buffer, offset, length, callback);
       } else {
         super.onResponseContent(request, response, proxyResponse, buffer, offset, length, callback);
       }
@@ -18,6 +18,9 @@ import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
 public class RequestFilter implements Filter {
+  public static final String BODY_CAPTURE_NANOS_ATTRIBUTE =
+      RequestFilter.class.getName() + ".bodyCaptureNanos";
+
   private FilterConfig filterConfig = null;
 
   public void init(FilterConfig filterConfig) throws ServletException {
@@ -31,8 +34,10 @@ public class RequestFilter implements Filter {
   public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
       throws IOException, ServletException {
     // We need to convert the ServletRequest to MultiReadRequest, so that we can intercept later
+    long start = System.nanoTime();
     MultiReadHttpServletRequest multiReadRequest =
         new MultiReadHttpServletRequest((HttpServletRequest) request);
+    multiReadRequest.setAttribute(BODY_CAPTURE_NANOS_ATTRIBUTE, System.nanoTime() - start);
     HttpServletResponseWrapper responseWrapper =
         new HttpServletResponseWrapper((HttpServletResponse) response);
     chain.doFilter(multiReadRequest, responseWrapper);
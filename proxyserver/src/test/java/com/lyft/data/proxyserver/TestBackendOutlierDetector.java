@@ -0,0 +1,105 @@
+package com.lyft.data.proxyserver;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.testng.annotations.Test;
+
+public class TestBackendOutlierDetector {
+  private static final String BACKEND = "http://presto1:8080";
+  private static final String REQUEST = "http://presto1:8080/v1/statement";
+
+  private final AtomicLong now = new AtomicLong(1000000);
+
+  private BackendOutlierDetector newDetector() {
+    return new BackendOutlierDetector(3, 1000, 5000, 100, now::get);
+  }
+
+  @Test
+  public void testEjectionAfterConsecutiveFailures() {
+    BackendOutlierDetector detector = newDetector();
+    detector.recordOutcome(REQUEST, 503, null);
+    detector.recordOutcome(REQUEST, 0, new ConnectException());
+    // A success resets the consecutive failure count
+    detector.recordOutcome(REQUEST, 200, null);
+    detector.recordOutcome(REQUEST, 500, null);
+    detector.recordOutcome(REQUEST, 0, new TimeoutException());
+    assertTrue(detector.isAvailable(BACKEND));
+
+    detector.recordOutcome(REQUEST, 502, null);
+    assertFalse(detector.isAvailable(BACKEND));
+    assertFalse(detector.isAvailable(BACKEND + "/"));
+    assertTrue(detector.isAvailable("http://presto2:8080"));
+  }
+
+  @Test
+  public void testClientFailuresAreIgnored() {
+    BackendOutlierDetector detector = newDetector();
+    for (int i = 0; i < 10; i++) {
+      detector.recordOutcome(REQUEST, 200, new IOException("client closed the connection"));
+      detector.recordOutcome(REQUEST, 404, null);
+    }
+    assertTrue(detector.isAvailable(BACKEND));
+  }
+
+  @Test
+  public void testHalfOpenProbes() {
+    BackendOutlierDetector detector = newDetector();
+    for (int i = 0; i < 3; i++) {
+      detector.recordOutcome(REQUEST, 0, new ConnectException());
+    }
+    assertFalse(detector.isAvailable(BACKEND));
+
+    now.addAndGet(1000);
+    // One probe per probe interval
+    assertTrue(detector.isAvailable(BACKEND));
+    assertFalse(detector.isAvailable(BACKEND));
+    now.addAndGet(100);
+    assertTrue(detector.isAvailable(BACKEND));
+
+    // A failed probe ejects again for twice as long
+    detector.recordOutcome(REQUEST, 0, new ConnectException());
+    now.addAndGet(1999);
+    assertFalse(detector.isAvailable(BACKEND));
+    now.addAndGet(1);
+    assertTrue(detector.isAvailable(BACKEND));
+
+    // A successful probe restores the backend
+    detector.recordOutcome(REQUEST, 200, null);
+    assertTrue(detector.isAvailable(BACKEND));
+    assertTrue(detector.isAvailable(BACKEND));
+  }
+
+  @Test
+  public void testMaxEjection() {
+    BackendOutlierDetector detector = newDetector();
+    for (int i = 0; i < 3; i++) {
+      detector.recordOutcome(REQUEST, 500, null);
+    }
+    for (int ejection = 1; ejection < 6; ejection++) {
+      now.addAndGet(5000);
+      assertTrue(detector.isAvailable(BACKEND));
+      detector.recordOutcome(REQUEST, 500, null);
+    }
+    now.addAndGet(4999);
+    assertFalse(detector.isAvailable(BACKEND));
+    now.addAndGet(1);
+    assertTrue(detector.isAvailable(BACKEND));
+  }
+
+  @Test
+  public void testBackendKey() {
+    assertEquals(BackendOutlierDetector.backendKey("HTTP://Presto1:8080/v1/statement?x=1"),
+        "http://presto1:8080");
+    assertEquals(BackendOutlierDetector.backendKey("https://presto1"), "https://presto1");
+    assertNull(BackendOutlierDetector.backendKey("/v1/statement"));
+    assertNull(BackendOutlierDetector.backendKey("not a url"));
+  }
+}
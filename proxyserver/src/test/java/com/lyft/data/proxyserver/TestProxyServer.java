@@ -1,20 +1,48 @@
 package com.lyft.data.proxyserver;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
 
 import com.squareup.okhttp.mockwebserver.MockResponse;
 import com.squareup.okhttp.mockwebserver.MockWebServer;
 import com.squareup.okhttp.mockwebserver.RecordedRequest;
 
 import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.util.EntityUtils;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.ContentResponse;
+import org.eclipse.jetty.http.HttpVersion;
+import org.eclipse.jetty.http2.client.HTTP2Client;
+import org.eclipse.jetty.http2.client.http.HttpClientTransportOverHTTP2;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
 import org.testng.annotations.Test;
 
 public class TestProxyServer {
@@ -77,6 +105,277 @@ public class TestProxyServer {
     }
   }
 
+  @Test
+  public void testHttp2CleartextListener() throws Exception {
+    String mockResponseText = "H2C TEST";
+    int backendPort = 30000 + new Random().nextInt(1000);
+
+    MockWebServer backend = new MockWebServer();
+    backend.enqueue(new MockResponse().setBody(mockResponseText));
+    backend.play(backendPort);
+
+    int serverPort = backendPort + 1;
+    ProxyServerConfiguration config = buildConfig(backend.getUrl("/").toString(), serverPort);
+    config.setHttp2Enabled(true);
+    ProxyServer proxyServer = new ProxyServer(config, null);
+    HttpClient h2Client = new HttpClient(new HttpClientTransportOverHTTP2(new HTTP2Client()), null);
+
+    try {
+      proxyServer.start();
+      h2Client.start();
+      ContentResponse response = h2Client.GET("http://localhost:" + serverPort + "/v1/info");
+      assertEquals(response.getVersion(), HttpVersion.HTTP_2);
+      assertEquals(response.getContentAsString(), mockResponseText);
+    } finally {
+      h2Client.stop();
+      proxyServer.close();
+      backend.shutdown();
+    }
+  }
+
+  @Test
+  public void testHttp2TlsListenerAndBackend() throws Exception {
+    int backendPort = 30000 + new Random().nextInt(1000);
+    // The backend answers with the protocol the proxy used to reach it
+    Server backend = new Server();
+    HttpConfiguration backendConfig = new HttpConfiguration();
+    ServerConnector backendConnector = new ServerConnector(backend,
+        new HttpConnectionFactory(backendConfig), new HTTP2CServerConnectionFactory(backendConfig));
+    backendConnector.setPort(backendPort);
+    backend.addConnector(backendConnector);
+    backend.setHandler(new AbstractHandler() {
+      @Override
+      public void handle(String target, Request baseRequest, HttpServletRequest request,
+          HttpServletResponse response) throws IOException {
+        response.getWriter().write(request.getProtocol());
+        baseRequest.setHandled(true);
+      }
+    });
+
+    int serverPort = backendPort + 1;
+    ProxyServerConfiguration config =
+        buildConfig("http://localhost:" + backendPort + "/", serverPort);
+    config.setSsl(true);
+    config.setKeystorePath(getClass().getResource("/test-keystore.jks").getPath());
+    config.setKeystorePass("changeit");
+    config.setHttp2Enabled(true);
+    config.setBackendHttp2Enabled(true);
+    ProxyServer proxyServer = new ProxyServer(config, null);
+    SslContextFactory clientSsl = new SslContextFactory();
+    clientSsl.setTrustAll(true);
+    HttpClient h2Client =
+        new HttpClient(new HttpClientTransportOverHTTP2(new HTTP2Client()), clientSsl);
+
+    try {
+      backend.start();
+      proxyServer.start();
+      h2Client.start();
+      // h2 is negotiated through ALPN on the TLS listener, and h2c is used to the backend
+      ContentResponse response = h2Client.GET("https://localhost:" + serverPort + "/v1/info");
+      assertEquals(response.getVersion(), HttpVersion.HTTP_2);
+      assertEquals(response.getContentAsString(), HttpVersion.HTTP_2.asString());
+    } finally {
+      h2Client.stop();
+      proxyServer.close();
+      backend.stop();
+    }
+  }
+
+  @Test
+  public void testAsyncResponseWrite() throws Exception {
+    // Large enough to span many content chunks and fill the socket buffers
+    StringBuilder body = new StringBuilder();
+    while (body.length() < 8 * 1024 * 1024) {
+      body.append("0123456789abcdefghijklmnopqrstuvwxyz");
+    }
+    String mockResponseText = body.toString();
+    int backendPort = 30000 + new Random().nextInt(1000);
+
+    MockWebServer backend = new MockWebServer();
+    backend.enqueue(new MockResponse().setBody(mockResponseText));
+    backend.enqueue(new MockResponse().setBody(mockResponseText));
+    backend.play(backendPort);
+
+    int serverPort = backendPort + 1;
+    String backendUrl = backend.getUrl("/").toString();
+    ProxyServerConfiguration config = buildConfig(backendUrl, serverPort);
+    config.setAsyncResponseWriteEnabled(true);
+    ProxyHandler proxyHandler = new ProxyHandler() {
+      @Override
+      protected String rewriteTarget(HttpServletRequest request, int requestId) {
+        return backendUrl + request.getRequestURI().substring(1);
+      }
+    };
+    ProxyServer proxyServer = new ProxyServer(config, proxyHandler);
+
+    try {
+      proxyServer.start();
+      CloseableHttpClient httpclient = HttpClientBuilder.create().build();
+      for (int i = 0; i < 2; i++) {
+        HttpResponse response =
+            httpclient.execute(new HttpGet("http://localhost:" + serverPort + "/v1/statement"));
+        assertEquals(EntityUtils.toString(response.getEntity()), mockResponseText);
+      }
+    } finally {
+      proxyServer.close();
+      backend.shutdown();
+    }
+  }
+
+  @Test
+  public void testRetryOnConnectFailure() throws Exception {
+    String mockResponseText = "RETRIED";
+    int backendPort = 30000 + new Random().nextInt(1000);
+
+    MockWebServer backend = new MockWebServer();
+    backend.enqueue(new MockResponse().setBody(mockResponseText));
+    backend.play(backendPort);
+
+    String deadBackendUrl;
+    try (ServerSocket socket = new ServerSocket(0)) {
+      deadBackendUrl = "http://localhost:" + socket.getLocalPort();
+    }
+    String liveBackendUrl = "http://localhost:" + backendPort;
+
+    int serverPort = backendPort + 1;
+    ProxyServerConfiguration config = buildConfig(liveBackendUrl, serverPort);
+    config.setMaxConnectRetries(1);
+    ProxyHandler proxyHandler = new ProxyHandler() {
+      @Override
+      protected String rewriteTarget(HttpServletRequest request, int requestId) {
+        return deadBackendUrl + request.getRequestURI();
+      }
+
+      @Override
+      protected String rewriteTargetForRetry(HttpServletRequest request, int requestId) {
+        // Only submissions are retried on a live backend
+        String target = request.getMethod().equals("POST") ? liveBackendUrl : deadBackendUrl;
+        return target + request.getRequestURI();
+      }
+    };
+    ProxyServer proxyServer = new ProxyServer(config, proxyHandler);
+
+    try {
+      proxyServer.start();
+      CloseableHttpClient httpclient = HttpClientBuilder.create().build();
+      HttpPost httpPost = new HttpPost("http://localhost:" + serverPort + "/v1/statement");
+      httpPost.setEntity(new StringEntity("SELECT 1"));
+      HttpResponse response = httpclient.execute(httpPost);
+      assertEquals(EntityUtils.toString(response.getEntity()), mockResponseText);
+
+      // The buffered body is replayed to the second backend
+      RecordedRequest recordedRequest = backend.takeRequest();
+      assertEquals(recordedRequest.getUtf8Body(), "SELECT 1");
+
+      // Retries are bounded
+      HttpResponse failed = httpclient.execute(
+          new HttpGet("http://localhost:" + serverPort + "/v1/statement"));
+      assertEquals(failed.getStatusLine().getStatusCode(), 502);
+    } finally {
+      proxyServer.close();
+      backend.shutdown();
+    }
+  }
+
+  @Test
+  public void testStageTimings() throws Exception {
+    int backendPort = 30000 + new Random().nextInt(1000);
+
+    MockWebServer backend = new MockWebServer();
+    backend.enqueue(new MockResponse().setBody("STAGES"));
+    backend.play(backendPort);
+
+    int serverPort = backendPort + 1;
+    String backendUrl = backend.getUrl("/").toString();
+    Map<String, Long> stages = new ConcurrentHashMap<>();
+    ProxyHandler proxyHandler = new ProxyHandler() {
+      @Override
+      protected String rewriteTarget(HttpServletRequest request, int requestId) {
+        return backendUrl + request.getRequestURI().substring(1);
+      }
+
+      @Override
+      public void recordStage(HttpServletRequest request, String stage, long nanos) {
+        stages.put(stage, nanos);
+      }
+    };
+    ProxyServer proxyServer = new ProxyServer(buildConfig(backendUrl, serverPort), proxyHandler);
+
+    try {
+      proxyServer.start();
+      CloseableHttpClient httpclient = HttpClientBuilder.create().build();
+      HttpPost httpPost = new HttpPost("http://localhost:" + serverPort + "/v1/statement");
+      httpPost.setEntity(new StringEntity("SELECT 1"));
+      HttpResponse response = httpclient.execute(httpPost);
+      assertEquals(EntityUtils.toString(response.getEntity()), "STAGES");
+
+      // The response may reach the client before the exchange completes on the proxy
+      long deadline = System.currentTimeMillis() + 5000;
+      while (stages.size() < 4 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals(stages.keySet(), new HashSet<>(Arrays.asList(
+          ProxyHandler.STAGE_BODY_CAPTURE,
+          ProxyHandler.STAGE_UPSTREAM_CONNECT,
+          ProxyHandler.STAGE_TIME_TO_FIRST_BYTE,
+          ProxyHandler.STAGE_RESPONSE_STREAMING)));
+      assertTrue(stages.values().stream().allMatch(nanos -> nanos >= 0));
+    } finally {
+      proxyServer.close();
+      backend.shutdown();
+    }
+  }
+
+  @Test
+  public void testDeferredRequest() throws Exception {
+    int backendPort = 30000 + new Random().nextInt(1000);
+
+    MockWebServer backend = new MockWebServer();
+    backend.enqueue(new MockResponse().setBody("DEFERRED"));
+    backend.play(backendPort);
+
+    int serverPort = backendPort + 1;
+    String backendUrl = backend.getUrl("/").toString();
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    ProxyHandler proxyHandler = new ProxyHandler() {
+      @Override
+      public CompletableFuture<?> deferRequest(HttpServletRequest request) {
+        if (request.getAttribute("deferred") != null) {
+          return null;
+        }
+        request.setAttribute("deferred", Thread.currentThread().getName());
+        CompletableFuture<Void> ready = new CompletableFuture<>();
+        scheduler.schedule(() -> ready.complete(null), 200, TimeUnit.MILLISECONDS);
+        return ready;
+      }
+
+      @Override
+      protected String rewriteTarget(HttpServletRequest request, int requestId) {
+        return backendUrl + request.getRequestURI().substring(1);
+      }
+    };
+    ProxyServer proxyServer = new ProxyServer(buildConfig(backendUrl, serverPort), proxyHandler);
+
+    try {
+      proxyServer.start();
+      CloseableHttpClient httpclient = HttpClientBuilder.create().build();
+      HttpPost httpPost = new HttpPost("http://localhost:" + serverPort + "/v1/statement");
+      httpPost.setEntity(new StringEntity("SELECT 1"));
+      long start = System.nanoTime();
+      HttpResponse response = httpclient.execute(httpPost);
+      assertEquals(EntityUtils.toString(response.getEntity()), "DEFERRED");
+      assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+
+      // The body buffered before the request was deferred is sent
+      RecordedRequest recordedRequest = backend.takeRequest();
+      assertEquals(recordedRequest.getUtf8Body(), "SELECT 1");
+    } finally {
+      proxyServer.close();
+      backend.shutdown();
+      scheduler.shutdownNow();
+    }
+  }
+
   private ProxyServerConfiguration buildConfig(String backendUrl, int localPort) {
     ProxyServerConfiguration config = new ProxyServerConfiguration();
     config.setName("MockBackend");